@@ -0,0 +1,61 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.ivotasevski.idempotency.action.Action;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Endpoint lookup done for every request, as the number of mapped endpoints grows.
+    Half of the endpoints are literal paths, half are patterns; requests mix literal hits, pattern hits and misses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EndpointResolutionBenchmark {
+
+    private static final int PATHS = 1024;
+
+    @Param({"10", "100", "1000"})
+    private int endpoints;
+
+    // false: resolved paths are not cached, every lookup walks the index
+    @Param({"true", "false"})
+    private boolean cached;
+
+    private IdempotentEndpointIndex<Action> index;
+    private String[] paths;
+    private int next;
+
+    @Setup
+    public void setup() {
+        IdempotentEndpointIndex.Builder<Action> builder = IdempotentEndpointIndex.<Action>builder()
+                .resolvedPathCacheSize(cached ? 10_000 : 0);
+        for (int i = 0; i < endpoints; i++) {
+            if (i % 2 == 0) {
+                builder.add("/api/v1/resource" + i + "/action", Set.of(RequestMethod.POST), Action.PAYMENT);
+            } else {
+                builder.add("/api/v1/resource" + i + "/{id}/refund", Set.of(RequestMethod.POST), Action.PAYMENT);
+            }
+        }
+        index = builder.build();
+
+        paths = new String[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            int endpoint = i % endpoints;
+            paths[i] = switch (i % 3) {
+                case 0 -> "/api/v1/resource" + (endpoint & ~1) + "/action";
+                case 1 -> "/api/v1/resource" + (endpoint | 1) + "/" + i + "/refund";
+                default -> "/api/v1/unmapped/" + i;
+            };
+        }
+    }
+
+    @Benchmark
+    public Optional<Action> resolve() {
+        return index.resolve("POST", paths[next++ & (PATHS - 1)]);
+    }
+}
@@ -0,0 +1,75 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.BodyEncoding;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import com.ivotasevski.idempotency.storage.HeaderBlock;
+import com.ivotasevski.idempotency.storage.ResponseBodyCodec;
+import com.ivotasevski.idempotency.storage.ResponseHeadersInterner;
+import com.ivotasevski.idempotency.storage.ResponseStorage;
+import com.ivotasevski.idempotency.store.StoredRequest;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Replay of a stored response: decoding the stored record and writing it into the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReplayBenchmark {
+
+    private static final String REQUEST_HASH = "sha256:00";
+
+    @Param({"256", "16384", "262144"})
+    private int bodySize;
+
+    @Param({"false", "true"})
+    private boolean compressed;
+
+    private ResponseStorage responseStorage;
+    private StoredRequest stored;
+
+    @Setup
+    public void setup() {
+        ResponseBodyCodec codec = new ResponseBodyCodec();
+        // header sets are stored as blocks, the interner is never consulted
+        responseStorage = new ResponseStorage(new IdempotencyProperties(), codec, new ResponseHeadersInterner(null, null, new IdempotencyProperties()));
+
+        byte[] body = jsonBody(bodySize);
+        byte[] encoded = compressed ? codec.encode(body) : null;
+        stored = new StoredRequest("key", Action.PAYMENT, IdempotentRequestStatus.SUCCESS, REQUEST_HASH, Instant.MAX, 201,
+                new EncodedResponse(
+                        encoded != null ? BodyEncoding.DEFLATE_DICT_V1 : null,
+                        encoded != null ? encoded : body,
+                        null,
+                        null,
+                        HeaderBlock.encode(Map.of("Content-Type", List.of("application/json"), "Location", List.of("/payments/42")))));
+    }
+
+    @Benchmark
+    public MockHttpServletResponse replay() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        IdempotentHandlingFilter.writeStoredResponse(response, responseStorage.read(stored).orElseThrow(), REQUEST_HASH);
+        return response;
+    }
+
+    static byte[] jsonBody(int size) {
+        StringBuilder body = new StringBuilder(size + 64).append('[');
+        for (int i = 0; body.length() < size; i++) {
+            body.append("{\"id\":\"").append(i).append("\",\"status\":\"SUCCESS\",\"amount\":").append(i * 7 % 1000)
+                    .append(",\"currency\":\"EUR\"},");
+        }
+        body.setLength(size - 1);
+        return body.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
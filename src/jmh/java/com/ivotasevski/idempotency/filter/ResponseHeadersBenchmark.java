@@ -0,0 +1,39 @@
+package com.ivotasevski.idempotency.filter;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Collecting the response headers to store, done for every finished idempotent request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseHeadersBenchmark {
+
+    @Param({"2", "8", "32"})
+    private int headers;
+
+    private MockHttpServletResponse response;
+
+    @Setup
+    public void setup() {
+        response = new MockHttpServletResponse();
+        response.setContentType("application/json");
+        // never stored
+        response.addHeader("Date", "Mon, 05 Jan 2026 10:00:00 GMT");
+        response.addHeader("Content-Length", "42");
+        for (int i = 0; i < headers; i++) {
+            response.addHeader("X-Custom-Header-" + i, "value-" + i);
+        }
+    }
+
+    @Benchmark
+    public Map<String, List<String>> collectHeaders() {
+        return IdempotentHandlingFilter.collectHeaders(response);
+    }
+}
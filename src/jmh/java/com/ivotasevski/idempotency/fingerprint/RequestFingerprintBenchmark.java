@@ -0,0 +1,39 @@
+package com.ivotasevski.idempotency.fingerprint;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Reading and fingerprinting the request body, done for every idempotent request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestFingerprintBenchmark {
+
+    @Param({"0", "1024", "65536", "1048576"})
+    private int bodySize;
+
+    @Param({"SHA_256", "CRC32C"})
+    private FingerprintAlgorithm algorithm;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'a');
+    }
+
+    @Benchmark
+    public String fingerprint() throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/example/2xx");
+        request.setContentType("application/json");
+        request.setContent(body);
+        return new FingerprintingRequestWrapper(request, algorithm).getFingerprint();
+    }
+}
@@ -2,5 +2,25 @@ package com.ivotasevski.idempotency.action;
 
 public enum Action {
 
-    PAYMENT
+    // codes are stored in gtw_idemp.idempotent_action, never renumber
+    PAYMENT(1);
+
+    private final short code;
+
+    Action(int code) {
+        this.code = (short) code;
+    }
+
+    public short getCode() {
+        return code;
+    }
+
+    public static Action fromCode(int code) {
+        for (Action action : values()) {
+            if (action.code == code) {
+                return action;
+            }
+        }
+        throw new IllegalArgumentException("Unknown action code " + code);
+    }
 }
@@ -1,13 +1,54 @@
 package com.ivotasevski.idempotency.action;
 
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+/*
+    Marks an idempotent endpoint. Besides the action, it carries the idempotency policy of the endpoint, resolved
+    once when the endpoint is registered (values are validated at startup). Empty values fall back to the global
+    configuration.
+ */
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface IdempotentAction {
 
     Action action();
-}
\ No newline at end of file
+
+    /*
+        Batch endpoint: the body is a JSON array of items, each with its own idempotency key in idempotency.batch.key-field
+        (X-Request-Id is not used). The controller receives only the items that were not handled before and must
+        answer with a JSON array of their results, in the order it received them.
+     */
+    boolean batch() default false;
+
+    // how long records are kept, e.g. "7d" or "PT12H"; idempotency.policy.retention when empty
+    String retention() default "";
+
+    // processing lease of a claimed request, e.g. "30s"; idempotency.lease.duration when empty
+    String lockLease() default "";
+
+    // false: only the status code and headers are stored, replays get the digest of the body instead of the body
+    boolean storeBody() default true;
+
+    // larger bodies are stored as their digest only, e.g. "64KB"; idempotency.capture.max-stored-body-size when empty
+    String maxBodySize() default "";
+
+    // response headers stored and replayed, "*" for all
+    String[] storedHeaders() default "*";
+
+    // stored status of the listed response codes, other codes map as IdempotentRequestStatus.fromResponseCode
+    StatusMapping[] statusMapping() default {};
+
+    @Target({})
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface StatusMapping {
+
+        int[] codes();
+
+        IdempotentRequestStatus status();
+    }
+}
@@ -2,9 +2,36 @@ package com.ivotasevski.idempotency.action.compensation;
 
 import com.ivotasevski.idempotency.action.Action;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public interface CompensationHandler {
 
     Action getSupportedAction();
 
     void handle(String idempotentKey);
+
+    /*
+        Compensate up to batchSize() records of the supported action in one call (e.g. one bulk request downstream),
+        reporting the outcome per idempotent key. Records missing from the result are retried, as are all of them
+        when the call throws. The default handles the records one by one.
+     */
+    default Map<String, CompensationOutcome> handleBatch(List<CompensationRecord> records) {
+        Map<String, CompensationOutcome> outcomes = new LinkedHashMap<>();
+        for (CompensationRecord record : records) {
+            try {
+                handle(record.idempotentKey());
+                outcomes.put(record.idempotentKey(), CompensationOutcome.COMPENSATED);
+            } catch (RuntimeException e) {
+                outcomes.put(record.idempotentKey(), CompensationOutcome.failed(e));
+            }
+        }
+        return outcomes;
+    }
+
+    // max records per handleBatch call; 1 runs each record in its own call, concurrently up to the action's bulkhead
+    default int batchSize() {
+        return 1;
+    }
 }
@@ -3,16 +3,18 @@ package com.ivotasevski.idempotency.action.compensation;
 import com.ivotasevski.idempotency.action.Action;
 import com.ivotasevski.idempotency.exception.DuplicateCompensationHandlerException;
 import com.ivotasevski.idempotency.exception.MissingCompensationHandlerException;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 
+@Slf4j
 @Component
 public class CompensationHandlerRegistry {
 
-    private final Map<Action, CompensationHandler> handlers = new HashMap<>();
+    private final Map<Action, CompensationHandler> handlers = new EnumMap<>(Action.class);
 
     public CompensationHandlerRegistry(List<CompensationHandler> handlers) {
         handlers.forEach(handler -> {
@@ -21,6 +23,12 @@ public class CompensationHandlerRegistry {
             }
             this.handlers.put(handler.getSupportedAction(), handler);
         });
+        for (Action action : Action.values()) {
+            if (!this.handlers.containsKey(action)) {
+                // its records are kept PENDING_COMPENSATION until a handler is deployed
+                log.warn("No compensation handler for action: {}", action);
+            }
+        }
     }
 
     public CompensationHandler getHandler(Action action) {
@@ -0,0 +1,14 @@
+package com.ivotasevski.idempotency.action.compensation;
+
+/*
+    Outcome of the compensation of one record: compensated records become FAILURE, failed ones are retried
+    (PENDING_COMPENSATION). cause is logged, it may be null.
+ */
+public record CompensationOutcome(boolean compensated, Exception cause) {
+
+    public static final CompensationOutcome COMPENSATED = new CompensationOutcome(true, null);
+
+    public static CompensationOutcome failed(Exception cause) {
+        return new CompensationOutcome(false, cause);
+    }
+}
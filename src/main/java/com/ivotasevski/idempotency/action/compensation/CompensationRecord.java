@@ -0,0 +1,11 @@
+package com.ivotasevski.idempotency.action.compensation;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.cache.CachedResponse;
+
+/*
+    Record handed to CompensationHandler.handleBatch. trxId is the claim (lease) that last ran the request,
+    response is its stored response, null when none was stored (e.g. records stuck IN_PROGRESS).
+ */
+public record CompensationRecord(Action action, String idempotentKey, String trxId, CachedResponse response) {
+}
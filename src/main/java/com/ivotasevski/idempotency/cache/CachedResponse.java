@@ -0,0 +1,21 @@
+package com.ivotasevski.idempotency.cache;
+
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
+import java.time.Instant;
+
+public record CachedResponse(IdempotentRequestStatus status,
+                             int responseCode,
+                             // see HeaderBlock
+                             byte[] responseHeaderBlock,
+                             byte[] responseBody,
+                             String requestHash,
+                             Instant expiredAt) {
+
+    // rough per-entry overhead of the entry, record and map objects
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    public int weight() {
+        return ENTRY_OVERHEAD_BYTES + responseHeaderBlock.length + (responseBody != null ? responseBody.length : 0);
+    }
+}
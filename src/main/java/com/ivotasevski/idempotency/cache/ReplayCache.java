@@ -0,0 +1,80 @@
+package com.ivotasevski.idempotency.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+/*
+    Per-node near cache of finished idempotent responses, keyed by X-Request-Id.
+    Finished records never change their stored response, so they can be replayed without touching the DB. Only the
+    status of PENDING_COMPENSATION records changes, CompensationEngine evicts them once it compensated them (other
+    nodes replay the old status until their entry expires).
+    Entries are bounded by total byte weight and expire after the configured TTL or the record's expiredAt,
+    whichever comes first. Hit/miss/eviction counters are published as "cache.*" meters with cache=idempotency.replay.
+ */
+@Component
+public class ReplayCache {
+
+    private final boolean enabled;
+    private final Cache<String, CachedResponse> cache;
+
+    public ReplayCache(IdempotencyProperties properties, MeterRegistry meterRegistry) {
+        IdempotencyProperties.ReplayCache config = properties.getReplayCache();
+        this.enabled = config.isEnabled();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(config.getMaxWeight().toBytes())
+                .weigher((String key, CachedResponse value) -> value.weight())
+                .expireAfter(new RecordExpiry(config.getTtl()))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "idempotency.replay");
+    }
+
+    public Optional<CachedResponse> get(String xRequestId) {
+        if (!enabled || xRequestId == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(cache.getIfPresent(xRequestId));
+    }
+
+    public void put(String xRequestId, CachedResponse response) {
+        if (!enabled || xRequestId == null || response.expiredAt() == null) {
+            return;
+        }
+        cache.put(xRequestId, response);
+    }
+
+    public void evict(String xRequestId) {
+        cache.invalidate(xRequestId);
+    }
+
+    private record RecordExpiry(Duration ttl) implements Expiry<String, CachedResponse> {
+
+        @Override
+        public long expireAfterCreate(String key, CachedResponse value, long currentTime) {
+            Duration untilExpired = Duration.between(Instant.now(), value.expiredAt());
+            if (untilExpired.isNegative()) {
+                return 0;
+            }
+            return (untilExpired.compareTo(ttl) < 0 ? untilExpired : ttl).toNanos();
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, CachedResponse value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, CachedResponse value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
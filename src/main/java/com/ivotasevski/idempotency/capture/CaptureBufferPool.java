@@ -0,0 +1,56 @@
+package com.ivotasevski.idempotency.capture;
+
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Shared pool of fixed size chunks used to capture response bodies on the heap.
+ */
+@Component
+public class CaptureBufferPool {
+
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    private final IdempotencyProperties.Capture properties;
+    private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    public CaptureBufferPool(IdempotencyProperties properties) {
+        this.properties = properties.getCapture();
+    }
+
+    public ResponseCapture newCapture() {
+        return newCapture(properties.getMaxStoredBodySize().toBytes());
+    }
+
+    /*
+        Capture storing bodies up to maxStoredBodySize (per endpoint policy), larger ones only as their digest.
+     */
+    public ResponseCapture newCapture(long maxStoredBodySize) {
+        return new ResponseCapture(this,
+                properties.getMemoryThreshold().toBytes(),
+                maxStoredBodySize,
+                properties.getSpillDirectory());
+    }
+
+    byte[] acquire() {
+        byte[] chunk = chunks.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        pooled.decrementAndGet();
+        return chunk;
+    }
+
+    void release(byte[] chunk) {
+        if (pooled.incrementAndGet() <= properties.getMaxPooledChunks()) {
+            chunks.offer(chunk);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
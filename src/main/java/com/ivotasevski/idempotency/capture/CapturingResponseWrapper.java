@@ -0,0 +1,126 @@
+package com.ivotasevski.idempotency.capture;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/*
+    Response wrapper that tees the body to the client and into a ResponseCapture,
+    instead of buffering the whole body before it is copied to the client.
+ */
+public class CapturingResponseWrapper extends HttpServletResponseWrapper {
+
+    private final ResponseCapture capture;
+
+    private TeeOutputStream outputStream;
+    private PrintWriter writer;
+
+    public CapturingResponseWrapper(HttpServletResponse response, ResponseCapture capture) {
+        super(response);
+        this.capture = capture;
+    }
+
+    public ResponseCapture getCapture() throws IOException {
+        if (writer != null) {
+            // push characters buffered by the writer into the capture, without committing the response
+            outputStream.propagateFlush = false;
+            writer.flush();
+            outputStream.propagateFlush = true;
+        }
+        return capture;
+    }
+
+    public void releaseCapture() {
+        capture.release();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called on this response.");
+        }
+        return teeOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (outputStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called on this response.");
+            }
+            writer = new PrintWriter(new OutputStreamWriter(teeOutputStream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        capture.reset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        capture.reset();
+    }
+
+    private TeeOutputStream teeOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new TeeOutputStream(super.getOutputStream());
+        }
+        return outputStream;
+    }
+
+    private class TeeOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream delegate;
+        private boolean propagateFlush = true;
+
+        private TeeOutputStream(ServletOutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            capture.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            capture.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (propagateFlush) {
+                delegate.flush();
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.ivotasevski.idempotency.capture;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/*
+    Captured copy of a response body.
+
+    Bytes are kept in pooled heap chunks up to the memory threshold, and spilled to a temp file beyond it.
+    Once the body grows past the max stored size the captured bytes are dropped and only the length and a
+    SHA-256 digest of the full body are kept (see getOmittedMarker()).
+ */
+@Slf4j
+public class ResponseCapture {
+
+    private final CaptureBufferPool pool;
+    private final long memoryThreshold;
+    private final long maxStoredSize;
+    private final Path spillDirectory;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final byte[] singleByte = new byte[1];
+    private int lastChunkPosition = CaptureBufferPool.CHUNK_SIZE;
+    private long size;
+
+    private Path spillFile;
+    private OutputStream spillStream;
+    private MessageDigest omittedDigest;
+
+    ResponseCapture(CaptureBufferPool pool, long memoryThreshold, long maxStoredSize, Path spillDirectory) {
+        this.pool = pool;
+        this.memoryThreshold = memoryThreshold;
+        this.maxStoredSize = maxStoredSize;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isOmitted() {
+        return omittedDigest != null;
+    }
+
+    void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        size += len;
+        if (omittedDigest != null) {
+            omittedDigest.update(b, off, len);
+            return;
+        }
+        if (size > maxStoredSize) {
+            omit();
+            omittedDigest.update(b, off, len);
+            return;
+        }
+        if (spillStream == null && size > memoryThreshold) {
+            spill();
+        }
+        if (spillStream != null) {
+            spillStream.write(b, off, len);
+            return;
+        }
+
+        while (len > 0) {
+            if (lastChunkPosition == CaptureBufferPool.CHUNK_SIZE) {
+                chunks.add(pool.acquire());
+                lastChunkPosition = 0;
+            }
+            int n = Math.min(len, CaptureBufferPool.CHUNK_SIZE - lastChunkPosition);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastChunkPosition, n);
+            lastChunkPosition += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /*
+        Capture a buffer of a streamed (reactive) response body, the buffer itself is left unchanged.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        if (source.hasArray()) {
+            write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            return;
+        }
+        byte[] copy = new byte[Math.min(source.remaining(), CaptureBufferPool.CHUNK_SIZE)];
+        while (source.hasRemaining()) {
+            int n = Math.min(source.remaining(), copy.length);
+            source.get(copy, 0, n);
+            write(copy, 0, n);
+        }
+    }
+
+    /*
+        Return the captured body, or null when it was omitted because it exceeded the max stored size.
+     */
+    public byte[] toByteArray() throws IOException {
+        if (omittedDigest != null) {
+            return null;
+        }
+        if (spillStream != null) {
+            spillStream.flush();
+            return Files.readAllBytes(spillFile);
+        }
+        byte[] body = new byte[(int) size];
+        int position = 0;
+        for (byte[] chunk : chunks) {
+            int n = Math.min(chunk.length, body.length - position);
+            System.arraycopy(chunk, 0, body, position, n);
+            position += n;
+        }
+        return body;
+    }
+
+    /*
+        Marker stored instead of a body that exceeded the max stored size.
+     */
+    public String getOmittedMarker() {
+        if (omittedDigest == null) {
+            return null;
+        }
+        try {
+            MessageDigest digest = (MessageDigest) omittedDigest.clone();
+            return "sha-256=" + Base64.getEncoder().encodeToString(digest.digest()) + "; length=" + size;
+        } catch (CloneNotSupportedException e) {
+            return "length=" + size;
+        }
+    }
+
+    public void reset() {
+        release();
+        size = 0;
+        omittedDigest = null;
+    }
+
+    public void release() {
+        releaseChunks();
+        if (spillStream != null) {
+            try {
+                spillStream.close();
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                log.warn("Failed to delete response capture spill file {}", spillFile, e);
+            }
+            spillStream = null;
+            spillFile = null;
+        }
+    }
+
+    private void spill() throws IOException {
+        spillFile = Files.createTempFile(spillDirectory, "idempotent-response-", ".tmp");
+        spillStream = new BufferedOutputStream(Files.newOutputStream(spillFile), CaptureBufferPool.CHUNK_SIZE);
+        writeChunksTo(spillStream);
+        releaseChunks();
+    }
+
+    private void omit() throws IOException {
+        try {
+            omittedDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // digest what was captured so far, the rest is digested as it is written
+        if (spillStream != null) {
+            spillStream.flush();
+            try (InputStream in = Files.newInputStream(spillFile)) {
+                byte[] buffer = pool.acquire();
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    omittedDigest.update(buffer, 0, n);
+                }
+                pool.release(buffer);
+            }
+        } else {
+            for (int i = 0; i < chunks.size(); i++) {
+                omittedDigest.update(chunks.get(i), 0, chunkLength(i));
+            }
+        }
+        release();
+    }
+
+    private void writeChunksTo(OutputStream out) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            out.write(chunks.get(i), 0, chunkLength(i));
+        }
+    }
+
+    private int chunkLength(int index) {
+        return index == chunks.size() - 1 ? lastChunkPosition : CaptureBufferPool.CHUNK_SIZE;
+    }
+
+    private void releaseChunks() {
+        chunks.forEach(pool::release);
+        chunks.clear();
+        lastChunkPosition = CaptureBufferPool.CHUNK_SIZE;
+    }
+}
@@ -0,0 +1,118 @@
+package com.ivotasevski.idempotency.coalesce;
+
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+
+/*
+    Wakes up duplicates waiting on other nodes through Postgres LISTEN/NOTIFY.
+
+    Finalizations publish the X-Request-Id on the notify channel inside the finalizing transaction,
+    so the notification is delivered only when the response is committed.
+    Each node listens on a dedicated connection (outside the pool) and wakes up local waiters.
+ */
+@Slf4j
+@Component
+public class FinalizationNotifier implements SmartLifecycle {
+
+    private static final int POLL_TIMEOUT_MILLIS = 1000;
+
+    private final IdempotencyProperties.Coalesce properties;
+    private final DataSourceProperties dataSourceProperties;
+    private final JdbcTemplate jdbcTemplate;
+    private final InFlightRequests inFlightRequests;
+
+    private volatile boolean running;
+    private Thread listener;
+
+    public FinalizationNotifier(IdempotencyProperties properties,
+                                DataSourceProperties dataSourceProperties,
+                                JdbcTemplate jdbcTemplate,
+                                InFlightRequests inFlightRequests) {
+        this.properties = properties.getCoalesce();
+        this.dataSourceProperties = dataSourceProperties;
+        this.jdbcTemplate = jdbcTemplate;
+        this.inFlightRequests = inFlightRequests;
+    }
+
+    /*
+        Must be called inside the transaction that finalizes the records.
+     */
+    public void publish(Collection<String> xRequestIds) {
+        if (!properties.isEnabled() || xRequestIds.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement("SELECT pg_notify(?, k) FROM unnest(?) AS k");
+            ps.setString(1, properties.getNotifyChannel());
+            ps.setArray(2, con.createArrayOf("text", xRequestIds.toArray()));
+            return ps;
+        }, rs -> null);
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(
+                    dataSourceProperties.determineUrl(),
+                    dataSourceProperties.determineUsername(),
+                    dataSourceProperties.determinePassword())) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN \"" + properties.getNotifyChannel() + "\"");
+                }
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            inFlightRequests.finalized(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                log.warn("Finalization listener connection failed, reconnecting", e);
+                try {
+                    Thread.sleep(POLL_TIMEOUT_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        running = true;
+        listener = new Thread(this::listen, "IdempotencyFinalizationListener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,119 @@
+package com.ivotasevski.idempotency.coalesce;
+
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/*
+    Lets duplicates wait for the in-flight original instead of getting an immediate 202.
+
+    Requests processed on this node register a completion future, which is completed with the response
+    when it is finalized. Duplicates of requests processed on other nodes wait for the finalization
+    notification (see FinalizationNotifier) and then read the stored response.
+ */
+@Slf4j
+@Component
+public class InFlightRequests {
+
+    private final IdempotencyProperties.Coalesce properties;
+    private final Map<String, CompletableFuture<CachedResponse>> local = new ConcurrentHashMap<>();
+    private final Map<String, RemoteWaiter> remote = new ConcurrentHashMap<>();
+
+    public InFlightRequests(IdempotencyProperties properties) {
+        this.properties = properties.getCoalesce();
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    public void register(String xRequestId) {
+        if (properties.isEnabled() && xRequestId != null) {
+            local.put(xRequestId, new CompletableFuture<>());
+        }
+    }
+
+    /*
+        Complete the in-flight request; null response wakes the waiters without a replayable response.
+     */
+    public void complete(String xRequestId, CachedResponse response) {
+        if (xRequestId == null) {
+            return;
+        }
+        CompletableFuture<CachedResponse> future = local.remove(xRequestId);
+        if (future != null) {
+            future.complete(response);
+        }
+    }
+
+    public void release(String xRequestId) {
+        complete(xRequestId, null);
+    }
+
+    // called for finalization notifications from any node
+    void finalized(String xRequestId) {
+        RemoteWaiter waiter = remote.get(xRequestId);
+        if (waiter != null) {
+            waiter.future.complete(null);
+        }
+    }
+
+    /*
+        Wait up to the configured timeout for the response of the in-flight original request.
+        storedResponse reads the finalized response from the DB, it is empty while the original is still in progress.
+     */
+    public Optional<CachedResponse> await(String xRequestId, Supplier<Optional<CachedResponse>> storedResponse) {
+        if (!properties.isEnabled() || xRequestId == null) {
+            return Optional.empty();
+        }
+
+        long timeoutMillis = properties.getWaitTimeout().toMillis();
+        try {
+            CompletableFuture<CachedResponse> localFuture = local.get(xRequestId);
+            if (localFuture != null) {
+                return Optional.ofNullable(localFuture.get(timeoutMillis, TimeUnit.MILLISECONDS));
+            }
+
+            RemoteWaiter waiter = remote.compute(xRequestId, (k, w) -> {
+                RemoteWaiter registered = w != null ? w : new RemoteWaiter();
+                registered.waiting++;
+                return registered;
+            });
+            try {
+                // the original may have finished before the waiter was registered
+                Optional<CachedResponse> response = storedResponse.get();
+                if (response.isPresent()) {
+                    return response;
+                }
+                waiter.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+                return storedResponse.get();
+            } finally {
+                remote.computeIfPresent(xRequestId, (k, w) -> --w.waiting == 0 ? null : w);
+            }
+        } catch (TimeoutException e) {
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } catch (ExecutionException e) {
+            log.warn("Waiting for in-flight request {} failed", xRequestId, e);
+            return Optional.empty();
+        }
+    }
+
+    private static final class RemoteWaiter {
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private int waiting;
+    }
+}
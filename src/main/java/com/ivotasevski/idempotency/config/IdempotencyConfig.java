@@ -3,12 +3,13 @@ package com.ivotasevski.idempotency.config;
 import com.ivotasevski.idempotency.filter.IdempotentHandlingFilter;
 import jakarta.servlet.DispatcherType;
 import lombok.AllArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.support.TransactionTemplate;
@@ -16,6 +17,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 @AllArgsConstructor
 @EnableJpaAuditing
 @EnableScheduling
+@EnableConfigurationProperties(IdempotencyProperties.class)
 @Configuration
 public class IdempotencyConfig {
 
@@ -26,23 +28,16 @@ public class IdempotencyConfig {
         return transactionTemplate;
     }
 
-    @Bean
-    public FilterRegistrationBean<IdempotentHandlingFilter> idempotentFilter(IdempotentHandlingFilter filter) {
-        FilterRegistrationBean<IdempotentHandlingFilter> reg = new FilterRegistrationBean<>(filter);
-        reg.setDispatcherTypes(DispatcherType.REQUEST, DispatcherType.ERROR);
-        return reg;
-    }
+    // servlet types are only referenced here, so reactive deployments can run without the servlet API
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    static class ServletFilterConfig {
 
-    @Bean(destroyMethod = "")
-    public ThreadPoolTaskExecutor compensationExecutor() {
-        // TODO: Make properties configurable
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(5);
-        executor.setMaxPoolSize(10);
-        executor.setQueueCapacity(10);
-        executor.setThreadNamePrefix("CompensationExecutor-");
-        executor.initialize();
-        return executor;
+        @Bean
+        public FilterRegistrationBean<IdempotentHandlingFilter> idempotentFilter(IdempotentHandlingFilter filter) {
+            FilterRegistrationBean<IdempotentHandlingFilter> reg = new FilterRegistrationBean<>(filter);
+            reg.setDispatcherTypes(DispatcherType.REQUEST, DispatcherType.ERROR);
+            return reg;
+        }
     }
-
 }
@@ -0,0 +1,300 @@
+package com.ivotasevski.idempotency.config;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.fingerprint.FingerprintAlgorithm;
+import com.ivotasevski.idempotency.storage.FinalizationMode;
+import com.ivotasevski.idempotency.store.StoreType;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "idempotency")
+public class IdempotencyProperties {
+
+    private final Store store = new Store();
+    private final Policy policy = new Policy();
+    private final Lease lease = new Lease();
+    private final Endpoints endpoints = new Endpoints();
+    private final Batch batch = new Batch();
+    private final ReplayCache replayCache = new ReplayCache();
+    private final Capture capture = new Capture();
+    private final Storage storage = new Storage();
+    private final Finalization finalization = new Finalization();
+    private final Coalesce coalesce = new Coalesce();
+    private final Fingerprint fingerprint = new Fingerprint();
+    private final Partitions partitions = new Partitions();
+    private final Compensation compensation = new Compensation();
+    private final Export export = new Export();
+
+    @Getter
+    @Setter
+    public static class Store {
+
+        private StoreType type = StoreType.JPA;
+
+        // MEMORY store: number of lock stripes serializing state changes per key
+        private int stripes = 256;
+
+        private final Sharding sharding = new Sharding();
+
+        // JPA and JDBC stores: read replica serving lookups of finished records, disabled without url
+        private final Replica replica = new Replica();
+    }
+
+    @Getter
+    @Setter
+    public static class Sharding {
+
+        // SHARDED store: shard name -> database holding its gtw_idemp table
+        private Map<String, Shard> shards = new LinkedHashMap<>();
+
+        // shards X-Request-Ids are hashed onto, all configured shards when empty
+        private List<String> ring = new ArrayList<>();
+
+        // ring before the last resharding, set while migrating: records still living on their previous shard are
+        // served from there. Remove once the longest record expiration passed since the ring changed
+        private List<String> previousRing = new ArrayList<>();
+
+        // points per shard on the consistent hash ring
+        private int virtualNodes = 128;
+    }
+
+    @Getter
+    @Setter
+    public static class Shard {
+
+        private String url;
+        private String username;
+        private String password;
+        private int maxPoolSize = 10;
+    }
+
+    @Getter
+    @Setter
+    public static class Replica {
+
+        private String url;
+        private String username;
+        private String password;
+        private int maxPoolSize = 10;
+
+        // wait for a replica connection before the lookup falls back to the primary
+        private Duration connectionTimeout = Duration.ofMillis(250);
+
+        // after a failed replica read, all lookups go to the primary for this long
+        private Duration retryAfterError = Duration.ofSeconds(5);
+    }
+
+    @Getter
+    @Setter
+    public static class Policy {
+
+        // default record retention, per endpoint see @IdempotentAction(retention)
+        private Duration retention = Duration.ofDays(7);
+    }
+
+    @Getter
+    @Setter
+    public static class Lease {
+
+        // processing lock of a claimed request, renewed while the request runs on this node;
+        // records of crashed nodes can be taken over once it lapses
+        private Duration duration = Duration.ofSeconds(15);
+
+        // leases of all in-flight requests are renewed together every renew-interval, batch-size keys per UPDATE
+        private Duration renewInterval = Duration.ofSeconds(5);
+        private int renewBatchSize = 500;
+    }
+
+    @Getter
+    @Setter
+    public static class Endpoints {
+
+        // max number of resolved request URIs kept by the endpoint registry
+        private int resolvedPathCacheSize = 10_000;
+    }
+
+    @Getter
+    @Setter
+    public static class Batch {
+
+        // field of each batch item holding its idempotency key
+        private String keyField = "idempotencyKey";
+
+        // larger batch requests are rejected with 400
+        private int maxItems = 1000;
+    }
+
+    @Getter
+    @Setter
+    public static class ReplayCache {
+
+        private boolean enabled = true;
+
+        // total size of cached response bodies and headers
+        private DataSize maxWeight = DataSize.ofMegabytes(64);
+
+        // upper bound for how long a finished response is kept, regardless of its expiredAt
+        private Duration ttl = Duration.ofMinutes(10);
+    }
+
+    @Getter
+    @Setter
+    public static class Capture {
+
+        // captured response bytes kept on the heap before spilling to a temp file
+        private DataSize memoryThreshold = DataSize.ofKilobytes(64);
+
+        // bodies larger than this are not stored, only their length and SHA-256 digest
+        private DataSize maxStoredBodySize = DataSize.ofMegabytes(1);
+
+        private Path spillDirectory = Path.of(System.getProperty("java.io.tmpdir"));
+
+        // max number of idle 8KB capture chunks kept for reuse
+        private int maxPooledChunks = 1024;
+    }
+
+    @Getter
+    @Setter
+    public static class Storage {
+
+        // deflate stored bodies (with a preset dictionary) from this size on
+        private boolean compressBodies = false;
+        private DataSize compressionThreshold = DataSize.ofBytes(512);
+
+        // store each distinct response header set once, referenced by hash
+        private boolean internHeaders = false;
+
+        // interned header sets no record references are deleted once not interned for this long (PartitionMaintenanceJob)
+        private Duration headerSetsGrace = Duration.ofDays(1);
+
+        // store (not interned) header sets as binary header blocks instead of jsonb, replayed without JSON parsing
+        private boolean headerBlocks = true;
+    }
+
+    @Getter
+    @Setter
+    public static class Finalization {
+
+        private FinalizationMode mode = FinalizationMode.SYNC;
+
+        // ASYNC mode: queued responses are written every batch-size records or flush-interval
+        private int queueCapacity = 10_000;
+        private int batchSize = 200;
+        private Duration flushInterval = Duration.ofMillis(50);
+        // wait before a failed batch is written again, doubled per failed attempt
+        private Duration flushRetryBackoff = Duration.ofMillis(100);
+        private Duration shutdownFlushTimeout = Duration.ofSeconds(30);
+    }
+
+    @Getter
+    @Setter
+    public static class Coalesce {
+
+        // duplicates of in-flight requests wait for the original response instead of getting 202
+        private boolean enabled = false;
+        private Duration waitTimeout = Duration.ofSeconds(10);
+
+        // Postgres channel used to wake up duplicates waiting on other nodes
+        private String notifyChannel = "gtw_idemp_finalized";
+    }
+
+    @Getter
+    @Setter
+    public static class Fingerprint {
+
+        // duplicates with a different fingerprint than the original are rejected with 422
+        private FingerprintAlgorithm algorithm = FingerprintAlgorithm.SHA_256;
+    }
+
+    @Getter
+    @Setter
+    public static class Partitions {
+
+        private boolean enabled = true;
+
+        // daily gtw_idemp partitions created ahead, must cover the longest record retention (checked at startup)
+        private int lookaheadDays = 14;
+
+        // partitions are dropped this many days after all their records expired
+        private int dropGraceDays = 1;
+
+        // wait for the lock on gtw_idemp when detaching a partition next to the default partition, retried next run
+        private Duration detachLockTimeout = Duration.ofSeconds(2);
+    }
+
+    @Getter
+    @Setter
+    public static class Compensation {
+
+        private boolean enabled = true;
+
+        // records claimed per batch (FOR UPDATE SKIP LOCKED), and max batches per phase and job run
+        private int batchSize = 100;
+        private int maxBatchesPerRun = 10;
+
+        // max handlers running at once per action, claiming blocks while all permits of the action are taken
+        private int maxConcurrency = 10;
+
+        // run handlers on virtual threads instead of a thread pool (of max-concurrency threads) per action
+        private boolean virtualThreads = false;
+
+        // IN_PROGRESS records whose lock expired this long ago are compensated
+        private Duration stuckInProgressAfter = Duration.ofMinutes(1);
+
+        // UNDEFINED records not retried by the client within this time are compensated
+        private Duration undefinedAfter = Duration.ofMinutes(5);
+
+        // delay before (re)trying PENDING_COMPENSATION records
+        private Duration retryDelay = Duration.ofSeconds(30);
+
+        // IN_COMPENSATION records not finished within this time (e.g. node crashed) are reset to PENDING_COMPENSATION
+        private Duration compensationTimeout = Duration.ofMinutes(5);
+
+        // per action bulkhead limits, actions not listed use max-concurrency and no rate limit
+        private Map<Action, ActionLimits> actions = new EnumMap<>(Action.class);
+
+        public ActionLimits limitsOf(Action action) {
+            return actions.getOrDefault(action, new ActionLimits());
+        }
+    }
+
+    @Getter
+    @Setter
+    public static class ActionLimits {
+
+        // max handler calls of the action running at once, defaults to compensation.max-concurrency
+        private Integer maxConcurrency;
+
+        // max handler calls of the action started per second, 0 is unlimited
+        private double maxCallsPerSecond = 0;
+    }
+
+    @Getter
+    @Setter
+    public static class Export {
+
+        // admin export and count endpoints (/admin/idempotency), off by default, they expose stored responses
+        private boolean enabled = false;
+
+        // shared secret admin clients send as "Authorization: Bearer <token>", required when enabled
+        private String token;
+
+        // rows fetched per round trip by the export cursor
+        private int fetchSize = 1000;
+
+        // longest created-at range of one export or count request
+        private Duration maxRange = Duration.ofDays(31);
+    }
+}
@@ -0,0 +1,19 @@
+package com.ivotasevski.idempotency.domain;
+
+import com.ivotasevski.idempotency.action.Action;
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+@Converter
+public class ActionConverter implements AttributeConverter<Action, Short> {
+
+    @Override
+    public Short convertToDatabaseColumn(Action action) {
+        return action != null ? action.getCode() : null;
+    }
+
+    @Override
+    public Action convertToEntityAttribute(Short code) {
+        return code != null ? Action.fromCode(code) : null;
+    }
+}
@@ -0,0 +1,7 @@
+package com.ivotasevski.idempotency.domain;
+
+public enum BodyEncoding {
+    IDENTITY,
+    // deflate (zlib) with the built-in v1 preset dictionary, see ResponseBodyCodec
+    DEFLATE_DICT_V1
+}
@@ -0,0 +1,10 @@
+package com.ivotasevski.idempotency.domain;
+
+public enum ClaimOutcome {
+    // new record was inserted for the key
+    CREATED,
+    // UNDEFINED record, or IN_PROGRESS record with an expired lock, was taken over
+    TAKEN_OVER,
+    // record exists and is owned by another request (or already finished)
+    EXISTING
+}
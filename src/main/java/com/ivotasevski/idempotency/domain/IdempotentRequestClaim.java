@@ -0,0 +1,14 @@
+package com.ivotasevski.idempotency.domain;
+
+public interface IdempotentRequestClaim {
+
+    // claimAll only
+    String getXRequestId();
+
+    ClaimOutcome getOutcome();
+
+    // IdempotentRequestStatus code
+    Short getStatus();
+
+    String getRequestHash();
+}
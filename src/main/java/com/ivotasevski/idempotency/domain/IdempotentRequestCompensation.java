@@ -0,0 +1,13 @@
+package com.ivotasevski.idempotency.domain;
+
+public interface IdempotentRequestCompensation {
+
+    String getIdempotentKey();
+
+    // Action code
+    Short getAction();
+
+    String getTrxId();
+
+    Long getWaitingMillis();
+}
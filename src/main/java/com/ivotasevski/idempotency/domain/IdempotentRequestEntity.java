@@ -14,29 +14,36 @@ import java.time.Instant;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 @Entity
 @Table(name = "gtw_idemp")
 @Getter
 @Setter
 @EntityListeners(AuditingEntityListener.class)
+@IdClass(IdempotentRequestId.class)
 public class IdempotentRequestEntity {
 
+    // gtw_idemp_key(x_request_id), records are only inserted by gtw_idemp_claim
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
-    private Long id;
+    @Column(name = "key_hash", nullable = false, updatable = false)
+    private UUID keyHash;
+
+    @Id
+    @Column(name = "expired_at")
+    private Instant expiredAt;
 
     @Column(name = "x_request_id", nullable = false)
     private String xRequestId;
 
     @Column(name = "trx_id", nullable = false)
-    private String trxId;
+    private UUID trxId;
 
-    @Enumerated(EnumType.STRING)
+    @Convert(converter = IdempotentRequestStatusConverter.class)
     @Column(name = "status")
     private IdempotentRequestStatus status;
 
-    @Enumerated(EnumType.STRING)
+    @Convert(converter = ActionConverter.class)
     @Column(name = "idempotent_action")
     private Action idempotentAction;
 
@@ -52,9 +59,6 @@ public class IdempotentRequestEntity {
     @Column(name = "updated_at")
     private Instant updatedAt;
 
-    @Column(name = "expired_at")
-    private Instant expiredAt;
-
     @Column(name = "lock_deadline")
     private Instant lockDeadline;
 
@@ -67,7 +71,20 @@ public class IdempotentRequestEntity {
     @Column(name = "response_body")
     private byte[] responseBody;
 
+    // null for bodies stored as is
+    @Enumerated(EnumType.STRING)
+    @Column(name = "body_encoding")
+    private BodyEncoding bodyEncoding;
+
     @JdbcTypeCode(SqlTypes.JSON)
     @Column(name = "response_headers", columnDefinition = "jsonb")
     private Map<String, List<String>> responseHeaders = new LinkedHashMap<>();
+
+    // set instead of responseHeaders when headers are interned in gtw_idemp_headers
+    @Column(name = "response_headers_hash")
+    private String responseHeadersHash;
+
+    // set instead of responseHeaders when headers are stored as a binary block (see HeaderBlock)
+    @Column(name = "response_header_block")
+    private byte[] responseHeaderBlock;
 }
@@ -0,0 +1,26 @@
+package com.ivotasevski.idempotency.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.UUID;
+
+/*
+    Primary key of gtw_idemp: the hashed key plus the partition key.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@EqualsAndHashCode
+public class IdempotentRequestId implements Serializable {
+
+    private UUID keyHash;
+
+    private Instant expiredAt;
+}
@@ -1,10 +1,64 @@
 package com.ivotasevski.idempotency.domain;
 
 public enum IdempotentRequestStatus {
-    IN_PROGRESS,
-    UNDEFINED,
-    SUCCESS,
-    FAILURE,
-    PENDING_COMPENSATION,
-    IN_COMPENSATION
+    IN_PROGRESS(Codes.IN_PROGRESS),
+    UNDEFINED(Codes.UNDEFINED),
+    SUCCESS(Codes.SUCCESS),
+    FAILURE(Codes.FAILURE),
+    PENDING_COMPENSATION(Codes.PENDING_COMPENSATION),
+    IN_COMPENSATION(Codes.IN_COMPENSATION);
+
+    private static final IdempotentRequestStatus[] BY_CODE = new IdempotentRequestStatus[Codes.IN_COMPENSATION + 1];
+
+    static {
+        for (IdempotentRequestStatus status : values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
+
+    private final short code;
+
+    IdempotentRequestStatus(short code) {
+        this.code = code;
+    }
+
+    // stored in gtw_idemp.status
+    public short getCode() {
+        return code;
+    }
+
+    public static IdempotentRequestStatus fromCode(int code) {
+        if (code <= 0 || code >= BY_CODE.length || BY_CODE[code] == null) {
+            throw new IllegalArgumentException("Unknown status code " + code);
+        }
+        return BY_CODE[code];
+    }
+
+    /*
+        Status of a finished request by its response code: 2xx SUCCESS, 4xx PENDING_COMPENSATION, otherwise UNDEFINED.
+     */
+    public static IdempotentRequestStatus fromResponseCode(int responseCode) {
+        if (responseCode >= 200 && responseCode < 300) {
+            return SUCCESS;
+        } else if (responseCode >= 400 && responseCode < 500) {
+            return PENDING_COMPENSATION;
+        }
+        return UNDEFINED;
+    }
+
+    /*
+        Stored codes, constants so native queries can use them (must match the migrations, never renumber).
+     */
+    public static final class Codes {
+
+        public static final short IN_PROGRESS = 1;
+        public static final short UNDEFINED = 2;
+        public static final short SUCCESS = 3;
+        public static final short FAILURE = 4;
+        public static final short PENDING_COMPENSATION = 5;
+        public static final short IN_COMPENSATION = 6;
+
+        private Codes() {
+        }
+    }
 }
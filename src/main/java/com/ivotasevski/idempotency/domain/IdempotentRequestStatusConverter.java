@@ -0,0 +1,18 @@
+package com.ivotasevski.idempotency.domain;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+@Converter
+public class IdempotentRequestStatusConverter implements AttributeConverter<IdempotentRequestStatus, Short> {
+
+    @Override
+    public Short convertToDatabaseColumn(IdempotentRequestStatus status) {
+        return status != null ? status.getCode() : null;
+    }
+
+    @Override
+    public IdempotentRequestStatus convertToEntityAttribute(Short code) {
+        return code != null ? IdempotentRequestStatus.fromCode(code) : null;
+    }
+}
@@ -0,0 +1,32 @@
+package com.ivotasevski.idempotency.domain;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+@Entity
+@Table(name = "gtw_idemp_headers")
+@Getter
+@Setter
+public class ResponseHeadersEntity {
+
+    @Id
+    @Column(name = "hash")
+    private String hash;
+
+    @JdbcTypeCode(SqlTypes.JSON)
+    @Column(name = "headers", columnDefinition = "jsonb")
+    private Map<String, List<String>> headers;
+
+    @Column(name = "created_at")
+    private Instant createdAt;
+}
@@ -7,10 +7,12 @@ import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -26,6 +28,13 @@ public class ExampleController {
         return Map.of("idempotentAction", UUID.randomUUID().toString());
     }
 
+    // clients of this endpoint only need the outcome: no body stored, kept for a day
+    @PostMapping("/2xx/status-only")
+    @IdempotentAction(action = Action.PAYMENT, storeBody = false, retention = "1d", storedHeaders = "Content-Type")
+    public Map<String, Object> successStatusOnly() {
+        return Map.of("idempotentAction", UUID.randomUUID().toString());
+    }
+
     @SneakyThrows
     @PostMapping("/2xx/long")
     @IdempotentAction(action = Action.PAYMENT)
@@ -47,6 +56,14 @@ public class ExampleController {
         throw new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Gateway Timeout");
     }
 
+    @PostMapping("/batch")
+    @IdempotentAction(action = Action.PAYMENT, batch = true)
+    public List<Map<String, Object>> batch(@RequestBody List<Map<String, Object>> items) {
+        return items.stream()
+                .map(item -> Map.of("idempotencyKey", item.get("idempotencyKey"), "idempotentAction", UUID.randomUUID().toString()))
+                .toList();
+    }
+
     // this endpoint should not go through the filter as it is not annotated
     @PostMapping("/non-idempotent")
     public Map<String, Object> nonIdempotent() {
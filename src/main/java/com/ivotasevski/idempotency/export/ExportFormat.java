@@ -0,0 +1,19 @@
+package com.ivotasevski.idempotency.export;
+
+public enum ExportFormat {
+
+    // one JSON object per line
+    NDJSON("application/x-ndjson"),
+    // RFC 4180, header row first
+    CSV("text/csv");
+
+    private final String contentType;
+
+    ExportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+}
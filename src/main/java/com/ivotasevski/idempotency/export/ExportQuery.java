@@ -0,0 +1,18 @@
+package com.ivotasevski.idempotency.export;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
+import java.time.Instant;
+import java.util.Set;
+
+/*
+    Filter of an export: records created in [from, to), of any of the statuses and actions (empty sets match all).
+    Stored response bodies are only exported with includeBody.
+ */
+public record ExportQuery(Instant from,
+                          Instant to,
+                          Set<IdempotentRequestStatus> statuses,
+                          Set<Action> actions,
+                          boolean includeBody) {
+}
@@ -0,0 +1,136 @@
+package com.ivotasevski.idempotency.export;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/*
+    Writes exported records one by one, nothing is held beyond the current row. Response bodies are Base64 encoded,
+    instants are ISO-8601.
+ */
+abstract class ExportWriter implements AutoCloseable {
+
+    static final List<String> COLUMNS = List.of("x_request_id", "trx_id", "status", "idempotent_action",
+            "created_at", "updated_at", "expired_at", "request_hash", "response_code", "response_body");
+
+    static ExportWriter of(ExportFormat format, OutputStream out, ObjectMapper objectMapper, boolean includeBody) throws IOException {
+        return switch (format) {
+            case NDJSON -> new NdjsonWriter(objectMapper.getFactory().createGenerator(out), includeBody);
+            case CSV -> new CsvWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), includeBody);
+        };
+    }
+
+    abstract void write(ExportedRecord record) throws IOException;
+
+    private static String text(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    private static final class NdjsonWriter extends ExportWriter {
+
+        private final JsonGenerator generator;
+        private final boolean includeBody;
+
+        private NdjsonWriter(JsonGenerator generator, boolean includeBody) {
+            this.generator = generator;
+            this.includeBody = includeBody;
+            // every object ends its own line, no separator between root values
+            generator.setRootValueSeparator(new SerializedString(""));
+        }
+
+        @Override
+        void write(ExportedRecord record) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("x_request_id", record.xRequestId());
+            generator.writeStringField("trx_id", record.trxId());
+            generator.writeStringField("status", text(record.status()));
+            generator.writeStringField("idempotent_action", text(record.action()));
+            generator.writeStringField("created_at", text(record.createdAt()));
+            generator.writeStringField("updated_at", text(record.updatedAt()));
+            generator.writeStringField("expired_at", text(record.expiredAt()));
+            generator.writeStringField("request_hash", record.requestHash());
+            if (record.responseCode() != null) {
+                generator.writeNumberField("response_code", record.responseCode());
+            } else {
+                generator.writeNullField("response_code");
+            }
+            if (includeBody) {
+                generator.writeStringField("response_body",
+                        record.responseBody() != null ? Base64.getEncoder().encodeToString(record.responseBody()) : null);
+            }
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+    }
+
+    private static final class CsvWriter extends ExportWriter {
+
+        private final Writer writer;
+        private final boolean includeBody;
+
+        private CsvWriter(Writer writer, boolean includeBody) throws IOException {
+            this.writer = writer;
+            this.includeBody = includeBody;
+            writeRow(includeBody ? COLUMNS : COLUMNS.subList(0, COLUMNS.size() - 1));
+        }
+
+        @Override
+        void write(ExportedRecord record) throws IOException {
+            List<String> values = new ArrayList<>(COLUMNS.size());
+            values.add(record.xRequestId());
+            values.add(record.trxId());
+            values.add(text(record.status()));
+            values.add(text(record.action()));
+            values.add(text(record.createdAt()));
+            values.add(text(record.updatedAt()));
+            values.add(text(record.expiredAt()));
+            values.add(record.requestHash());
+            values.add(text(record.responseCode()));
+            if (includeBody) {
+                values.add(record.responseBody() != null ? Base64.getEncoder().encodeToString(record.responseBody()) : null);
+            }
+            writeRow(values);
+        }
+
+        private void writeRow(List<String> values) throws IOException {
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(escape(values.get(i)));
+            }
+            writer.write("\r\n");
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    // nulls are empty fields, fields with separators, quotes or line breaks are quoted (RFC 4180)
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
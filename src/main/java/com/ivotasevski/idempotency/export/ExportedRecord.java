@@ -0,0 +1,21 @@
+package com.ivotasevski.idempotency.export;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
+import java.time.Instant;
+
+/*
+    One exported gtw_idemp row, responseBody decoded (null unless requested or when nothing was stored).
+ */
+record ExportedRecord(String xRequestId,
+                      String trxId,
+                      IdempotentRequestStatus status,
+                      Action action,
+                      Instant createdAt,
+                      Instant updatedAt,
+                      Instant expiredAt,
+                      String requestHash,
+                      Integer responseCode,
+                      byte[] responseBody) {
+}
@@ -0,0 +1,110 @@
+package com.ivotasevski.idempotency.export;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+/*
+    Admin reads for audits and reconciliation, records created in [from, to) (default: the last day):
+    - GET /admin/idempotency/export?status=&action=&format=NDJSON|CSV&includeBody=false streams the records,
+    - GET /admin/idempotency/counts returns the number of records per status and action.
+    Enabled with idempotency.export.enabled, and only together with idempotency.export.token: the endpoints are
+    served on the application port, every request must carry the token ("Authorization: Bearer <token>").
+ */
+@RestController
+@RequestMapping("/admin/idempotency")
+@ConditionalOnProperty(prefix = "idempotency.export", name = "enabled", havingValue = "true")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class IdempotencyExportController {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final IdempotencyExporter idempotencyExporter;
+    private final IdempotencyProperties properties;
+    private final byte[] token;
+
+    public IdempotencyExportController(IdempotencyExporter idempotencyExporter, IdempotencyProperties properties) {
+        String token = properties.getExport().getToken();
+        if (token == null || token.isBlank()) {
+            throw new IllegalStateException("idempotency.export.enabled requires idempotency.export.token, "
+                    + "the export endpoints would serve stored responses without authentication");
+        }
+        this.idempotencyExporter = idempotencyExporter;
+        this.properties = properties;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(
+            @RequestHeader(name = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+            @RequestParam(name = "status", required = false) Set<IdempotentRequestStatus> statuses,
+            @RequestParam(name = "action", required = false) Set<Action> actions,
+            @RequestParam(defaultValue = "NDJSON") ExportFormat format,
+            @RequestParam(defaultValue = "false") boolean includeBody) {
+        authorize(authorization);
+        Instant end = to != null ? to : Instant.now();
+        Instant start = from != null ? from : end.minus(Duration.ofDays(1));
+        checkRange(start, end);
+        ExportQuery query = new ExportQuery(start, end,
+                statuses != null ? statuses : Set.of(), actions != null ? actions : Set.of(), includeBody);
+
+        String filename = "gtw_idemp-" + start + "-" + end + "." + format.name().toLowerCase();
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(format.getContentType()))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename.replace(':', '-') + "\"")
+                .body(out -> idempotencyExporter.export(query, format, out));
+    }
+
+    @GetMapping("/counts")
+    public List<StatusActionCount> counts(
+            @RequestHeader(name = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to) {
+        authorize(authorization);
+        Instant end = to != null ? to : Instant.now();
+        Instant start = from != null ? from : end.minus(Duration.ofDays(1));
+        checkRange(start, end);
+        return idempotencyExporter.count(start, end);
+    }
+
+    private void authorize(String authorization) {
+        // constant time comparison, the token is not guessable byte by byte from response times
+        if (authorization == null || !authorization.startsWith(BEARER_PREFIX) || !MessageDigest.isEqual(token,
+                authorization.substring(BEARER_PREFIX.length()).getBytes(StandardCharsets.UTF_8))) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Missing or invalid export token");
+        }
+    }
+
+    private void checkRange(Instant from, Instant to) {
+        if (!from.isBefore(to)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must be before to");
+        }
+        Duration maxRange = properties.getExport().getMaxRange();
+        if (Duration.between(from, to).compareTo(maxRange) > 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Range longer than " + maxRange);
+        }
+    }
+}
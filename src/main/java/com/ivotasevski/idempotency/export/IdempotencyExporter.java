@@ -0,0 +1,171 @@
+package com.ivotasevski.idempotency.export;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.BodyEncoding;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.ResponseBodyCodec;
+import com.ivotasevski.idempotency.store.IdempotencyShard;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import com.ivotasevski.idempotency.store.ReplicaRoutingIdempotencyStore;
+import com.ivotasevski.idempotency.store.ShardedIdempotencyStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+/*
+    Audit and reconciliation reads over gtw_idemp, outside the persistence context.
+
+    Exports stream the matching rows through a server-side cursor: a read-only transaction with fetch-size rows
+    per round trip, each row written out before the next is read, so memory stays constant however many rows match.
+    response_body is only selected when asked for. Counts per status and action are an index only scan of
+    idx_gtw_idemp_created_status_action over the created-at range.
+    The SHARDED store is read shard by shard, with a replica (idempotency.store.replica) the replica is read instead
+    of the primary. Records of the in-memory store are not in the database and are not exported.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "idempotency.export", name = "enabled", havingValue = "true")
+public class IdempotencyExporter {
+
+    private static final String EXPORT_SQL = "SELECT x_request_id, CAST(trx_id AS VARCHAR) AS trx_id, status, " +
+            "idempotent_action, created_at, updated_at, expired_at, request_hash, response_code%s " +
+            "FROM gtw_idemp WHERE created_at >= ? AND created_at < ? AND expired_at > now()%s " +
+            "ORDER BY created_at";
+    private static final String COUNT_SQL = "SELECT status, idempotent_action, count(*) AS records " +
+            "FROM gtw_idemp WHERE created_at >= ? AND created_at < ? AND expired_at > now() " +
+            "GROUP BY status, idempotent_action";
+
+    private final ResponseBodyCodec responseBodyCodec;
+    private final ObjectMapper objectMapper;
+    private final List<ExportSource> sources = new ArrayList<>();
+
+    public IdempotencyExporter(IdempotencyProperties properties,
+                               DataSource dataSource,
+                               IdempotencyStore idempotencyStore,
+                               ResponseBodyCodec responseBodyCodec,
+                               ObjectMapper objectMapper) {
+        this.responseBodyCodec = responseBodyCodec;
+        this.objectMapper = objectMapper;
+        int fetchSize = properties.getExport().getFetchSize();
+        if (idempotencyStore instanceof ShardedIdempotencyStore sharded) {
+            for (IdempotencyShard shard : sharded.shards()) {
+                sources.add(ExportSource.of(shard.name(), shard.dataSource(), fetchSize));
+            }
+        } else if (idempotencyStore instanceof ReplicaRoutingIdempotencyStore routed) {
+            sources.add(ExportSource.of("replica", routed.replicaDataSource(), fetchSize));
+        } else {
+            sources.add(ExportSource.of("primary", dataSource, fetchSize));
+        }
+    }
+
+    public void export(ExportQuery query, ExportFormat format, OutputStream out) throws IOException {
+        String sql = EXPORT_SQL.formatted(
+                query.includeBody() ? ", body_encoding, response_body" : "",
+                codes(" AND status IN ", query.statuses(), IdempotentRequestStatus::getCode)
+                        + codes(" AND idempotent_action IN ", query.actions(), Action::getCode));
+        try (ExportWriter writer = ExportWriter.of(format, out, objectMapper, query.includeBody())) {
+            for (ExportSource source : sources) {
+                long rows = source.readOnly().execute(tx -> {
+                    long[] count = {0};
+                    source.jdbcTemplate().query(sql, rs -> {
+                        write(writer, toRecord(rs, query.includeBody()));
+                        count[0]++;
+                    }, Timestamp.from(query.from()), Timestamp.from(query.to()));
+                    return count[0];
+                });
+                log.info("Exported {} idempotent requests from {} ({} - {})", rows, source.name(), query.from(), query.to());
+            }
+        } catch (UncheckedIOException e) {
+            // client went away, the cursor is closed with the transaction
+            throw e.getCause();
+        }
+    }
+
+    public List<StatusActionCount> count(Instant from, Instant to) {
+        Map<IdempotentRequestStatus, Map<Action, Long>> counts = new LinkedHashMap<>();
+        for (ExportSource source : sources) {
+            source.readOnly().executeWithoutResult(tx -> source.jdbcTemplate().query(COUNT_SQL, rs -> {
+                IdempotentRequestStatus status = IdempotentRequestStatus.fromCode(rs.getShort("status"));
+                Action action = Action.fromCode(rs.getShort("idempotent_action"));
+                counts.computeIfAbsent(status, s -> new LinkedHashMap<>()).merge(action, rs.getLong("records"), Long::sum);
+            }, Timestamp.from(from), Timestamp.from(to)));
+        }
+        return counts.entrySet().stream()
+                .flatMap(byStatus -> byStatus.getValue().entrySet().stream()
+                        .map(byAction -> new StatusActionCount(byStatus.getKey(), byAction.getKey(), byAction.getValue())))
+                .sorted(Comparator.comparing(StatusActionCount::status).thenComparing(StatusActionCount::action))
+                .toList();
+    }
+
+    private ExportedRecord toRecord(ResultSet rs, boolean includeBody) throws SQLException {
+        byte[] responseBody = null;
+        if (includeBody) {
+            String bodyEncoding = rs.getString("body_encoding");
+            responseBody = responseBodyCodec.decode(bodyEncoding != null ? BodyEncoding.valueOf(bodyEncoding) : null,
+                    rs.getBytes("response_body"));
+        }
+        return new ExportedRecord(
+                rs.getString("x_request_id"),
+                rs.getString("trx_id"),
+                IdempotentRequestStatus.fromCode(rs.getShort("status")),
+                Action.fromCode(rs.getShort("idempotent_action")),
+                rs.getTimestamp("created_at").toInstant(),
+                rs.getTimestamp("updated_at").toInstant(),
+                rs.getTimestamp("expired_at").toInstant(),
+                rs.getString("request_hash"),
+                rs.getObject("response_code", Integer.class),
+                responseBody);
+    }
+
+    private static void write(ExportWriter writer, ExportedRecord record) {
+        try {
+            writer.write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // codes are generated from the enums, never from request input, and can be inlined
+    private static <T> String codes(String condition, Collection<T> values, ToIntFunction<T> code) {
+        if (values == null || values.isEmpty()) {
+            return "";
+        }
+        return values.stream()
+                .map(v -> String.valueOf(code.applyAsInt(v)))
+                .collect(Collectors.joining(", ", condition + "(", ")"));
+    }
+
+    private record ExportSource(String name, JdbcTemplate jdbcTemplate, TransactionTemplate readOnly) {
+
+        static ExportSource of(String name, DataSource dataSource, int fetchSize) {
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            // with autocommit off, the Postgres driver reads through a cursor fetchSize rows at a time
+            jdbcTemplate.setFetchSize(fetchSize);
+            TransactionTemplate readOnly = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+            readOnly.setReadOnly(true);
+            return new ExportSource(name, jdbcTemplate, readOnly);
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.ivotasevski.idempotency.export;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
+public record StatusActionCount(IdempotentRequestStatus status, Action action, long count) {
+}
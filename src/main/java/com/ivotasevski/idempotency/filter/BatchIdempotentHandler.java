@@ -0,0 +1,336 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.cache.ReplayCache;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.fingerprint.FingerprintAlgorithm;
+import com.ivotasevski.idempotency.fingerprint.FingerprintingRequestWrapper.BufferedServletInputStream;
+import com.ivotasevski.idempotency.lease.LeaseRenewer;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics.ReplaySource;
+import com.ivotasevski.idempotency.storage.FinalizedResponse;
+import com.ivotasevski.idempotency.storage.ResponseFinalizer;
+import com.ivotasevski.idempotency.storage.ResponseStorage;
+import com.ivotasevski.idempotency.store.ClaimResult;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import com.ivotasevski.idempotency.store.StoredRequest;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+    Handles requests of batch endpoints (@IdempotentAction(batch = true)): the body is a JSON array of items,
+    each with its own idempotency key in batch.key-field.
+
+    Keys are looked up in the replay cache and the rest are claimed together in one statement (claimAll).
+    Items finished before are replayed from one read of their stored responses. Items still running (or UNDEFINED),
+    items whose key was used for a different payload and items compensated before they stored a response get a
+    status marker, and only newly claimed items are passed to the controller. Its result array is split into one
+    stored response per item, all written in one batch, and the client gets the results of all items in the order
+    it sent them.
+    A controller answering with an error, or with a result array not matching its items, is passed through to the
+    client and stored for each of its items as a whole.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class BatchIdempotentHandler {
+
+    private static final String STATUS_FIELD = "idempotencyStatus";
+    private static final String RESPONSE_CODE_FIELD = "responseCode";
+    private static final Map<String, List<String>> RESULT_HEADERS = Map.of("Content-Type", List.of(MediaType.APPLICATION_JSON_VALUE));
+
+    private final IdempotencyStore idempotencyStore;
+    private final ReplayCache replayCache;
+    private final ResponseStorage responseStorage;
+    private final ResponseFinalizer responseFinalizer;
+    private final LeaseRenewer leaseRenewer;
+    private final IdempotencyProperties properties;
+    private final IdempotencyMetrics idempotencyMetrics;
+    private final ObjectMapper objectMapper;
+
+    public void handle(IdempotentEndpoint endpoint, HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        Action action = endpoint.action();
+        String keyField = properties.getBatch().getKeyField();
+        List<Item> items = readItems(request, keyField);
+        if (items == null) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "Expected a JSON array of at most "
+                    + properties.getBatch().getMaxItems() + " objects with distinct " + keyField + " values");
+            return;
+        }
+
+        // item key -> JSON result of the item
+        Map<String, byte[]> results = new HashMap<>();
+        Map<String, String> unresolved = new LinkedHashMap<>();
+        for (Item item : items) {
+            Optional<CachedResponse> cached = replayCache.get(item.key()).or(() -> responseFinalizer.findPending(item.key()));
+            if (cached.isPresent()) {
+                results.put(item.key(), replayed(action, item, cached.get(), ReplaySource.CACHE));
+            } else {
+                unresolved.put(item.key(), item.requestHash());
+            }
+        }
+
+        Map<String, ClaimResult> claims = idempotencyStore.claimAll(
+                unresolved,
+                action,
+                endpoint.retention(),
+                endpoint.lockLease(),
+                endpoint.lockLease());
+        List<Item> claimed = new ArrayList<>();
+        Map<String, Item> finished = new HashMap<>();
+        for (Item item : items) {
+            ClaimResult claim = claims.get(item.key());
+            if (claim == null) {
+                continue;
+            }
+            if (FingerprintAlgorithm.isMismatch(claim.requestHash(), item.requestHash())) {
+                results.put(item.key(), marker(item, "MISMATCH", null));
+            } else if (claim.outcome() != ClaimOutcome.EXISTING) {
+                claimed.add(item);
+                leaseRenewer.acquire(item.key(), claim.leaseId(), endpoint.lockLease());
+            } else if (claim.status() == IdempotentRequestStatus.IN_PROGRESS || claim.status() == IdempotentRequestStatus.UNDEFINED) {
+                results.put(item.key(), marker(item, claim.status().name(), null));
+            } else {
+                finished.put(item.key(), item);
+            }
+        }
+
+        for (StoredRequest stored : idempotencyStore.findAll(finished.keySet())) {
+            Optional<CachedResponse> storedResponse = responseStorage.read(stored);
+            if (storedResponse.isEmpty()) {
+                // compensated before the original request stored a response
+                results.put(stored.xRequestId(), marker(finished.get(stored.xRequestId()), stored.status().name(), null));
+                continue;
+            }
+            replayCache.put(stored.xRequestId(), storedResponse.get());
+            results.put(stored.xRequestId(), replayed(action, finished.get(stored.xRequestId()), storedResponse.get(), ReplaySource.STORE));
+        }
+
+        if (!claimed.isEmpty()) {
+            try {
+                if (!execute(endpoint, request, response, chain, claimed, claims, results)) {
+                    return;
+                }
+            } finally {
+                // items that never reached the finalizer, it releases the leases of the others
+                claimed.forEach(item -> leaseRenewer.release(item.key(), claims.get(item.key()).leaseId()));
+            }
+        }
+        writeResults(response, items, results);
+    }
+
+    /*
+        Pass the claimed items to the controller and store their results, each under the lease of its claim.
+        Returns false when the controller response was passed through to the client.
+        Results larger than the max stored body size of the endpoint are stored without their body, replays of such
+        items get a status marker.
+     */
+    private boolean execute(IdempotentEndpoint endpoint, HttpServletRequest request, HttpServletResponse response, FilterChain chain,
+                            List<Item> claimed, Map<String, ClaimResult> claims, Map<String, byte[]> results)
+            throws IOException, ServletException {
+        Action action = endpoint.action();
+        ArrayNode body = objectMapper.createArrayNode();
+        claimed.forEach(item -> body.add(item.node()));
+        var controllerResponse = new ContentCachingResponseWrapper(response);
+        try {
+            chain.doFilter(new BatchRequestWrapper(request, objectMapper.writeValueAsBytes(body)), controllerResponse);
+        } catch (IOException | ServletException | RuntimeException e) {
+            // outcome unknown, the items can be retried
+            store(endpoint, claimed, claims, HttpStatus.INTERNAL_SERVER_ERROR.value(), null, Map.of(), IdempotentRequestStatus.UNDEFINED);
+            throw e;
+        }
+
+        int status = controllerResponse.getStatus();
+        byte[] content = controllerResponse.getContentAsByteArray();
+        List<byte[]> itemResults = HttpStatusCode.valueOf(status).is2xxSuccessful() && !response.isCommitted()
+                ? splitResults(content, claimed.size())
+                : null;
+        if (itemResults == null) {
+            IdempotentRequestStatus stored = endpoint.status(status);
+            if (stored == IdempotentRequestStatus.SUCCESS) {
+                log.warn("Batch {} of {} answered results that do not match its {} items", request.getRequestURI(), action, claimed.size());
+                stored = IdempotentRequestStatus.UNDEFINED;
+            }
+            Map<String, List<String>> headers = IdempotentHandlingFilter.collectHeaders(controllerResponse);
+            headers.keySet().removeIf(name -> !endpoint.storesHeader(name));
+            store(endpoint, claimed, claims, status, storedBody(endpoint, content), headers, stored);
+            controllerResponse.copyBodyToResponse();
+            return false;
+        }
+
+        List<FinalizedResponse> finalized = new ArrayList<>(claimed.size());
+        for (int i = 0; i < claimed.size(); i++) {
+            Item item = claimed.get(i);
+            results.put(item.key(), itemResults.get(i));
+            finalized.add(new FinalizedResponse(item.key(), status, storedBody(endpoint, itemResults.get(i)), RESULT_HEADERS,
+                    item.requestHash(), IdempotentRequestStatus.SUCCESS, action, claims.get(item.key()).leaseId()));
+        }
+        responseFinalizer.storeAll(finalized);
+        // the cached controller body is dropped, the merged results are written instead
+        return true;
+    }
+
+    private void store(IdempotentEndpoint endpoint, List<Item> items, Map<String, ClaimResult> claims, int status, byte[] body,
+                       Map<String, List<String>> headers, IdempotentRequestStatus stored) {
+        responseFinalizer.storeAll(items.stream()
+                .map(item -> new FinalizedResponse(item.key(), status, body, headers, item.requestHash(), stored, endpoint.action(),
+                        claims.get(item.key()).leaseId()))
+                .toList());
+    }
+
+    private static byte[] storedBody(IdempotentEndpoint endpoint, byte[] body) {
+        return body != null && body.length > endpoint.maxStoredBodySize() ? null : body;
+    }
+
+    private List<byte[]> splitResults(byte[] content, int expected) {
+        try {
+            JsonNode node = objectMapper.readTree(content);
+            if (node == null || !node.isArray() || node.size() != expected) {
+                return null;
+            }
+            List<byte[]> results = new ArrayList<>(expected);
+            for (JsonNode result : node) {
+                results.add(objectMapper.writeValueAsBytes(result));
+            }
+            return results;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private byte[] replayed(Action action, Item item, CachedResponse storedResponse, ReplaySource source) throws JsonProcessingException {
+        if (FingerprintAlgorithm.isMismatch(storedResponse.requestHash(), item.requestHash())) {
+            return marker(item, "MISMATCH", null);
+        }
+        idempotencyMetrics.replayed(action, storedResponse.status(), source);
+        byte[] body = storedResponse.responseBody();
+        // item results are stored as JSON; whole-batch errors (and empty results) are replayed as a marker
+        if (storedResponse.status() != IdempotentRequestStatus.SUCCESS || body == null || body.length == 0) {
+            return marker(item, storedResponse.status().name(), storedResponse.responseCode());
+        }
+        return body;
+    }
+
+    private byte[] marker(Item item, String status, Integer responseCode) throws JsonProcessingException {
+        ObjectNode marker = objectMapper.createObjectNode()
+                .put(properties.getBatch().getKeyField(), item.key())
+                .put(STATUS_FIELD, status);
+        if (responseCode != null) {
+            marker.put(RESPONSE_CODE_FIELD, responseCode);
+        }
+        return objectMapper.writeValueAsBytes(marker);
+    }
+
+    private void writeResults(HttpServletResponse response, List<Item> items, Map<String, byte[]> results) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('[');
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            Item item = items.get(i);
+            // finished record expired between the claim and the read
+            byte[] result = results.get(item.key());
+            out.write(result != null ? result : marker(item, "EXPIRED", null));
+        }
+        out.write(']');
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(out.size());
+        out.writeTo(response.getOutputStream());
+    }
+
+    /*
+        Items of the body, null when it is not an array of objects with distinct keys within batch.max-items.
+        Each item is fingerprinted over the request URI and its own (compact) JSON.
+     */
+    private List<Item> readItems(HttpServletRequest request, String keyField) throws IOException {
+        JsonNode body;
+        try {
+            body = objectMapper.readTree(request.getInputStream());
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+        if (body == null || !body.isArray() || body.size() > properties.getBatch().getMaxItems()) {
+            return null;
+        }
+        byte[] uri = request.getRequestURI().getBytes(StandardCharsets.UTF_8);
+        List<Item> items = new ArrayList<>(body.size());
+        Set<String> keys = new HashSet<>();
+        for (JsonNode node : body) {
+            JsonNode key = node.get(keyField);
+            if (!node.isObject() || key == null || !key.isTextual() || !keys.add(key.asText())) {
+                return null;
+            }
+            byte[] bytes = objectMapper.writeValueAsBytes(node);
+            FingerprintAlgorithm.Hasher hasher = properties.getFingerprint().getAlgorithm().newHasher();
+            hasher.update(uri, 0, uri.length);
+            hasher.update(bytes, 0, bytes.length);
+            items.add(new Item(key.asText(), node, hasher.finish()));
+        }
+        return items;
+    }
+
+    private record Item(String key, JsonNode node, String requestHash) {
+    }
+
+    // serves the claimed items (instead of the original body) to the controller
+    private static class BatchRequestWrapper extends HttpServletRequestWrapper {
+
+        private final byte[] body;
+
+        private BatchRequestWrapper(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            return new BufferedServletInputStream(body);
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int getContentLength() {
+            return body.length;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return body.length;
+        }
+    }
+}
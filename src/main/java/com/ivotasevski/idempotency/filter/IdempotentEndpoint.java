@@ -0,0 +1,80 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.action.IdempotentAction;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/*
+    Idempotent endpoint with its policy, resolved once from @IdempotentAction (and the global configuration) when
+    the endpoint is registered.
+    storedHeaders are lower case, null stores all headers.
+    Policies the store cannot honour fail the startup: a retention beyond the partitions created ahead, a lease
+    that lapses between two renewals, or responses mapped to a status only the claim and compensation set.
+ */
+public record IdempotentEndpoint(Action action,
+                                 Duration retention,
+                                 Duration lockLease,
+                                 long maxStoredBodySize,
+                                 Set<String> storedHeaders,
+                                 Map<Integer, IdempotentRequestStatus> statusMapping) {
+
+    public static IdempotentEndpoint of(IdempotentAction annotation, IdempotencyProperties properties) {
+        Map<Integer, IdempotentRequestStatus> statusMapping = new HashMap<>();
+        for (IdempotentAction.StatusMapping mapping : annotation.statusMapping()) {
+            if (mapping.status() == IdempotentRequestStatus.IN_PROGRESS || mapping.status() == IdempotentRequestStatus.IN_COMPENSATION) {
+                throw new IllegalStateException("Response codes cannot be mapped to " + mapping.status() + " on " + annotation);
+            }
+            for (int code : mapping.codes()) {
+                if (statusMapping.put(code, mapping.status()) != null) {
+                    throw new IllegalStateException("Response code " + code + " mapped more than once on " + annotation);
+                }
+            }
+        }
+        List<String> storedHeaders = Arrays.asList(annotation.storedHeaders());
+        long maxStoredBodySize = !annotation.storeBody() ? 0
+                : annotation.maxBodySize().isEmpty() ? properties.getCapture().getMaxStoredBodySize().toBytes()
+                : DataSize.parse(annotation.maxBodySize()).toBytes();
+        Duration retention = annotation.retention().isEmpty() ? properties.getPolicy().getRetention()
+                : DurationStyle.detectAndParse(annotation.retention());
+        if (properties.getPartitions().isEnabled()
+                && retention.compareTo(Duration.ofDays(properties.getPartitions().getLookaheadDays())) > 0) {
+            throw new IllegalStateException("Retention " + retention + " is longer than idempotency.partitions.lookahead-days "
+                    + properties.getPartitions().getLookaheadDays() + " on " + annotation);
+        }
+        Duration lockLease = annotation.lockLease().isEmpty() ? properties.getLease().getDuration()
+                : DurationStyle.detectAndParse(annotation.lockLease());
+        if (lockLease.compareTo(properties.getLease().getRenewInterval()) <= 0) {
+            throw new IllegalStateException("Lock lease " + lockLease + " must be longer than idempotency.lease.renew-interval "
+                    + properties.getLease().getRenewInterval() + " on " + annotation);
+        }
+        return new IdempotentEndpoint(
+                annotation.action(),
+                retention,
+                lockLease,
+                maxStoredBodySize,
+                storedHeaders.contains("*") ? null
+                        : storedHeaders.stream().map(h -> h.toLowerCase(Locale.ROOT)).collect(Collectors.toUnmodifiableSet()),
+                Map.copyOf(statusMapping));
+    }
+
+    public IdempotentRequestStatus status(int responseCode) {
+        IdempotentRequestStatus status = statusMapping.get(responseCode);
+        return status != null ? status : IdempotentRequestStatus.fromResponseCode(responseCode);
+    }
+
+    public boolean storesHeader(String name) {
+        return storedHeaders == null || storedHeaders.contains(name.toLowerCase(Locale.ROOT));
+    }
+}
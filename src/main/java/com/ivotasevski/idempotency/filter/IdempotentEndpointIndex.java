@@ -0,0 +1,205 @@
+package com.ivotasevski.idempotency.filter;
+
+import org.springframework.http.server.PathContainer;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Precompiled lookup structure for idempotent endpoints.
+
+    Literal patterns (no variables or wildcards) are resolved with a single map lookup. The remaining patterns
+    are stored in a trie keyed by their leading literal segments. The patterns of all trie nodes along the path
+    that match it are ranked by PathPattern specificity, so overlapping patterns resolve the way Spring MVC maps
+    them (/{x}/b before /a/** for /a/b), wherever they sit in the trie.
+    Resolved URIs are cached (per HTTP method) so repeated lookups do not allocate.
+    Values are whatever the registry resolved per mapping at startup (the endpoint with its policy).
+ */
+public final class IdempotentEndpointIndex<T> {
+
+    private static final RequestMethod[] METHODS = RequestMethod.values();
+
+    private final Optional<T>[] noActions = emptyActions();
+    private final Map<String, Optional<T>[]> literalPaths;
+    private final PatternNode<T> patternRoot;
+    private final Map<String, Optional<T>[]> resolvedPaths = new ConcurrentHashMap<>();
+    private final int resolvedPathCacheSize;
+
+    private IdempotentEndpointIndex(Map<String, Optional<T>[]> literalPaths, PatternNode<T> patternRoot, int resolvedPathCacheSize) {
+        this.literalPaths = literalPaths;
+        this.patternRoot = patternRoot;
+        this.resolvedPathCacheSize = resolvedPathCacheSize;
+    }
+
+    public static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    public Optional<T> resolve(String method, String path) {
+        RequestMethod requestMethod = RequestMethod.resolve(method);
+        if (requestMethod == null || path == null) {
+            return Optional.empty();
+        }
+
+        Optional<T>[] actions = resolvedPaths.get(path);
+        if (actions == null) {
+            actions = resolveAllMethods(path);
+            if (resolvedPaths.size() >= resolvedPathCacheSize) {
+                // bounded cache: start over rather than grow with unbounded URI variety
+                resolvedPaths.clear();
+            }
+            resolvedPaths.put(path, actions);
+        }
+        return actions[requestMethod.ordinal()];
+    }
+
+    private Optional<T>[] resolveAllMethods(String path) {
+        Optional<T>[] literal = literalPaths.get(path);
+        if (patternRoot.isEmpty()) {
+            return literal != null ? literal : noActions;
+        }
+
+        Optional<T>[] resolved = literal != null ? literal.clone() : emptyActions();
+        int unresolved = 0;
+        for (Optional<T> action : resolved) {
+            if (action.isEmpty()) {
+                unresolved++;
+            }
+        }
+        if (unresolved == 0) {
+            return resolved;
+        }
+
+        // collect the matching patterns of all nodes along the literal segments of the path
+        PathContainer pathContainer = PathContainer.parsePath(path);
+        List<PatternEntry<T>> matches = new ArrayList<>();
+        PatternNode<T> node = patternRoot;
+        collectMatches(node, pathContainer, matches);
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            node = node.children.get(segment);
+            if (node == null) {
+                break;
+            }
+            collectMatches(node, pathContainer, matches);
+        }
+
+        // nodes only order their own patterns, a pattern of a shallower node can be the more specific one
+        matches.sort((a, b) -> PathPattern.SPECIFICITY_COMPARATOR.compare(a.pattern, b.pattern));
+        for (PatternEntry<T> entry : matches) {
+            for (int i = 0; i < resolved.length; i++) {
+                if (resolved[i].isEmpty() && entry.actions[i].isPresent()) {
+                    resolved[i] = entry.actions[i];
+                    unresolved--;
+                }
+            }
+            if (unresolved == 0) {
+                break;
+            }
+        }
+        return resolved;
+    }
+
+    private static <T> void collectMatches(PatternNode<T> node, PathContainer path, List<PatternEntry<T>> matches) {
+        for (PatternEntry<T> entry : node.patterns) {
+            if (entry.pattern.matches(path)) {
+                matches.add(entry);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Optional<T>[] emptyActions() {
+        Optional<T>[] actions = new Optional[METHODS.length];
+        Arrays.fill(actions, Optional.empty());
+        return actions;
+    }
+
+    public static final class Builder<T> {
+
+        private final PathPatternParser parser = PathPatternParser.defaultInstance;
+        private final Map<String, Optional<T>[]> literalPaths = new HashMap<>();
+        private final Map<PathPattern, Optional<T>[]> patterns = new LinkedHashMap<>();
+        private int resolvedPathCacheSize = 10_000;
+
+        private Builder() {
+        }
+
+        public Builder<T> resolvedPathCacheSize(int resolvedPathCacheSize) {
+            this.resolvedPathCacheSize = resolvedPathCacheSize;
+            return this;
+        }
+
+        /*
+            Register a value for the pattern. Empty methods means the mapping accepts any HTTP method.
+         */
+        public Builder<T> add(String pattern, Set<RequestMethod> methods, T action) {
+            PathPattern pathPattern = parser.parse(pattern);
+            Optional<T>[] actions = isLiteral(pathPattern)
+                    ? literalPaths.computeIfAbsent(pathPattern.getPatternString(), p -> emptyActions())
+                    : patterns.computeIfAbsent(pathPattern, p -> emptyActions());
+
+            Optional<T> value = Optional.of(action);
+            if (methods.isEmpty()) {
+                for (int i = 0; i < actions.length; i++) {
+                    if (actions[i].isEmpty()) {
+                        actions[i] = value;
+                    }
+                }
+            } else {
+                methods.forEach(m -> actions[m.ordinal()] = value);
+            }
+            return this;
+        }
+
+        public IdempotentEndpointIndex<T> build() {
+            PatternNode<T> root = new PatternNode<>();
+            patterns.forEach((pattern, actions) -> {
+                PatternNode<T> node = root;
+                for (String segment : pattern.getPatternString().split("/")) {
+                    if (segment.isEmpty()) {
+                        continue;
+                    }
+                    if (!isLiteralSegment(segment)) {
+                        break;
+                    }
+                    node = node.children.computeIfAbsent(segment, s -> new PatternNode<>());
+                }
+                node.patterns.add(new PatternEntry<>(pattern, actions));
+            });
+            root.sort();
+            return new IdempotentEndpointIndex<>(Map.copyOf(literalPaths), root, resolvedPathCacheSize);
+        }
+
+        private static boolean isLiteral(PathPattern pattern) {
+            return pattern.getPatternString().equals("/") || isLiteralSegment(pattern.getPatternString());
+        }
+
+        private static boolean isLiteralSegment(String segment) {
+            return segment.indexOf('{') < 0 && segment.indexOf('*') < 0 && segment.indexOf('?') < 0;
+        }
+    }
+
+    private static final class PatternNode<T> {
+
+        private final Map<String, PatternNode<T>> children = new HashMap<>();
+        private final List<PatternEntry<T>> patterns = new ArrayList<>();
+
+        private boolean isEmpty() {
+            return children.isEmpty() && patterns.isEmpty();
+        }
+
+        private void sort() {
+            patterns.sort((a, b) -> PathPattern.SPECIFICITY_COMPARATOR.compare(a.pattern, b.pattern));
+            children.values().forEach(PatternNode::sort);
+        }
+    }
+
+    private record PatternEntry<T>(PathPattern pattern, Optional<T>[] actions) {
+    }
+}
@@ -1,47 +1,59 @@
 package com.ivotasevski.idempotency.filter;
 
-import com.ivotasevski.idempotency.action.Action;
 import com.ivotasevski.idempotency.action.IdempotentAction;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.stereotype.Component;
-import org.springframework.util.AntPathMatcher;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
 @Component
 @Slf4j
 @RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class IdempotentEndpointRegistry implements InitializingBean {
 
     private final RequestMappingHandlerMapping handlerMapping;
+    private final IdempotencyProperties properties;
 
-    private final Map<String, Action> idempotentEndpoints = new HashMap<>();
-    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private IdempotentEndpointIndex<IdempotentEndpoint> index;
+    private IdempotentEndpointIndex<IdempotentEndpoint> batchIndex;
 
     @Override
     public void afterPropertiesSet() {
+        var builder = IdempotentEndpointIndex.<IdempotentEndpoint>builder()
+                .resolvedPathCacheSize(properties.getEndpoints().getResolvedPathCacheSize());
+        var batchBuilder = IdempotentEndpointIndex.<IdempotentEndpoint>builder()
+                .resolvedPathCacheSize(properties.getEndpoints().getResolvedPathCacheSize());
+
         handlerMapping.getHandlerMethods().forEach((mapping, handlerMethod) -> {
-            Set<String> patterns = mapping.getPatternValues();
             if (handlerMethod.hasMethodAnnotation(IdempotentAction.class)) {
                 IdempotentAction annotation = handlerMethod.getMethodAnnotation(IdempotentAction.class);
-                patterns.forEach(p -> idempotentEndpoints.put(p, annotation.action()));
+                IdempotentEndpoint endpoint = IdempotentEndpoint.of(annotation, properties);
+                Set<RequestMethod> methods = mapping.getMethodsCondition().getMethods();
+                mapping.getPatternValues().forEach(p -> {
+                    (annotation.batch() ? batchBuilder : builder).add(p, methods, endpoint);
+                    log.info("Registered idempotent {}endpoint {} {} → {}", annotation.batch() ? "batch " : "",
+                            methods.isEmpty() ? "*" : methods, p, endpoint);
+                });
             }
         });
 
-        idempotentEndpoints.forEach((path, key) ->
-                log.info("Registered idempotent endpoint {} → {}", path, key));
+        index = builder.build();
+        batchIndex = batchBuilder.build();
+    }
+
+    public Optional<IdempotentEndpoint> getEndpointForRequest(String method, String path) {
+        return index.resolve(method, path);
     }
 
-    public Optional<Action> getActionForPath(String path) {
-        return idempotentEndpoints.entrySet().stream()
-                .filter(e -> pathMatcher.match(e.getKey(), path))
-                .map(Map.Entry::getValue)
-                .findFirst();
+    public Optional<IdempotentEndpoint> getBatchEndpointForRequest(String method, String path) {
+        return batchIndex.resolve(method, path);
     }
-}
\ No newline at end of file
+}
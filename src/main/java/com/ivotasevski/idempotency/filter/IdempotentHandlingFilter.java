@@ -1,45 +1,66 @@
 package com.ivotasevski.idempotency.filter;
 
 import com.ivotasevski.idempotency.action.Action;
-import com.ivotasevski.idempotency.domain.IdempotentRequestEntity;
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.cache.ReplayCache;
+import com.ivotasevski.idempotency.capture.CaptureBufferPool;
+import com.ivotasevski.idempotency.capture.CapturingResponseWrapper;
+import com.ivotasevski.idempotency.capture.ResponseCapture;
+import com.ivotasevski.idempotency.coalesce.InFlightRequests;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
 import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
-import com.ivotasevski.idempotency.repository.IdempotentRequestRepository;
+import com.ivotasevski.idempotency.fingerprint.FingerprintAlgorithm;
+import com.ivotasevski.idempotency.fingerprint.FingerprintingRequestWrapper;
+import com.ivotasevski.idempotency.lease.LeaseRenewer;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics.ReplaySource;
+import com.ivotasevski.idempotency.storage.FinalizedResponse;
+import com.ivotasevski.idempotency.storage.HeaderBlock;
+import com.ivotasevski.idempotency.storage.ResponseFinalizer;
+import com.ivotasevski.idempotency.storage.ResponseStorage;
+import com.ivotasevski.idempotency.store.ClaimResult;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import com.ivotasevski.idempotency.store.StoredRequest;
+import io.micrometer.observation.Observation;
 import jakarta.servlet.*;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.hibernate.exception.ConstraintViolationException;
-import org.springframework.dao.DataIntegrityViolationException;
-import org.springframework.data.util.Pair;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.support.TransactionTemplate;
-import org.springframework.util.DigestUtils;
-import org.springframework.web.util.ContentCachingRequestWrapper;
-import org.springframework.web.util.ContentCachingResponseWrapper;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
 
 @Component
 @Slf4j
 @RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class IdempotentHandlingFilter implements Filter {
 
     private static final String RECORD_ID_HEADER = "X-Request-Id";
-    private static final String IDEMPOTENT_ACTION_ATTR = "IdempotentAction";
-    private static final String UNIQUE_IDEMPOTENCY_KEY_CONSTRAINT_NAME = "unique_gtw_idemp_x_request_id";
+    private static final String IDEMPOTENT_ENDPOINT_ATTR = "IdempotentEndpoint";
+    private static final String REQUEST_HASH_ATTR = "IdempotentRequestHash";
+    private static final String LEASE_ID_ATTR = "IdempotentLeaseId";
+    private static final String BODY_OMITTED_HEADER = "X-Idempotency-Body-Omitted";
+    // set by the container for each response, never replayed
+    private static final Set<String> UNSTORED_HEADERS = Set.of("content-length", "transfer-encoding", "date");
+    private static final String RESULT_KEY = "result";
 
-    // TODO: Make this configurable
-    private static final int lock_ttl_seconds = 15;
-
-    private final IdempotentRequestRepository idempotentRequestRepository;
-    private final TransactionTemplate transactionTemplate;
+    private final IdempotencyStore idempotencyStore;
     private final IdempotentEndpointRegistry idempotentEndpointRegistry;
+    private final BatchIdempotentHandler batchIdempotentHandler;
+    private final ReplayCache replayCache;
+    private final CaptureBufferPool captureBufferPool;
+    private final ResponseStorage responseStorage;
+    private final ResponseFinalizer responseFinalizer;
+    private final InFlightRequests inFlightRequests;
+    private final LeaseRenewer leaseRenewer;
+    private final IdempotencyProperties properties;
+    private final IdempotencyMetrics idempotencyMetrics;
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
@@ -47,175 +68,240 @@ public class IdempotentHandlingFilter implements Filter {
 
         HttpServletRequest httpServletRequest = (HttpServletRequest) request;
 
-        Action actionKey = idempotentEndpointRegistry.getActionForPath(httpServletRequest.getRequestURI())
-                .orElse((Action) request.getAttribute(IDEMPOTENT_ACTION_ATTR));
-        if (actionKey == null) {
+        IdempotentEndpoint endpoint = idempotentEndpointRegistry
+                .getEndpointForRequest(httpServletRequest.getMethod(), httpServletRequest.getRequestURI())
+                .orElse((IdempotentEndpoint) request.getAttribute(IDEMPOTENT_ENDPOINT_ATTR));
+        if (endpoint == null) {
+            Optional<IdempotentEndpoint> batchEndpoint = request.getDispatcherType() != DispatcherType.ERROR
+                    ? idempotentEndpointRegistry.getBatchEndpointForRequest(httpServletRequest.getMethod(), httpServletRequest.getRequestURI())
+                    : Optional.empty();
+            if (batchEndpoint.isPresent()) {
+                batchIdempotentHandler.handle(batchEndpoint.get(), httpServletRequest, (HttpServletResponse) response, chain);
+                return;
+            }
             // non-idempotent action, skip filter logic
             chain.doFilter(request, response);
             return;
         }
 
-        request.setAttribute(IDEMPOTENT_ACTION_ATTR, actionKey);
+        request.setAttribute(IDEMPOTENT_ENDPOINT_ATTR, endpoint);
+        Action actionKey = endpoint.action();
 
-        var requestWrapper = getRequestWrapper(httpServletRequest);
-        var responseWrapper = getResponseWrapper((HttpServletResponse) response);
+        var httpServletResponse = (HttpServletResponse) response;
+        HttpServletRequest requestToUse = httpServletRequest;
 
         // Persist request only for original request
         // (skip Error dispatch when exception in original request is thrown)
         if (request.getDispatcherType() != DispatcherType.ERROR) {
+            // body is read once here, fingerprinted while it is read and buffered for the controller
+            var requestWrapper = new FingerprintingRequestWrapper(httpServletRequest, properties.getFingerprint().getAlgorithm());
+            request.setAttribute(REQUEST_HASH_ATTR, requestWrapper.getFingerprint());
+            requestToUse = requestWrapper;
+
             // persist request, or return immediate response if it exists
-            if (!handleIdempotentRequest(actionKey, requestWrapper, responseWrapper)) {
+            Observation observation = idempotencyMetrics.observation(IdempotencyMetrics.REQUEST_OBSERVATION, actionKey)
+                    .lowCardinalityKeyValue(RESULT_KEY, "none");
+            boolean proceed = observation.observeChecked(() -> handleIdempotentRequest(endpoint, requestWrapper, httpServletResponse, observation));
+            if (!proceed) {
                 return;
             }
         }
 
-        // Continue with the filter chain (controller, interceptors, etc.)
-        chain.doFilter(requestWrapper, responseWrapper);
-
-        // persist response
-        handleResponse(requestWrapper, responseWrapper);
+        // body is streamed to the client and captured on the side
+        var responseWrapper = new CapturingResponseWrapper(httpServletResponse, captureBufferPool.newCapture(endpoint.maxStoredBodySize()));
+        boolean submitted = false;
+        try {
+            // Continue with the filter chain (controller, interceptors, etc.)
+            chain.doFilter(requestToUse, responseWrapper);
 
-        // Finally copy the cached body back to the actual HttpServletResponse
-        responseWrapper.copyBodyToResponse();
+            // persist response, the finalizer releases the lease once it is stored
+            handleResponse(endpoint, requestToUse, responseWrapper);
+            submitted = true;
+        } finally {
+            responseWrapper.releaseCapture();
+            if (request.getDispatcherType() != DispatcherType.ERROR) {
+                // wake up waiting duplicates if the response could not be finalized
+                inFlightRequests.release(httpServletRequest.getHeader(RECORD_ID_HEADER));
+                if (!submitted) {
+                    leaseRenewer.release(httpServletRequest.getHeader(RECORD_ID_HEADER), (String) request.getAttribute(LEASE_ID_ATTR));
+                }
+            }
+        }
     }
 
     /*
         Return true if request was successfully saved, false if it was retrieved from cache and flushed in response.
      */
-    private boolean handleIdempotentRequest(Action actionKey, ContentCachingRequestWrapper requestWrapper, ContentCachingResponseWrapper responseWrapper) throws IOException {
+    private boolean handleIdempotentRequest(IdempotentEndpoint endpoint, FingerprintingRequestWrapper requestWrapper,
+                                            HttpServletResponse response, Observation observation) throws IOException {
+        Action actionKey = endpoint.action();
 
         String xRequestId = requestWrapper.getHeader(RECORD_ID_HEADER);
+        String requestHash = requestWrapper.getFingerprint();
 
-        try {
-            transactionTemplate.executeWithoutResult(status -> {
-                var record = new IdempotentRequestEntity();
-                record.setXRequestId(xRequestId);
-                record.setTrxId(UUID.randomUUID().toString());
-                record.setStatus(IdempotentRequestStatus.IN_PROGRESS);
-                record.setIdempotentAction(actionKey);
-                // TODO: make these configurable
-                record.setExpiredAt(Instant.now().plus(7, ChronoUnit.DAYS));
-                record.setLockDeadline(Instant.now().plus(5, ChronoUnit.MINUTES));
-                idempotentRequestRepository.save(record);
-            });
-
-        } catch (DataIntegrityViolationException e) {
-            var cause = e.getCause();
-            if (cause instanceof ConstraintViolationException) {
-                var cvEx = (ConstraintViolationException) cause;
-                if (cvEx.getConstraintName().equals(UNIQUE_IDEMPOTENCY_KEY_CONSTRAINT_NAME)) {
-                    // The record exists. Based on the state, determine the response.
-                    Pair<IdempotentRequestStatus, IdempotentRequestEntity> pair = transactionTemplate.execute(s -> {
-                        // get record (lock it) and update if status is UNDEFINED
-                        var record = idempotentRequestRepository.findByxRequestIdAndLockForUpdate(xRequestId).orElseThrow();
-                        if (record.getStatus() == IdempotentRequestStatus.UNDEFINED) {
-                            record.setLockDeadline(Instant.now().plus(lock_ttl_seconds, ChronoUnit.SECONDS));
-                            record.setStatus(IdempotentRequestStatus.IN_PROGRESS);
-                            idempotentRequestRepository.save(record);
-                            return Pair.of(IdempotentRequestStatus.UNDEFINED, record);
-                        }
-                        return Pair.of(record.getStatus(), record);
-                    });
-
-                    // decide how to continue based on original request status
-                    switch (pair.getFirst()) {
-                        case IN_PROGRESS -> {
-                            responseWrapper.setStatus(HttpStatus.ACCEPTED.value());
-                        }
-                        case UNDEFINED -> {
-                            // rerun request completely
-                            return true;
-                        }
-                        default -> {
-                            IdempotentRequestEntity requestRecord = pair.getSecond();
-                            responseWrapper.setStatus(requestRecord.getResponseCode());
-                            // set headers
-                            requestRecord.getResponseHeaders().forEach((k, v) ->
-                                    v.forEach(value -> responseWrapper.addHeader(k, value)));
-                            responseWrapper.getOutputStream().write(requestRecord.getResponseBody());
-                        }
-                    }
-                    responseWrapper.copyBodyToResponse();
+        // finished responses are replayed from the near cache (or the finalization queue) without any DB access
+        Optional<CachedResponse> cached = replayCache.get(xRequestId).or(() -> responseFinalizer.findPending(xRequestId));
+        if (cached.isPresent()) {
+            replay(actionKey, response, cached.get(), requestHash, ReplaySource.CACHE, observation);
+            return false;
+        }
+
+        ClaimResult claim = claim(endpoint, xRequestId, requestHash);
+
+        // same key reused for a different payload, answered from the claim's lock-free read (never taken over)
+        if (FingerprintAlgorithm.isMismatch(claim.requestHash(), requestHash)) {
+            observation.lowCardinalityKeyValue(RESULT_KEY, "mismatch");
+            response.setStatus(HttpStatus.UNPROCESSABLE_ENTITY.value());
+            return false;
+        }
+
+        if (claim.outcome() != ClaimOutcome.EXISTING) {
+            // new request, or rerun of UNDEFINED/abandoned request
+            observation.lowCardinalityKeyValue(RESULT_KEY, claim.outcome() == ClaimOutcome.CREATED ? "executed" : "retried");
+            inFlightRequests.register(xRequestId);
+            requestWrapper.setAttribute(LEASE_ID_ATTR, claim.leaseId());
+            leaseRenewer.acquire(xRequestId, claim.leaseId(), endpoint.lockLease());
+            return true;
+        }
+
+        // decide how to continue based on original request status
+        switch (claim.status()) {
+            case IN_PROGRESS -> {
+                writeInProgressResponse(actionKey, xRequestId, response, requestHash, observation);
+            }
+            case UNDEFINED -> {
+                observation.lowCardinalityKeyValue(RESULT_KEY, "undefined");
+                response.setStatus(HttpStatus.ACCEPTED.value());
+            }
+            default -> {
+                Optional<StoredRequest> stored = idempotencyStore.find(xRequestId);
+                if (stored.isEmpty()) {
+                    // record expired since the claim saw it, a retry claims the key anew
+                    observation.lowCardinalityKeyValue(RESULT_KEY, "expired");
+                    response.setStatus(HttpStatus.CONFLICT.value());
                     return false;
                 }
+                Optional<CachedResponse> storedResponse = responseStorage.read(stored.get());
+                if (storedResponse.isEmpty()) {
+                    // compensated before the original request stored a response, there is nothing to replay
+                    observation.lowCardinalityKeyValue(RESULT_KEY, "no_response");
+                    response.setStatus(HttpStatus.CONFLICT.value());
+                    return false;
+                }
+                replayCache.put(xRequestId, storedResponse.get());
+                replay(actionKey, response, storedResponse.get(), requestHash, ReplaySource.STORE, observation);
             }
-            throw e;
         }
-        return true;
+        return false;
     }
 
-    private void handleResponse(ContentCachingRequestWrapper requestWrapper, ContentCachingResponseWrapper responseWrapper) {
-
-        String xRequestId = requestWrapper.getHeader(RECORD_ID_HEADER);
+    /*
+        Claim the key, take over an UNDEFINED/expired record or get the status of the existing one in one call.
+        New and taken over claims get a short lease, renewed by the LeaseRenewer while the request runs.
+     */
+    private ClaimResult claim(IdempotentEndpoint endpoint, String xRequestId, String requestHash) {
+        Observation observation = idempotencyMetrics.observation(IdempotencyMetrics.CLAIM_OBSERVATION, endpoint.action())
+                .lowCardinalityKeyValue("outcome", "none")
+                .lowCardinalityKeyValue("status", "none");
+        return observation.observe(() -> {
+            ClaimResult claim = idempotencyStore.claim(
+                    xRequestId,
+                    endpoint.action(),
+                    requestHash,
+                    endpoint.retention(),
+                    endpoint.lockLease(),
+                    endpoint.lockLease());
+            observation.lowCardinalityKeyValue("outcome", claim.outcome().name())
+                    .lowCardinalityKeyValue("status", claim.status().name());
+            return claim;
+        });
+    }
 
-        // Collect headers
-        Map<String, List<String>> headers = new LinkedHashMap<>();
-        for (String name : responseWrapper.getHeaderNames()) {
-            headers.put(name, new ArrayList<>(responseWrapper.getHeaders(name)));
-        }
-        if (responseWrapper.getContentType() != null) {
-            headers.put("Content-Type", List.of(responseWrapper.getContentType()));
+    private void writeInProgressResponse(Action actionKey, String xRequestId, HttpServletResponse response, String requestHash,
+                                         Observation observation) throws IOException {
+        // when coalescing is enabled wait for the original response instead of answering 202 right away
+        Optional<CachedResponse> coalesced = inFlightRequests.await(xRequestId, () -> findStoredResponse(xRequestId));
+        if (coalesced.isPresent()) {
+            replay(actionKey, response, coalesced.get(), requestHash, ReplaySource.COALESCED, observation);
+            return;
         }
+        observation.lowCardinalityKeyValue(RESULT_KEY, "in_progress");
+        response.setStatus(HttpStatus.ACCEPTED.value());
+    }
 
-        // Update DB
-        transactionTemplate.executeWithoutResult(s -> {
-            idempotentRequestRepository.findByxRequestIdAndLockForUpdate(xRequestId).ifPresent(entity -> {
-                entity.setResponseCode(responseWrapper.getStatus());
-                entity.setResponseBody(responseWrapper.getContentAsByteArray());
-                entity.setResponseHeaders(headers);
-                entity.setRequestHash(computeRequestHash(requestWrapper));
-                entity.setStatus(determineStatusFromCode(responseWrapper.getStatus()));
-                entity.setUpdatedAt(Instant.now());
-                idempotentRequestRepository.save(entity);
-            });
-        });
+    private void replay(Action actionKey, HttpServletResponse response, CachedResponse storedResponse, String requestHash,
+                        ReplaySource source, Observation observation) throws IOException {
+        if (FingerprintAlgorithm.isMismatch(storedResponse.requestHash(), requestHash)) {
+            observation.lowCardinalityKeyValue(RESULT_KEY, "mismatch");
+        } else {
+            observation.lowCardinalityKeyValue(RESULT_KEY, "replayed");
+            idempotencyMetrics.replayed(actionKey, storedResponse.status(), source);
+        }
+        writeStoredResponse(response, storedResponse, requestHash);
     }
 
-    private String computeRequestHash(ContentCachingRequestWrapper request) {
-        String method = request.getMethod();
-        String uri = request.getRequestURI();
-        String query = request.getQueryString();
-        String body = new String(request.getContentAsByteArray(), StandardCharsets.UTF_8);
-
-        // Include key headers (not all as some headers can affect the hash (Authorization, Cookie etc..)
-        String contentType = request.getHeader("Content-Type");
-        String idempotencyKey = request.getHeader(RECORD_ID_HEADER);
-
-        String canonical = String.join(":",
-                method,
-                uri + (query != null ? "?" + query : ""),
-                contentType != null ? contentType : "",
-                idempotencyKey != null ? idempotencyKey : "",
-                body
-        );
-
-        return DigestUtils.md5DigestAsHex(canonical.getBytes(StandardCharsets.UTF_8));
+    private Optional<CachedResponse> findStoredResponse(String xRequestId) {
+        return idempotencyStore.find(xRequestId)
+                .filter(r -> r.status() != IdempotentRequestStatus.IN_PROGRESS && r.status() != IdempotentRequestStatus.UNDEFINED)
+                .flatMap(responseStorage::read);
     }
 
-    private ContentCachingRequestWrapper getRequestWrapper(HttpServletRequest request) {
-        // wrap response so it can be read more than once
-        if (request instanceof ContentCachingRequestWrapper) {
-            return (ContentCachingRequestWrapper) request;
+    static void writeStoredResponse(HttpServletResponse response, CachedResponse storedResponse, String requestHash) throws IOException {
+        // same key reused for a different payload
+        if (FingerprintAlgorithm.isMismatch(storedResponse.requestHash(), requestHash)) {
+            response.setStatus(HttpStatus.UNPROCESSABLE_ENTITY.value());
+            return;
+        }
+        response.setStatus(storedResponse.responseCode());
+        // headers are decoded straight from the stored block onto the response
+        HeaderBlock.forEach(storedResponse.responseHeaderBlock(), response::addHeader);
+        byte[] body = storedResponse.responseBody();
+        if (body != null) {
+            // length known up front: no chunked encoding, the body goes out in a single write
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
         }
-        return new ContentCachingRequestWrapper(request);
     }
 
-    private ContentCachingResponseWrapper getResponseWrapper(HttpServletResponse response) {
-        // wrap response so it can be read more than once
-        if (response instanceof ContentCachingResponseWrapper) {
-            return (ContentCachingResponseWrapper) response;
+    private void handleResponse(IdempotentEndpoint endpoint, HttpServletRequest request, CapturingResponseWrapper responseWrapper)
+            throws IOException {
+
+        String xRequestId = request.getHeader(RECORD_ID_HEADER);
+        ResponseCapture capture = responseWrapper.getCapture();
+        byte[] body = capture.toByteArray();
+
+        Map<String, List<String>> headers = collectHeaders(responseWrapper);
+        headers.keySet().removeIf(name -> !endpoint.storesHeader(name));
+        if (capture.isOmitted()) {
+            // body exceeded the max stored size, replays get the marker instead of the body
+            headers.put(BODY_OMITTED_HEADER, List.of(capture.getOmittedMarker()));
         }
-        return new ContentCachingResponseWrapper(response);
+
+        Action actionKey = endpoint.action();
+        FinalizedResponse finalized = new FinalizedResponse(
+                xRequestId,
+                responseWrapper.getStatus(),
+                body,
+                headers,
+                (String) request.getAttribute(REQUEST_HASH_ATTR),
+                endpoint.status(responseWrapper.getStatus()),
+                actionKey,
+                (String) request.getAttribute(LEASE_ID_ATTR));
+        idempotencyMetrics.observation(IdempotencyMetrics.FINALIZE_OBSERVATION, actionKey)
+                .lowCardinalityKeyValue("status", finalized.status().name())
+                .observe(() -> responseFinalizer.submit(finalized));
     }
 
-    private IdempotentRequestStatus determineStatusFromCode(int statusCode) {
-        HttpStatus status = HttpStatus.valueOf(statusCode);
-        if (status.is2xxSuccessful()) {
-            return IdempotentRequestStatus.SUCCESS;
-        } else if (status.is4xxClientError()) {
-            return IdempotentRequestStatus.PENDING_COMPENSATION;
-        } else {
-            return IdempotentRequestStatus.UNDEFINED;
+    static Map<String, List<String>> collectHeaders(HttpServletResponse response) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        for (String name : response.getHeaderNames()) {
+            if (!UNSTORED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                headers.put(name, new ArrayList<>(response.getHeaders(name)));
+            }
+        }
+        if (response.getContentType() != null) {
+            headers.put("Content-Type", List.of(response.getContentType()));
         }
+        return headers;
     }
 }
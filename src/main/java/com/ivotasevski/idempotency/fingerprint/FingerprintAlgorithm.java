@@ -0,0 +1,85 @@
+package com.ivotasevski.idempotency.fingerprint;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/*
+    Stored fingerprints are prefixed with the algorithm name ("sha256:..."), so fingerprints computed
+    with a different algorithm (or legacy unprefixed hashes) are never reported as a payload mismatch.
+ */
+public enum FingerprintAlgorithm {
+
+    SHA_256("sha256") {
+        @Override
+        public Hasher newHasher() {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                return new Hasher() {
+                    @Override
+                    public void update(byte[] bytes, int offset, int length) {
+                        digest.update(bytes, offset, length);
+                    }
+
+                    @Override
+                    public String finish() {
+                        return "sha256:" + HexFormat.of().formatHex(digest.digest());
+                    }
+                };
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    },
+
+    // fast, hardware accelerated, non-cryptographic
+    CRC32C("crc32c") {
+        @Override
+        public Hasher newHasher() {
+            CRC32C checksum = new CRC32C();
+            return new Hasher() {
+                private long length;
+
+                @Override
+                public void update(byte[] bytes, int offset, int length) {
+                    checksum.update(bytes, offset, length);
+                    this.length += length;
+                }
+
+                @Override
+                public String finish() {
+                    return "crc32c:" + HexFormat.of().toHexDigits((int) checksum.getValue()) + "-" + Long.toHexString(length);
+                }
+            };
+        }
+    };
+
+    private final String prefix;
+
+    FingerprintAlgorithm(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public abstract Hasher newHasher();
+
+    /*
+        True only when both fingerprints were computed with the same algorithm and differ.
+     */
+    public static boolean isMismatch(String stored, String computed) {
+        if (stored == null || computed == null || stored.equals(computed)) {
+            return false;
+        }
+        int storedSeparator = stored.indexOf(':');
+        int computedSeparator = computed.indexOf(':');
+        return storedSeparator > 0 && storedSeparator == computedSeparator
+                && stored.regionMatches(0, computed, 0, storedSeparator);
+    }
+
+    public interface Hasher {
+
+        void update(byte[] bytes, int offset, int length);
+
+        String finish();
+    }
+}
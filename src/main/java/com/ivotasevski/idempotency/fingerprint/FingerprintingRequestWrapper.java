@@ -0,0 +1,149 @@
+package com.ivotasevski.idempotency.fingerprint;
+
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import org.springframework.http.MediaType;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Reads the request body once, feeding the raw bytes to the fingerprint hasher chunk by chunk as they are read,
+    and serves the buffered body to the rest of the chain.
+
+    The fingerprint covers the method, URI, query string, content type and body. Form posts are fingerprinted
+    over their (sorted) parameters, the body is left to the container to parse.
+ */
+public class FingerprintingRequestWrapper extends HttpServletRequestWrapper {
+
+    private static final byte[] SEPARATOR = {0};
+    private static final int READ_CHUNK_SIZE = 8 * 1024;
+
+    private final byte[] body;
+    private final String fingerprint;
+
+    public FingerprintingRequestWrapper(HttpServletRequest request, FingerprintAlgorithm algorithm) throws IOException {
+        super(request);
+        FingerprintAlgorithm.Hasher hasher = algorithm.newHasher();
+        update(hasher, request.getMethod());
+        update(hasher, request.getRequestURI());
+        update(hasher, request.getQueryString());
+        update(hasher, request.getContentType());
+
+        if (isFormPost(request)) {
+            this.body = null;
+            Map<String, String[]> parameters = new TreeMap<>(request.getParameterMap());
+            parameters.forEach((name, values) -> {
+                update(hasher, name);
+                update(hasher, Arrays.toString(values));
+            });
+        } else {
+            this.body = readBody(request.getInputStream(), hasher);
+        }
+        this.fingerprint = hasher.finish();
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (body == null) {
+            return super.getInputStream();
+        }
+        return new BufferedServletInputStream(body);
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        if (body == null) {
+            return super.getReader();
+        }
+        String encoding = getCharacterEncoding();
+        Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.ISO_8859_1;
+        return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+    }
+
+    private static byte[] readBody(InputStream in, FingerprintAlgorithm.Hasher hasher) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[READ_CHUNK_SIZE];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            hasher.update(chunk, 0, n);
+            buffer.write(chunk, 0, n);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static void update(FingerprintAlgorithm.Hasher hasher, String value) {
+        if (value != null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            hasher.update(bytes, 0, bytes.length);
+        }
+        hasher.update(SEPARATOR, 0, 1);
+    }
+
+    private static boolean isFormPost(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && "POST".equals(request.getMethod())
+                && contentType.startsWith(MediaType.APPLICATION_FORM_URLENCODED_VALUE);
+    }
+
+    public static class BufferedServletInputStream extends ServletInputStream {
+
+        private final ByteArrayInputStream delegate;
+
+        public BufferedServletInputStream(byte[] body) {
+            this.delegate = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read() {
+            return delegate.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return delegate.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return delegate.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        /*
+            The body is already buffered, so it is all available as soon as the listener is set.
+         */
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            try {
+                if (!isFinished()) {
+                    readListener.onDataAvailable();
+                }
+                if (isFinished()) {
+                    readListener.onAllDataRead();
+                }
+            } catch (IOException | RuntimeException e) {
+                readListener.onError(e);
+            }
+        }
+    }
+}
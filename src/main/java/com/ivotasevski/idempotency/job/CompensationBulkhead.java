@@ -0,0 +1,103 @@
+package com.ivotasevski.idempotency.job;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/*
+    Isolates the compensation handler calls of one action: its own executor, concurrency permits and call rate,
+    so a slow or failing downstream of one action cannot starve the compensation of the others.
+    Submitting blocks while all permits are taken or the rate limit is reached, the claiming thread is throttled
+    instead of the executor rejecting tasks.
+ */
+class CompensationBulkhead {
+
+    private final AsyncTaskExecutor executor;
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    private final long nanosPerCall;
+
+    // earliest start of the next call, when rate limited
+    private long nextCallNanos = System.nanoTime();
+
+    CompensationBulkhead(Action action, IdempotencyProperties.Compensation properties, MeterRegistry meterRegistry) {
+        IdempotencyProperties.ActionLimits limits = properties.limitsOf(action);
+        this.maxConcurrency = limits.getMaxConcurrency() != null ? limits.getMaxConcurrency() : properties.getMaxConcurrency();
+        this.permits = new Semaphore(maxConcurrency);
+        this.nanosPerCall = limits.getMaxCallsPerSecond() > 0
+                ? (long) (TimeUnit.SECONDS.toNanos(1) / limits.getMaxCallsPerSecond())
+                : 0;
+        this.executor = executor(action, properties, maxConcurrency);
+
+        Gauge.builder("idempotency.compensation.active", permits, p -> maxConcurrency - p.availablePermits())
+                .tag("action", action.name())
+                .register(meterRegistry);
+    }
+
+    private static AsyncTaskExecutor executor(Action action, IdempotencyProperties.Compensation properties, int maxConcurrency) {
+        String threadNamePrefix = "Compensation-" + action.name() + "-";
+        if (properties.isVirtualThreads()) {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+            executor.setVirtualThreads(true);
+            return executor;
+        }
+        // one thread per permit, idle ones time out; a task submitted while the thread that released its permit
+        // is still completing waits in the queue, never more than maxConcurrency are submitted so it never rejects
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(maxConcurrency);
+        executor.setMaxPoolSize(maxConcurrency);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setQueueCapacity(maxConcurrency);
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.initialize();
+        return executor;
+    }
+
+    <T> CompletableFuture<T> submit(Supplier<T> call) {
+        permits.acquireUninterruptibly();
+        awaitRate();
+        try {
+            return CompletableFuture.supplyAsync(call, executor)
+                    .whenComplete((r, e) -> permits.release());
+        } catch (TaskRejectedException e) {
+            // executor shutting down, run on the calling thread
+            try {
+                return CompletableFuture.completedFuture(call.get());
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private void awaitRate() {
+        if (nanosPerCall == 0) {
+            return;
+        }
+        long start;
+        synchronized (this) {
+            start = Math.max(nextCallNanos, System.nanoTime());
+            nextCallNanos = start + nanosPerCall;
+        }
+        long wait = start - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    void shutdown() {
+        if (executor instanceof ThreadPoolTaskExecutor pool) {
+            pool.shutdown();
+        }
+    }
+}
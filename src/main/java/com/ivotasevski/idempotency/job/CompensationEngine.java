@@ -0,0 +1,264 @@
+package com.ivotasevski.idempotency.job;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.action.compensation.CompensationHandler;
+import com.ivotasevski.idempotency.action.compensation.CompensationHandlerRegistry;
+import com.ivotasevski.idempotency.action.compensation.CompensationOutcome;
+import com.ivotasevski.idempotency.action.compensation.CompensationRecord;
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.cache.ReplayCache;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.exception.MissingCompensationHandlerException;
+import com.ivotasevski.idempotency.storage.ResponseStorage;
+import com.ivotasevski.idempotency.store.CompensationCandidate;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import com.ivotasevski.idempotency.store.StoredRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+    Compensates idempotent requests that did not finish cleanly.
+
+    Eligible records are claimed in batches and moved to IN_COMPENSATION in the same step (FOR UPDATE SKIP LOCKED
+    in the database stores), so several nodes can compensate in parallel without waiting on each other's rows.
+    Claimed records are grouped by action and handed to the action's CompensationHandler.handleBatch in chunks of
+    its batchSize(), through the action's bulkhead (own executor, max-concurrency and call rate, see
+    compensation.actions), so one slow downstream does not hold up the compensation of other actions.
+    Outcomes are reported per record and written back in one batch per claimed batch:
+    - compensated -> FAILURE, and evicted from this node's replay cache (cached as PENDING_COMPENSATION),
+    - handler failed, record missing from its result or no handler deployed -> PENDING_COMPENSATION,
+      retried after retry-delay; the other records of a partially failed chunk are not compensated again.
+    IN_COMPENSATION records left behind by a crashed node are reset to PENDING_COMPENSATION after compensation-timeout,
+    so handlers must tolerate being called more than once for the same key.
+ */
+@Slf4j
+@Component
+public class CompensationEngine implements DisposableBean {
+
+    private static final ThreadFactory SCAN_THREADS = Thread.ofVirtual().name("CompensationScan-", 0).factory();
+
+    private final IdempotencyProperties.Compensation properties;
+    private final IdempotencyStore idempotencyStore;
+    private final CompensationHandlerRegistry compensationHandlerRegistry;
+    private final ResponseStorage responseStorage;
+    private final ReplayCache replayCache;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<Action, CompensationBulkhead> bulkheads = new EnumMap<>(Action.class);
+    private final Map<CompensationPhase, AtomicLong> lagMillis = new EnumMap<>(CompensationPhase.class);
+    private final Map<CompensationPhase, Counter> claimed = new EnumMap<>(CompensationPhase.class);
+    private final Counter reset;
+
+    public CompensationEngine(IdempotencyProperties properties,
+                              IdempotencyStore idempotencyStore,
+                              CompensationHandlerRegistry compensationHandlerRegistry,
+                              ResponseStorage responseStorage,
+                              ReplayCache replayCache,
+                              MeterRegistry meterRegistry) {
+        this.properties = properties.getCompensation();
+        this.idempotencyStore = idempotencyStore;
+        this.compensationHandlerRegistry = compensationHandlerRegistry;
+        this.responseStorage = responseStorage;
+        this.replayCache = replayCache;
+        this.meterRegistry = meterRegistry;
+        for (Action action : Action.values()) {
+            bulkheads.put(action, new CompensationBulkhead(action, this.properties, meterRegistry));
+        }
+
+        for (CompensationPhase phase : CompensationPhase.values()) {
+            AtomicLong lag = new AtomicLong();
+            lagMillis.put(phase, lag);
+            // how long the oldest record of the last claimed batch waited past its eligibility
+            TimeGauge.builder("idempotency.compensation.lag", lag, TimeUnit.MILLISECONDS, AtomicLong::get)
+                    .tag("phase", phase.name())
+                    .register(meterRegistry);
+            claimed.put(phase, Counter.builder("idempotency.compensation.claimed")
+                    .tag("phase", phase.name())
+                    .register(meterRegistry));
+        }
+        this.reset = Counter.builder("idempotency.compensation.reset").register(meterRegistry);
+    }
+
+    public void compensate(CompensationPhase phase) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        forEachScope(store -> {
+            int batches = 0;
+            int size;
+            do {
+                size = compensateBatch(store, phase);
+            } while (size == properties.getBatchSize() && ++batches < properties.getMaxBatchesPerRun());
+        });
+    }
+
+    public void resetStuckInCompensation() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        forEachScope(store -> {
+            int batches = 0;
+            int size;
+            do {
+                size = store.resetStuckInCompensation(properties.getCompensationTimeout(), properties.getBatchSize());
+                if (size > 0) {
+                    log.warn("Reset {} records stuck in compensation to PENDING_COMPENSATION", size);
+                    reset.increment(size);
+                }
+            } while (size == properties.getBatchSize() && ++batches < properties.getMaxBatchesPerRun());
+        });
+    }
+
+    /*
+        Scopes (shards) are scanned in parallel, each on its own virtual thread; their handlers still share the
+        bulkheads of their actions.
+     */
+    private void forEachScope(Consumer<IdempotencyStore> scan) {
+        List<IdempotencyStore> scopes = idempotencyStore.compensationScopes();
+        if (scopes.size() == 1) {
+            scan.accept(scopes.getFirst());
+            return;
+        }
+        try (ExecutorService scans = Executors.newThreadPerTaskExecutor(SCAN_THREADS)) {
+            CompletableFuture.allOf(scopes.stream()
+                            .map(scope -> CompletableFuture.runAsync(() -> scan.accept(scope), scans))
+                            .toArray(CompletableFuture[]::new))
+                    .join();
+        }
+    }
+
+    private int compensateBatch(IdempotencyStore store, CompensationPhase phase) {
+        List<CompensationCandidate> candidates = store.claimForCompensation(
+                phase.getStatus(), eligibleAfter(phase), properties.getBatchSize());
+        if (candidates.isEmpty()) {
+            lagMillis.get(phase).set(0);
+            return 0;
+        }
+        claimed.get(phase).increment(candidates.size());
+        lagMillis.get(phase).set(candidates.stream()
+                .mapToLong(c -> c.waiting().minus(eligibleAfter(phase)).toMillis())
+                .max()
+                .orElse(0));
+
+        Map<String, CompensationRecord> records = records(store, candidates);
+        Map<Action, List<CompensationRecord>> byAction = new EnumMap<>(Action.class);
+        records.values().forEach(r -> byAction.computeIfAbsent(r.action(), a -> new ArrayList<>()).add(r));
+
+        List<CompletableFuture<Map<String, IdempotentRequestStatus>>> chunks = new ArrayList<>();
+        byAction.forEach((action, actionRecords) -> {
+            CompensationHandler handler;
+            try {
+                handler = compensationHandlerRegistry.getHandler(action);
+            } catch (MissingCompensationHandlerException e) {
+                log.warn("No compensation handler for action:{}, {} records stay PENDING_COMPENSATION",
+                        action, actionRecords.size());
+                return;
+            }
+            int chunkSize = Math.max(handler.batchSize(), 1);
+            for (int from = 0; from < actionRecords.size(); from += chunkSize) {
+                List<CompensationRecord> chunk = actionRecords.subList(from, Math.min(from + chunkSize, actionRecords.size()));
+                chunks.add(bulkheads.get(action).submit(() -> handle(handler, chunk)));
+            }
+        });
+
+        Map<String, IdempotentRequestStatus> finished = new LinkedHashMap<>();
+        records.keySet().forEach(xRequestId -> finished.put(xRequestId, IdempotentRequestStatus.PENDING_COMPENSATION));
+        chunks.forEach(chunk -> finished.putAll(chunk.join()));
+        store.finishCompensation(finished);
+        // records still PENDING_COMPENSATION replay as cached, the others changed their status
+        finished.forEach((xRequestId, status) -> {
+            if (status != IdempotentRequestStatus.PENDING_COMPENSATION) {
+                replayCache.evict(xRequestId);
+            }
+        });
+        return candidates.size();
+    }
+
+    /*
+        Candidates with their stored responses, read in one query.
+     */
+    private Map<String, CompensationRecord> records(IdempotencyStore store, List<CompensationCandidate> candidates) {
+        Map<String, CachedResponse> responses = new HashMap<>();
+        try {
+            for (StoredRequest request : store.findAllOnPrimary(candidates.stream().map(CompensationCandidate::xRequestId).toList())) {
+                responseStorage.read(request).ifPresent(response -> responses.put(request.xRequestId(), response));
+            }
+        } catch (RuntimeException e) {
+            // handlers are still called, without the stored responses
+            log.warn("Failed to read the stored responses of {} records in compensation", candidates.size(), e);
+        }
+        Map<String, CompensationRecord> records = new LinkedHashMap<>();
+        for (CompensationCandidate candidate : candidates) {
+            records.put(candidate.xRequestId(), new CompensationRecord(Action.valueOf(candidate.action()),
+                    candidate.xRequestId(), candidate.trxId(), responses.get(candidate.xRequestId())));
+        }
+        return records;
+    }
+
+    private Map<String, IdempotentRequestStatus> handle(CompensationHandler handler, List<CompensationRecord> chunk) {
+        String action = handler.getSupportedAction().name();
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Map<String, CompensationOutcome> outcomes;
+        try {
+            outcomes = handler.handleBatch(chunk);
+        } catch (RuntimeException e) {
+            outcomes = Map.of();
+            log.warn("Compensation of action:{} for {} idempotent keys failed, retrying in {}",
+                    action, chunk.size(), properties.getRetryDelay(), e);
+        }
+        int compensated = 0;
+        Map<String, IdempotentRequestStatus> statuses = new LinkedHashMap<>();
+        for (CompensationRecord record : chunk) {
+            CompensationOutcome outcome = outcomes.get(record.idempotentKey());
+            if (outcome != null && outcome.compensated()) {
+                statuses.put(record.idempotentKey(), IdempotentRequestStatus.FAILURE);
+                compensated++;
+            } else {
+                if (outcome != null) {
+                    log.warn("Compensation of action:{} for idempotent key: {} failed, retrying in {}",
+                            action, record.idempotentKey(), properties.getRetryDelay(), outcome.cause());
+                }
+                statuses.put(record.idempotentKey(), IdempotentRequestStatus.PENDING_COMPENSATION);
+            }
+        }
+        sample.stop(Timer.builder("idempotency.compensation.handle")
+                .tag("action", action)
+                .tag("outcome", compensated == chunk.size() ? "compensated" : compensated == 0 ? "failed" : "partial")
+                .register(meterRegistry));
+        return statuses;
+    }
+
+    @Override
+    public void destroy() {
+        bulkheads.values().forEach(CompensationBulkhead::shutdown);
+    }
+
+    private Duration eligibleAfter(CompensationPhase phase) {
+        return switch (phase) {
+            case STUCK_IN_PROGRESS -> properties.getStuckInProgressAfter();
+            case UNDEFINED -> properties.getUndefinedAfter();
+            case PENDING_COMPENSATION -> properties.getRetryDelay();
+        };
+    }
+}
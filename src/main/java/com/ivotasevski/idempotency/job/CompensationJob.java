@@ -1,29 +1,33 @@
 package com.ivotasevski.idempotency.job;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+@RequiredArgsConstructor
 @Component
 public class CompensationJob {
 
+    private final CompensationEngine compensationEngine;
+
     @Scheduled(cron = "*/10 * * * * *")
     public void compensateStuckInProgress() {
-        // TODO: Implement this
+        compensationEngine.compensate(CompensationPhase.STUCK_IN_PROGRESS);
     }
 
     @Scheduled(cron = "*/10 * * * * *")
     public void compensateUndefined() {
-        // TODO: Implement this
+        compensationEngine.compensate(CompensationPhase.UNDEFINED);
     }
 
     @Scheduled(cron = "*/10 * * * * *")
     public void resetStuckInCompensation() {
-        // TODO: Implement this
+        compensationEngine.resetStuckInCompensation();
     }
 
     @Scheduled(cron = "*/10 * * * * *")
     public void compensatePendingCompensation() {
-        // TODO: Implement this
+        compensationEngine.compensate(CompensationPhase.PENDING_COMPENSATION);
     }
 
 }
@@ -0,0 +1,19 @@
+package com.ivotasevski.idempotency.job;
+
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/*
+    Records eligible for compensation, by status.
+ */
+@Getter
+@RequiredArgsConstructor
+public enum CompensationPhase {
+
+    STUCK_IN_PROGRESS(IdempotentRequestStatus.IN_PROGRESS),
+    UNDEFINED(IdempotentRequestStatus.UNDEFINED),
+    PENDING_COMPENSATION(IdempotentRequestStatus.PENDING_COMPENSATION);
+
+    private final IdempotentRequestStatus status;
+}
@@ -0,0 +1,234 @@
+package com.ivotasevski.idempotency.job;
+
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.store.ShardedIdempotencyStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+    Maintains the daily range partitions of gtw_idemp (by expired_at):
+    - drops partitions whose records all expired at least drop-grace-days ago, a metadata-only operation
+      instead of DELETEs and the vacuum work that follows them,
+    - creates the partitions for the next lookahead-days, so new records never land in the default partition.
+    Expired records still present in not yet dropped partitions are ignored by all lookups (expired_at > now()).
+    Runs on one node at a time, guarded by an advisory lock, on the primary database and on each shard of the
+    SHARDED store.
+
+    Every partition is dropped and created in its own transaction, a partition that cannot be dropped does not
+    keep the next days from being created. Partitions are detached before they are dropped under a short
+    lock_timeout, so the exclusive lock on gtw_idemp never queues up traffic for long (DETACH CONCURRENTLY is not
+    an option, Postgres does not detach concurrently next to the default partition every migration creates).
+    Tables named like partitions whose suffix is not a date are left alone.
+    Records that landed in the default partition (the job did not run for a while) are moved to the partition
+    of their day when it is created.
+
+    Also deletes interned header sets (gtw_idemp_headers, on the primary) no record references any more, looked up
+    on the primary and on each shard. Only sets not interned for storage.header-sets-grace are deleted: interning
+    touches the set (ResponseHeadersInterner trusts it for a fraction of the grace), and the DELETE re-checks
+    last_interned_at, so a set referenced again meanwhile is kept.
+ */
+@Slf4j
+@Component
+public class PartitionMaintenanceJob {
+
+    private static final long MAINTENANCE_LOCK_KEY = 0x67747749646d7050L; // "gtwIdmpP"
+    private static final String PARTITION_PREFIX = "gtw_idemp_p";
+    private static final String DEFAULT_PARTITION = "gtw_idemp_default";
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.BASIC_ISO_DATE;
+    private static final int HEADER_SETS_BATCH = 1000;
+
+    private static final String HEADER_SET_CANDIDATES_SQL = "SELECT hash FROM gtw_idemp_headers " +
+            "WHERE last_interned_at < now() - ? * INTERVAL '1 millisecond' AND hash > ? ORDER BY hash LIMIT ?";
+    private static final String REFERENCED_HEADER_SETS_SQL = "SELECT DISTINCT response_headers_hash FROM gtw_idemp " +
+            "WHERE response_headers_hash = ANY(?)";
+    private static final String DELETE_HEADER_SETS_SQL = "DELETE FROM gtw_idemp_headers " +
+            "WHERE hash = ANY(?) AND last_interned_at < now() - ? * INTERVAL '1 millisecond'";
+
+    private final IdempotencyProperties.Partitions properties;
+    private final Duration headerSetsGrace;
+    private final DataSource dataSource;
+    private final ObjectProvider<ShardedIdempotencyStore> shardedStore;
+
+    public PartitionMaintenanceJob(IdempotencyProperties properties, DataSource dataSource,
+                                   ObjectProvider<ShardedIdempotencyStore> shardedStore) {
+        this.properties = properties.getPartitions();
+        this.headerSetsGrace = properties.getStorage().getHeaderSetsGrace();
+        this.dataSource = dataSource;
+        this.shardedStore = shardedStore;
+        Duration retention = properties.getPolicy().getRetention();
+        if (this.properties.isEnabled() && retention.compareTo(Duration.ofDays(this.properties.getLookaheadDays())) > 0) {
+            throw new IllegalStateException("idempotency.policy.retention " + retention + " is longer than "
+                    + "idempotency.partitions.lookahead-days " + this.properties.getLookaheadDays()
+                    + ", records would land in the default partition");
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "0 5 * * * *")
+    public void maintainPartitions() {
+        maintain("primary", dataSource, true);
+        shardedStore.ifAvailable(store -> store.shards().forEach(shard ->
+                maintain("shard " + shard.name(), shard.dataSource(), false)));
+    }
+
+    /*
+        The steps run in their own transactions on one connection, which holds the session advisory lock throughout.
+     */
+    private void maintain(String database, DataSource dataSource, boolean primary) {
+        if (!properties.isEnabled() && !primary) {
+            return;
+        }
+        new JdbcTemplate(dataSource).execute((ConnectionCallback<Void>) con -> {
+            SingleConnectionDataSource connection = new SingleConnectionDataSource(con, true);
+            JdbcTemplate session = new JdbcTemplate(connection);
+            if (!Boolean.TRUE.equals(session.queryForObject("SELECT pg_try_advisory_lock(?)", Boolean.class, MAINTENANCE_LOCK_KEY))) {
+                log.debug("Partition maintenance of {} running on another node", database);
+                return null;
+            }
+            try {
+                // partition bounds are compared with now() on the database, so use its date as well
+                LocalDate today = session.queryForObject("SELECT CAST(now() AS DATE)", LocalDate.class);
+                TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(connection));
+                if (properties.isEnabled()) {
+                    dropExpiredPartitions(session, transactionTemplate, today);
+                    createPartitions(session, transactionTemplate, today);
+                }
+                if (primary) {
+                    pruneHeaderSets(session);
+                }
+            } finally {
+                session.queryForObject("SELECT pg_advisory_unlock(?)", Boolean.class, MAINTENANCE_LOCK_KEY);
+            }
+            return null;
+        });
+    }
+
+    private void createPartitions(JdbcTemplate session, TransactionTemplate transactionTemplate, LocalDate today) {
+        for (LocalDate day = today; !day.isAfter(today.plusDays(properties.getLookaheadDays())); day = day.plusDays(1)) {
+            String partition = PARTITION_PREFIX + PARTITION_SUFFIX.format(day);
+            String bounds = "FOR VALUES FROM ('" + day + "') TO ('" + day.plusDays(1) + "')";
+            if (session.queryForObject("SELECT to_regclass(?)", String.class, partition) != null) {
+                continue;
+            }
+            String range = "expired_at >= '" + day + "' AND expired_at < '" + day.plusDays(1) + "'";
+            transactionTemplate.executeWithoutResult(s -> {
+                if (!Boolean.TRUE.equals(session.queryForObject(
+                        "SELECT EXISTS (SELECT 1 FROM " + DEFAULT_PARTITION + " WHERE " + range + ")", Boolean.class))) {
+                    session.execute("CREATE TABLE " + partition + " PARTITION OF gtw_idemp " + bounds);
+                    return;
+                }
+                // attaching fails while the default partition holds records of the day, move them first
+                session.execute("CREATE TABLE " + partition + " (LIKE gtw_idemp INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+                int moved = session.update("WITH moved AS (DELETE FROM " + DEFAULT_PARTITION + " WHERE " + range + " RETURNING *) " +
+                        "INSERT INTO " + partition + " SELECT * FROM moved");
+                session.execute("ALTER TABLE gtw_idemp ATTACH PARTITION " + partition + " " + bounds);
+                log.warn("Moved {} records from the default partition to {}", moved, partition);
+            });
+        }
+    }
+
+    private void dropExpiredPartitions(JdbcTemplate session, TransactionTemplate transactionTemplate, LocalDate today) {
+        LocalDate dropBefore = today.minusDays(properties.getDropGraceDays());
+        // partitions still attached, detached by an interrupted run (pending), or detached but not dropped (null)
+        List<PartitionState> partitions = session.query(
+                "SELECT c.relname, i.inhdetachpending FROM pg_class c " +
+                        "LEFT JOIN pg_inherits i ON i.inhrelid = c.oid " +
+                        "WHERE c.relkind = 'r' AND c.relname LIKE '" + PARTITION_PREFIX + "%'",
+                (rs, i) -> new PartitionState(rs.getString("relname"), rs.getObject("inhdetachpending", Boolean.class)));
+        for (PartitionState partition : partitions) {
+            try {
+                LocalDate day = LocalDate.parse(partition.name().substring(PARTITION_PREFIX.length()), PARTITION_SUFFIX);
+                // a partition holds records expiring before the next day
+                if (day.plusDays(1).isAfter(dropBefore)) {
+                    continue;
+                }
+                if (Boolean.TRUE.equals(partition.detachPending())) {
+                    // detached CONCURRENTLY by hand and interrupted
+                    session.execute("ALTER TABLE gtw_idemp DETACH PARTITION " + partition.name() + " FINALIZE");
+                } else if (partition.detachPending() != null) {
+                    transactionTemplate.executeWithoutResult(s -> {
+                        session.execute("SET LOCAL lock_timeout = " + properties.getDetachLockTimeout().toMillis());
+                        session.execute("ALTER TABLE gtw_idemp DETACH PARTITION " + partition.name());
+                    });
+                }
+                session.execute("DROP TABLE " + partition.name());
+                log.info("Dropped expired partition {}", partition.name());
+            } catch (DateTimeParseException e) {
+                log.debug("Skipping table {}, not a daily partition", partition.name());
+            } catch (RuntimeException e) {
+                // retried on the next run
+                log.warn("Failed to drop expired partition {}", partition.name(), e);
+            }
+        }
+    }
+
+    /*
+        Candidates are read in hash order, a batch of still referenced sets does not stop the sets after it from
+        being pruned. Every DELETE commits on its own.
+     */
+    private void pruneHeaderSets(JdbcTemplate session) {
+        List<JdbcTemplate> recordDatabases = new ArrayList<>();
+        recordDatabases.add(session);
+        shardedStore.ifAvailable(store -> store.shards().forEach(shard -> recordDatabases.add(shard.jdbcTemplate())));
+        long graceMillis = headerSetsGrace.toMillis();
+        int pruned = 0;
+        String after = "";
+        List<String> candidates;
+        do {
+            candidates = session.queryForList(HEADER_SET_CANDIDATES_SQL, String.class, graceMillis, after, HEADER_SETS_BATCH);
+            if (candidates.isEmpty()) {
+                break;
+            }
+            after = candidates.getLast();
+            Set<String> unreferenced = new HashSet<>(candidates);
+            for (JdbcTemplate records : recordDatabases) {
+                unreferenced.removeAll(hashes(records, REFERENCED_HEADER_SETS_SQL, candidates));
+                if (unreferenced.isEmpty()) {
+                    break;
+                }
+            }
+            if (!unreferenced.isEmpty()) {
+                pruned += session.update(con -> {
+                    PreparedStatement ps = con.prepareStatement(DELETE_HEADER_SETS_SQL);
+                    ps.setArray(1, con.createArrayOf("varchar", unreferenced.toArray()));
+                    ps.setLong(2, graceMillis);
+                    return ps;
+                });
+            }
+        } while (candidates.size() == HEADER_SETS_BATCH);
+        if (pruned > 0) {
+            log.info("Pruned {} unreferenced response header sets", pruned);
+        }
+    }
+
+    private static List<String> hashes(JdbcTemplate jdbcTemplate, String sql, List<String> hashes) {
+        return jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql);
+            ps.setArray(1, con.createArrayOf("varchar", hashes.toArray()));
+            return ps;
+        }, (rs, i) -> rs.getString(1));
+    }
+
+    private record PartitionState(String name, Boolean detachPending) {
+    }
+}
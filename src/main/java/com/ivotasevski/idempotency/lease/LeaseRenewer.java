@@ -0,0 +1,161 @@
+package com.ivotasevski.idempotency.lease;
+
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Keeps the processing leases of requests running on this node alive.
+
+    Claims take a short lease (lease.duration) instead of a lock covering the longest possible request, so records
+    of a crashed node can be taken over within seconds. Requests are registered here while they run, and one
+    heartbeat thread renews the leases of all of them every renew-interval, renew-batch-size keys per UPDATE.
+    A lease that could not be renewed was taken over by another claim (the lease lapsed, e.g. after a long GC pause
+    or a lost DB connection), it is reported and no longer renewed.
+    Endpoints with their own lease (@IdempotentAction(lockLease)) are renewed in separate batches per lease duration.
+ */
+@Slf4j
+@Component
+public class LeaseRenewer implements SmartLifecycle {
+
+    private final IdempotencyProperties.Lease properties;
+    private final IdempotencyStore idempotencyStore;
+
+    // X-Request-Id -> leaseId of its claim and its lease duration
+    private final Map<String, HeldLease> leases = new ConcurrentHashMap<>();
+
+    private final Timer heartbeat;
+    private final Counter renewed;
+    private final Counter lost;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    public LeaseRenewer(IdempotencyProperties properties, IdempotencyStore idempotencyStore, MeterRegistry meterRegistry) {
+        this.properties = properties.getLease();
+        this.idempotencyStore = idempotencyStore;
+        this.heartbeat = meterRegistry.timer("idempotency.lease.heartbeat");
+        this.renewed = meterRegistry.counter("idempotency.lease.renewed");
+        this.lost = meterRegistry.counter("idempotency.lease.lost");
+        Gauge.builder("idempotency.lease.active", leases, Map::size).register(meterRegistry);
+    }
+
+    public void acquire(String xRequestId, String leaseId) {
+        acquire(xRequestId, leaseId, properties.getDuration());
+    }
+
+    public void acquire(String xRequestId, String leaseId, Duration duration) {
+        if (xRequestId != null && leaseId != null) {
+            leases.put(xRequestId, new HeldLease(leaseId, duration));
+        }
+    }
+
+    /*
+        Stops renewing the lease once the response of the request was stored (or could not be).
+        A newer lease of the same key, e.g. of a retry that took the finished record over, is kept.
+     */
+    public void release(String xRequestId, String leaseId) {
+        if (xRequestId != null && leaseId != null) {
+            leases.computeIfPresent(xRequestId, (key, held) -> held.leaseId().equals(leaseId) ? null : held);
+        }
+    }
+
+    void renew() {
+        if (leases.isEmpty()) {
+            return;
+        }
+        heartbeat.record(() -> {
+            Map<Duration, Map<String, String>> batches = new HashMap<>();
+            for (Map.Entry<String, HeldLease> lease : leases.entrySet()) {
+                Duration duration = lease.getValue().duration();
+                Map<String, String> batch = batches.computeIfAbsent(duration, d -> new HashMap<>());
+                batch.put(lease.getKey(), lease.getValue().leaseId());
+                if (batch.size() >= properties.getRenewBatchSize()) {
+                    renew(batch, duration);
+                    batch.clear();
+                }
+            }
+            batches.forEach((duration, batch) -> renew(batch, duration));
+        });
+    }
+
+    private void renew(Map<String, String> batch, Duration duration) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Set<String> renewedKeys;
+        try {
+            renewedKeys = idempotencyStore.renewLeases(batch, duration);
+        } catch (RuntimeException e) {
+            // retried on the next heartbeat, leases are several intervals long
+            log.warn("Failed to renew {} leases", batch.size(), e);
+            return;
+        }
+        renewed.increment(renewedKeys.size());
+        batch.forEach((xRequestId, leaseId) -> {
+            // requests finished since the batch was collected are no longer registered
+            if (!renewedKeys.contains(xRequestId) && leases.remove(xRequestId, new HeldLease(leaseId, duration))) {
+                log.warn("Lease of idempotent key: {} was lost, the request may be executed again by another claim", xRequestId);
+                lost.increment();
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "IdempotencyLeaseRenewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = properties.getRenewInterval().toMillis();
+        executor.scheduleWithFixedDelay(this::renewSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        scheduler = executor;
+    }
+
+    private void renewSafely() {
+        try {
+            renew();
+        } catch (RuntimeException e) {
+            // an exception would cancel the periodic task
+            log.error("Lease heartbeat failed", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService executor = scheduler;
+        scheduler = null;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return scheduler != null;
+    }
+
+    @Override
+    public int getPhase() {
+        // stop after the web server and the response finalizer, requests keep their leases until they finished
+        return SmartLifecycle.DEFAULT_PHASE - 8192;
+    }
+
+    private record HeldLease(String leaseId, Duration duration) {
+    }
+}
@@ -0,0 +1,113 @@
+package com.ivotasevski.idempotency.metrics;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+    Meters and observations of idempotent request handling, all tagged by action.
+
+    Observations (timers through the default meter observation handler, spans when a tracing bridge is present):
+    - idempotency.request: idempotency handling before the controller runs, by result,
+    - idempotency.claim: claim of the key, by outcome and status of the claimed record,
+    - idempotency.finalize: storing (or queueing) the response, by stored status.
+    Meters:
+    - idempotency.replays: duplicates answered with a stored response, by stored status and source,
+    - idempotency.store.lock.wait: wait for the record lock when storing a response (JPA store),
+    - idempotency.finalize.flush: batch writes of ASYNC finalization (not tagged, batches mix actions),
+    - idempotency.lease.lost: responses not stored because the record was taken over meanwhile (not tagged, shared
+      with the LeaseRenewer counting leases it could not renew),
+    - idempotency.stored.body.size / idempotency.stored.headers.size: stored response sizes in bytes.
+ */
+@Component
+@RequiredArgsConstructor
+public class IdempotencyMetrics {
+
+    public static final String REQUEST_OBSERVATION = "idempotency.request";
+    public static final String CLAIM_OBSERVATION = "idempotency.claim";
+    public static final String FINALIZE_OBSERVATION = "idempotency.finalize";
+
+    private final MeterRegistry meterRegistry;
+    private final ObservationRegistry observationRegistry;
+
+    public Observation observation(String name, Action action) {
+        return Observation.createNotStarted(name, observationRegistry)
+                .lowCardinalityKeyValue("action", action.name());
+    }
+
+    public void replayed(Action action, IdempotentRequestStatus status, ReplaySource source) {
+        meterRegistry.counter("idempotency.replays",
+                        "action", action.name(),
+                        "status", String.valueOf(status),
+                        "source", source.name().toLowerCase())
+                .increment();
+    }
+
+    public Timer lockWait(Action action) {
+        return meterRegistry.timer("idempotency.store.lock.wait", "action", String.valueOf(action));
+    }
+
+    /*
+        ASYNC finalization: one batch write, responses of all actions.
+     */
+    public Timer flush() {
+        return meterRegistry.timer("idempotency.finalize.flush");
+    }
+
+    public void leaseLost(int responses) {
+        meterRegistry.counter("idempotency.lease.lost").increment(responses);
+    }
+
+    public void stored(Action action, EncodedResponse response) {
+        String encoding = response.bodyEncoding() != null ? response.bodyEncoding().name() : "IDENTITY";
+        DistributionSummary.builder("idempotency.stored.body.size")
+                .baseUnit("bytes")
+                .tags("action", action.name(), "encoding", encoding)
+                .register(meterRegistry)
+                .record(response.responseBody() != null ? response.responseBody().length : 0);
+        DistributionSummary.builder("idempotency.stored.headers.size")
+                .baseUnit("bytes")
+                .tags("action", action.name(), "interned", String.valueOf(response.responseHeadersHash() != null))
+                .register(meterRegistry)
+                .record(headersSize(response));
+    }
+
+    private static int headersSize(EncodedResponse response) {
+        if (response.responseHeadersHash() != null) {
+            return response.responseHeadersHash().length();
+        }
+        if (response.responseHeaderBlock() != null) {
+            return response.responseHeaderBlock().length;
+        }
+        Map<String, List<String>> headers = response.responseHeaders();
+        if (headers == null) {
+            return 0;
+        }
+        int size = 0;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                size += header.getKey().length() + value.length();
+            }
+        }
+        return size;
+    }
+
+    public enum ReplaySource {
+        // near cache or finalization queue of this node
+        CACHE,
+        // read from the store
+        STORE,
+        // coalesced onto the in-flight original
+        COALESCED
+    }
+}
@@ -0,0 +1,53 @@
+package com.ivotasevski.idempotency.reactive;
+
+import com.ivotasevski.idempotency.capture.ResponseCapture;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/*
+    Reactive counterpart of CapturingResponseWrapper: each DataBuffer of the streamed body is copied into a
+    ResponseCapture as it passes to the client, the body is never aggregated in front of the client.
+ */
+public class CapturingServerHttpResponse extends ServerHttpResponseDecorator {
+
+    private final ResponseCapture capture;
+
+    public CapturingServerHttpResponse(ServerHttpResponse delegate, ResponseCapture capture) {
+        super(delegate);
+        this.capture = capture;
+    }
+
+    public ResponseCapture getCapture() {
+        return capture;
+    }
+
+    @Override
+    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+        return super.writeWith(Flux.from(body).doOnNext(this::capture));
+    }
+
+    @Override
+    public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+        return super.writeAndFlushWith(Flux.from(body).map(part -> Flux.from(part).doOnNext(this::capture)));
+    }
+
+    // runs before the buffer is written (and released) downstream
+    private void capture(DataBuffer buffer) {
+        try (DataBuffer.ByteBufferIterator buffers = buffer.readableByteBuffers()) {
+            while (buffers.hasNext()) {
+                ByteBuffer next = buffers.next();
+                capture.write(next);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot capture response body", e);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.ivotasevski.idempotency.reactive;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.cache.ReplayCache;
+import com.ivotasevski.idempotency.capture.CaptureBufferPool;
+import com.ivotasevski.idempotency.capture.ResponseCapture;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.filter.IdempotentEndpoint;
+import com.ivotasevski.idempotency.fingerprint.FingerprintAlgorithm;
+import com.ivotasevski.idempotency.lease.LeaseRenewer;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics.ReplaySource;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import com.ivotasevski.idempotency.storage.HeaderBlock;
+import com.ivotasevski.idempotency.storage.ResponseStorage;
+import com.ivotasevski.idempotency.store.ClaimResult;
+import com.ivotasevski.idempotency.store.FinishedRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Non-blocking WebFilter variant of IdempotentHandlingFilter for WebFlux deployments, with the same
+    claim / replay / finalize semantics on the same gtw_idemp schema (through R2dbcIdempotencyStore).
+
+    - The request body is fingerprinted buffer by buffer while it is read, and the same DataBuffers are handed to
+      the controller, the body is not copied.
+    - The response body is captured buffer by buffer as it is streamed to the client (CapturingServerHttpResponse).
+    - The response is stored once the body was written; errors not rendered by the handler itself are rendered
+      after the filter chain (by the WebExceptionHandler), so they are stored with their status code only.
+    Finished responses share the replay cache and leases are renewed by the LeaseRenewer, like in the servlet filter.
+    Not (yet) supported here: ASYNC finalization, coalescing of duplicates and header interning.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class IdempotentWebFilter implements WebFilter {
+
+    private static final String RECORD_ID_HEADER = "X-Request-Id";
+    private static final String BODY_OMITTED_HEADER = "X-Idempotency-Body-Omitted";
+    // set by the server for each response, never replayed
+    private static final Set<String> UNSTORED_HEADERS = Set.of("content-length", "transfer-encoding", "date");
+    private static final byte[] SEPARATOR = {0};
+
+    private final R2dbcIdempotencyStore idempotencyStore;
+    private final ReactiveIdempotentEndpointRegistry idempotentEndpointRegistry;
+    private final ReplayCache replayCache;
+    private final CaptureBufferPool captureBufferPool;
+    private final ResponseStorage responseStorage;
+    private final LeaseRenewer leaseRenewer;
+    private final IdempotencyProperties properties;
+    private final IdempotencyMetrics idempotencyMetrics;
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        Optional<IdempotentEndpoint> endpoint = idempotentEndpointRegistry
+                .getEndpointForRequest(request.getMethod().name(), request.getPath().value());
+        if (endpoint.isEmpty()) {
+            // non-idempotent action, skip filter logic
+            return chain.filter(exchange);
+        }
+
+        // same fingerprint input as FingerprintingRequestWrapper (form posts are fingerprinted over the raw body)
+        FingerprintAlgorithm.Hasher hasher = properties.getFingerprint().getAlgorithm().newHasher();
+        update(hasher, request.getMethod().name());
+        update(hasher, request.getURI().getRawPath());
+        update(hasher, request.getURI().getRawQuery());
+        update(hasher, request.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE));
+        return request.getBody()
+                .doOnNext(buffer -> update(hasher, buffer))
+                .collectList()
+                .flatMap(body -> handleIdempotentRequest(exchange, chain, endpoint.get(), hasher.finish(), body));
+    }
+
+    private Mono<Void> handleIdempotentRequest(ServerWebExchange exchange, WebFilterChain chain, IdempotentEndpoint endpoint,
+                                               String requestHash, List<DataBuffer> body) {
+        Action actionKey = endpoint.action();
+        String xRequestId = exchange.getRequest().getHeaders().getFirst(RECORD_ID_HEADER);
+
+        // finished responses are replayed from the near cache without any DB access
+        Optional<CachedResponse> cached = replayCache.get(xRequestId);
+        if (cached.isPresent()) {
+            release(body);
+            return replay(actionKey, exchange.getResponse(), cached.get(), requestHash, ReplaySource.CACHE);
+        }
+
+        return idempotencyStore.claim(xRequestId, actionKey, requestHash,
+                        endpoint.retention(),
+                        endpoint.lockLease(),
+                        endpoint.lockLease())
+                .doOnError(e -> release(body))
+                .flatMap(claim -> {
+                    if (claim.outcome() != ClaimOutcome.EXISTING && !FingerprintAlgorithm.isMismatch(claim.requestHash(), requestHash)) {
+                        // new request, or rerun of UNDEFINED/abandoned request
+                        return proceed(exchange, chain, endpoint, xRequestId, requestHash, claim, body);
+                    }
+                    release(body);
+                    return handleExisting(exchange.getResponse(), actionKey, xRequestId, requestHash, claim);
+                });
+    }
+
+    private Mono<Void> handleExisting(ServerHttpResponse response, Action actionKey, String xRequestId, String requestHash,
+                                      ClaimResult claim) {
+        // same key reused for a different payload
+        if (FingerprintAlgorithm.isMismatch(claim.requestHash(), requestHash)) {
+            response.setStatusCode(HttpStatus.UNPROCESSABLE_ENTITY);
+            return response.setComplete();
+        }
+        // decide how to continue based on original request status
+        if (claim.status() == IdempotentRequestStatus.IN_PROGRESS || claim.status() == IdempotentRequestStatus.UNDEFINED) {
+            response.setStatusCode(HttpStatus.ACCEPTED);
+            return response.setComplete();
+        }
+        return idempotencyStore.find(xRequestId)
+                // header sets and compressed bodies may need a blocking lookup or inflating
+                .publishOn(Schedulers.boundedElastic())
+                .map(responseStorage::read)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(storedResponse -> {
+                    if (storedResponse.isEmpty()) {
+                        // record expired since the claim saw it (a retry claims the key anew), or was compensated
+                        // before the original request stored a response
+                        response.setStatusCode(HttpStatus.CONFLICT);
+                        return response.setComplete();
+                    }
+                    replayCache.put(xRequestId, storedResponse.get());
+                    return replay(actionKey, response, storedResponse.get(), requestHash, ReplaySource.STORE);
+                });
+    }
+
+    private Mono<Void> proceed(ServerWebExchange exchange, WebFilterChain chain, IdempotentEndpoint endpoint, String xRequestId,
+                               String requestHash, ClaimResult claim, List<DataBuffer> body) {
+        leaseRenewer.acquire(xRequestId, claim.leaseId(), endpoint.lockLease());
+        AtomicBoolean bodyRead = new AtomicBoolean();
+        ServerHttpRequest request = new ServerHttpRequestDecorator(exchange.getRequest()) {
+            @Override
+            public Flux<DataBuffer> getBody() {
+                return Flux.defer(() -> bodyRead.compareAndSet(false, true)
+                        ? Flux.fromIterable(body)
+                        : Flux.error(new IllegalStateException("Request body has already been read")));
+            }
+        };
+        CapturingServerHttpResponse response = new CapturingServerHttpResponse(exchange.getResponse(),
+                captureBufferPool.newCapture(endpoint.maxStoredBodySize()));
+
+        return chain.filter(exchange.mutate().request(request).response(response).build())
+                .onErrorResume(e -> finalizeResponse(response, endpoint, xRequestId, claim.leaseId(), requestHash,
+                        responseCode(response, e)).then(Mono.error(e)))
+                .then(Mono.defer(() -> finalizeResponse(response, endpoint, xRequestId, claim.leaseId(), requestHash,
+                        responseCode(response, null))))
+                .doFinally(s -> {
+                    if (bodyRead.compareAndSet(false, true)) {
+                        // never consumed by the controller
+                        release(body);
+                    }
+                    response.getCapture().release();
+                    leaseRenewer.release(xRequestId, claim.leaseId());
+                });
+    }
+
+    private Mono<Void> finalizeResponse(CapturingServerHttpResponse response, IdempotentEndpoint endpoint, String xRequestId,
+                                        String leaseId, String requestHash, int responseCode) {
+        Action actionKey = endpoint.action();
+        IdempotentRequestStatus status = endpoint.status(responseCode);
+        Map<String, List<String>> headers = collectHeaders(response.getHeaders());
+        headers.keySet().removeIf(name -> !endpoint.storesHeader(name));
+        return Mono.fromCallable(() -> {
+                    // reads the capture back, possibly from its spill file
+                    ResponseCapture capture = response.getCapture();
+                    if (capture.isOmitted()) {
+                        // body exceeded the max stored size, replays get the marker instead of the body
+                        headers.put(BODY_OMITTED_HEADER, List.of(capture.getOmittedMarker()));
+                    }
+                    byte[] body = capture.toByteArray();
+                    EncodedResponse encoded = responseStorage.encodeInline(body, headers);
+                    idempotencyMetrics.stored(actionKey, encoded);
+                    return new CapturedResponse(body, encoded);
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(captured -> idempotencyStore.finish(new FinishedRequest(xRequestId, responseCode, captured.encoded(),
+                                requestHash, status, actionKey, leaseId))
+                        .doOnNext(expiredAt -> {
+                            if (status == IdempotentRequestStatus.SUCCESS || status == IdempotentRequestStatus.PENDING_COMPENSATION) {
+                                replayCache.put(xRequestId, new CachedResponse(status, responseCode, HeaderBlock.encode(headers),
+                                        captured.body(), requestHash, expiredAt));
+                            }
+                        })
+                        // late responses of requests taken over by another claim or by compensation are not stored
+                        .switchIfEmpty(Mono.fromRunnable(() -> {
+                            log.warn("Response for idempotent key: {} not stored, the record was taken over", xRequestId);
+                            idempotencyMetrics.leaseLost(1);
+                        })))
+                .then();
+    }
+
+    private Mono<Void> replay(Action actionKey, ServerHttpResponse response, CachedResponse storedResponse, String requestHash,
+                              ReplaySource source) {
+        // same key reused for a different payload
+        if (FingerprintAlgorithm.isMismatch(storedResponse.requestHash(), requestHash)) {
+            response.setStatusCode(HttpStatus.UNPROCESSABLE_ENTITY);
+            return response.setComplete();
+        }
+        idempotencyMetrics.replayed(actionKey, storedResponse.status(), source);
+        response.setStatusCode(HttpStatusCode.valueOf(storedResponse.responseCode()));
+        HttpHeaders headers = response.getHeaders();
+        HeaderBlock.forEach(storedResponse.responseHeaderBlock(), headers::add);
+        byte[] body = storedResponse.responseBody();
+        if (body == null) {
+            return response.setComplete();
+        }
+        headers.setContentLength(body.length);
+        // wraps the cached array, no copy
+        return response.writeWith(Mono.fromSupplier(() -> response.bufferFactory().wrap(body)));
+    }
+
+    private static int responseCode(ServerHttpResponse response, Throwable error) {
+        if (error instanceof ResponseStatusException e) {
+            return e.getStatusCode().value();
+        }
+        if (error != null) {
+            return HttpStatus.INTERNAL_SERVER_ERROR.value();
+        }
+        return response.getStatusCode() != null ? response.getStatusCode().value() : HttpStatus.OK.value();
+    }
+
+    private static Map<String, List<String>> collectHeaders(HttpHeaders responseHeaders) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        responseHeaders.forEach((name, values) -> {
+            if (!UNSTORED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                headers.put(name, new ArrayList<>(values));
+            }
+        });
+        return headers;
+    }
+
+    private static void update(FingerprintAlgorithm.Hasher hasher, String value) {
+        if (value != null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            hasher.update(bytes, 0, bytes.length);
+        }
+        hasher.update(SEPARATOR, 0, 1);
+    }
+
+    private static void update(FingerprintAlgorithm.Hasher hasher, DataBuffer buffer) {
+        try (DataBuffer.ByteBufferIterator buffers = buffer.readableByteBuffers()) {
+            while (buffers.hasNext()) {
+                ByteBuffer next = buffers.next();
+                if (next.hasArray()) {
+                    hasher.update(next.array(), next.arrayOffset() + next.position(), next.remaining());
+                } else {
+                    byte[] bytes = new byte[next.remaining()];
+                    next.get(bytes);
+                    hasher.update(bytes, 0, bytes.length);
+                }
+            }
+        }
+    }
+
+    private static void release(List<DataBuffer> body) {
+        body.forEach(DataBufferUtils::release);
+    }
+
+    private record CapturedResponse(byte[] body, EncodedResponse encoded) {
+    }
+}
@@ -0,0 +1,157 @@
+package com.ivotasevski.idempotency.reactive;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.BodyEncoding;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import com.ivotasevski.idempotency.store.ClaimResult;
+import com.ivotasevski.idempotency.store.FinishedRequest;
+import com.ivotasevski.idempotency.store.StoredRequest;
+import io.r2dbc.spi.Readable;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.ivotasevski.idempotency.domain.IdempotentRequestStatus.Codes.IN_PROGRESS;
+
+/*
+    Non-blocking counterpart of the IdempotencyStore operations used while handling a request, on R2DBC against
+    the same gtw_idemp schema (and the same gtw_idemp_claim function) as the JDBC and JPA stores.
+    Each statement runs in its own implicit transaction; the claim function serializes claims of a key itself.
+ */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class R2dbcIdempotencyStore {
+
+    private static final String CLAIM_SQL = "SELECT claim_outcome, claim_status, claim_request_hash " +
+            "FROM gtw_idemp_claim(:xRequestId, :trxId, :action, :requestHash, :expirationSeconds, :lockSeconds, :takeoverLockSeconds)";
+    private static final String FIND_SQL = "SELECT x_request_id, idempotent_action, status, request_hash, expired_at, " +
+            "response_code, body_encoding, response_body, CAST(response_headers AS TEXT) AS response_headers, response_headers_hash, response_header_block " +
+            "FROM gtw_idemp WHERE key_hash = gtw_idemp_key(:xRequestId) AND x_request_id = :xRequestId AND expired_at > now()";
+    private static final String FINISH_SQL = "UPDATE gtw_idemp SET " +
+            "response_code = :responseCode, response_body = :responseBody, body_encoding = :bodyEncoding, " +
+            "response_headers = CAST(:responseHeaders AS jsonb), response_headers_hash = :responseHeadersHash, " +
+            "response_header_block = :responseHeaderBlock, " +
+            "request_hash = COALESCE(:requestHash, request_hash), status = :status, updated_at = now(), version = version + 1 " +
+            "WHERE key_hash = gtw_idemp_key(:xRequestId) AND x_request_id = :xRequestId AND expired_at > now() " +
+            "AND trx_id = CAST(:leaseId AS UUID) AND status = " + IN_PROGRESS + " " +
+            "RETURNING expired_at";
+
+    private static final TypeReference<Map<String, List<String>>> HEADERS_TYPE = new TypeReference<>() {
+    };
+
+    private final DatabaseClient databaseClient;
+    private final ObjectMapper objectMapper;
+
+    /*
+        See IdempotencyStore.claim.
+     */
+    public Mono<ClaimResult> claim(String xRequestId, Action action, String requestHash,
+                                   Duration expiration, Duration lock, Duration takeoverLock) {
+        String trxId = UUID.randomUUID().toString();
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(CLAIM_SQL)
+                .bind("xRequestId", xRequestId)
+                .bind("trxId", trxId)
+                .bind("action", action.getCode())
+                .bind("expirationSeconds", expiration.toSeconds())
+                .bind("lockSeconds", lock.toSeconds())
+                .bind("takeoverLockSeconds", takeoverLock.toSeconds());
+        spec = requestHash != null ? spec.bind("requestHash", requestHash) : spec.bindNull("requestHash", String.class);
+        return spec.map(row -> {
+                    ClaimOutcome outcome = ClaimOutcome.valueOf(row.get("claim_outcome", String.class));
+                    return new ClaimResult(
+                            outcome,
+                            IdempotentRequestStatus.fromCode(row.get("claim_status", Short.class)),
+                            row.get("claim_request_hash", String.class),
+                            outcome != ClaimOutcome.EXISTING ? trxId : null);
+                })
+                .one()
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("Claim of " + xRequestId + " returned no record")));
+    }
+
+    public Mono<StoredRequest> find(String xRequestId) {
+        return databaseClient.sql(FIND_SQL)
+                .bind("xRequestId", xRequestId)
+                .map(this::toStoredRequest)
+                .one();
+    }
+
+    /*
+        See IdempotencyStore.finish, emits the expiration of the updated record, empty when nothing was updated.
+     */
+    public Mono<Instant> finish(FinishedRequest request) {
+        EncodedResponse response = request.response();
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(FINISH_SQL)
+                .bind("responseCode", request.responseCode())
+                .bind("status", request.status().getCode())
+                .bind("xRequestId", request.xRequestId())
+                .bind("leaseId", request.leaseId());
+        spec = bindNullable(spec, "responseBody", response.responseBody(), byte[].class);
+        spec = bindNullable(spec, "bodyEncoding", response.bodyEncoding() != null ? response.bodyEncoding().name() : null, String.class);
+        spec = bindNullable(spec, "responseHeaders", toJson(response.responseHeaders()), String.class);
+        spec = bindNullable(spec, "responseHeadersHash", response.responseHeadersHash(), String.class);
+        spec = bindNullable(spec, "responseHeaderBlock", response.responseHeaderBlock(), byte[].class);
+        spec = bindNullable(spec, "requestHash", request.requestHash(), String.class);
+        return spec.map(row -> row.get("expired_at", LocalDateTime.class).atZone(ZoneId.systemDefault()).toInstant())
+                .one();
+    }
+
+    private static <T> DatabaseClient.GenericExecuteSpec bindNullable(DatabaseClient.GenericExecuteSpec spec, String name,
+                                                                      T value, Class<T> type) {
+        return value != null ? spec.bind(name, value) : spec.bindNull(name, type);
+    }
+
+    private StoredRequest toStoredRequest(Readable row) {
+        String bodyEncoding = row.get("body_encoding", String.class);
+        return new StoredRequest(
+                row.get("x_request_id", String.class),
+                Action.fromCode(row.get("idempotent_action", Short.class)),
+                IdempotentRequestStatus.fromCode(row.get("status", Short.class)),
+                row.get("request_hash", String.class),
+                row.get("expired_at", LocalDateTime.class).atZone(ZoneId.systemDefault()).toInstant(),
+                row.get("response_code", Integer.class),
+                new EncodedResponse(
+                        bodyEncoding != null ? BodyEncoding.valueOf(bodyEncoding) : null,
+                        row.get("response_body", byte[].class),
+                        fromJson(row.get("response_headers", String.class)),
+                        row.get("response_headers_hash", String.class),
+                        row.get("response_header_block", byte[].class)));
+    }
+
+    private String toJson(Map<String, List<String>> headers) {
+        if (headers == null) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(headers);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize response headers", e);
+        }
+    }
+
+    private Map<String, List<String>> fromJson(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(json, HEADERS_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot deserialize response headers", e);
+        }
+    }
+}
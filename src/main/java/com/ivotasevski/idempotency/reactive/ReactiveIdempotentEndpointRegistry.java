@@ -0,0 +1,60 @@
+package com.ivotasevski.idempotency.reactive;
+
+import com.ivotasevski.idempotency.action.IdempotentAction;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.filter.IdempotentEndpoint;
+import com.ivotasevski.idempotency.filter.IdempotentEndpointIndex;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.reactive.result.method.annotation.RequestMappingHandlerMapping;
+
+import java.util.Optional;
+import java.util.Set;
+
+/*
+    IdempotentEndpointRegistry of reactive deployments: @IdempotentAction endpoints are discovered from the
+    WebFlux handler mapping, resolved with their policy and looked up through the same IdempotentEndpointIndex.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveIdempotentEndpointRegistry implements InitializingBean {
+
+    private final RequestMappingHandlerMapping handlerMapping;
+    private final IdempotencyProperties properties;
+
+    private IdempotentEndpointIndex<IdempotentEndpoint> index;
+
+    @Override
+    public void afterPropertiesSet() {
+        var builder = IdempotentEndpointIndex.<IdempotentEndpoint>builder()
+                .resolvedPathCacheSize(properties.getEndpoints().getResolvedPathCacheSize());
+
+        handlerMapping.getHandlerMethods().forEach((mapping, handlerMethod) -> {
+            if (handlerMethod.hasMethodAnnotation(IdempotentAction.class)) {
+                IdempotentAction annotation = handlerMethod.getMethodAnnotation(IdempotentAction.class);
+                if (annotation.batch()) {
+                    log.warn("Batch idempotent endpoints are not supported on WebFlux, {} is not handled idempotently", handlerMethod);
+                    return;
+                }
+                IdempotentEndpoint endpoint = IdempotentEndpoint.of(annotation, properties);
+                Set<RequestMethod> methods = mapping.getMethodsCondition().getMethods();
+                mapping.getPatternsCondition().getPatterns().forEach(p -> {
+                    builder.add(p.getPatternString(), methods, endpoint);
+                    log.info("Registered idempotent endpoint {} {} → {}", methods.isEmpty() ? "*" : methods, p, endpoint);
+                });
+            }
+        });
+
+        index = builder.build();
+    }
+
+    public Optional<IdempotentEndpoint> getEndpointForRequest(String method, String path) {
+        return index.resolve(method, path);
+    }
+}
@@ -1,21 +1,150 @@
 package com.ivotasevski.idempotency.repository;
 
+import com.ivotasevski.idempotency.domain.IdempotentRequestClaim;
+import com.ivotasevski.idempotency.domain.IdempotentRequestCompensation;
 import com.ivotasevski.idempotency.domain.IdempotentRequestEntity;
+import com.ivotasevski.idempotency.domain.IdempotentRequestId;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
 import java.util.Optional;
 
+import static com.ivotasevski.idempotency.domain.IdempotentRequestStatus.Codes.IN_COMPENSATION;
+import static com.ivotasevski.idempotency.domain.IdempotentRequestStatus.Codes.IN_PROGRESS;
+import static com.ivotasevski.idempotency.domain.IdempotentRequestStatus.Codes.PENDING_COMPENSATION;
+
 @Repository
-public interface IdempotentRequestRepository extends JpaRepository<IdempotentRequestEntity, Long> {
+public interface IdempotentRequestRepository extends JpaRepository<IdempotentRequestEntity, IdempotentRequestId> {
 
     @Transactional
     @Query(value = "SELECT * FROM gtw_idemp " +
-            "WHERE x_request_id=:xRequestId " +
+            "WHERE key_hash = gtw_idemp_key(:xRequestId) AND x_request_id = :xRequestId AND expired_at > now() " +
             "FOR UPDATE", nativeQuery = true)
     Optional<IdempotentRequestEntity> findByxRequestIdAndLockForUpdate(@Param("xRequestId") String xRequestId);
 
+    // loaded read-only: no snapshot for dirty checking, the entity is only mapped to a StoredRequest
+    @Transactional(readOnly = true)
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true"))
+    @Query(value = "SELECT * FROM gtw_idemp " +
+            "WHERE key_hash = gtw_idemp_key(:xRequestId) AND x_request_id = :xRequestId AND expired_at > now()", nativeQuery = true)
+    Optional<IdempotentRequestEntity> findByxRequestId(@Param("xRequestId") String xRequestId);
+
+    // read-only, see findByxRequestId
+    @Transactional(readOnly = true)
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true"))
+    @Query(value = "SELECT g.* FROM gtw_idemp g " +
+            "JOIN unnest(:xRequestIds) AS k(x_request_id) " +
+            "ON g.key_hash = gtw_idemp_key(k.x_request_id) AND g.x_request_id = k.x_request_id " +
+            "WHERE g.expired_at > now()", nativeQuery = true)
+    List<IdempotentRequestEntity> findAllByxRequestIds(@Param("xRequestIds") String[] xRequestIds);
+
+    /*
+        Claim the key in a single round trip (see gtw_idemp_claim in the migrations),
+        records that cannot be claimed are read without taking any lock:
+        - insert a new IN_PROGRESS record (CREATED),
+        - take over an UNDEFINED record or an IN_PROGRESS record whose lock expired (TAKEN_OVER),
+          unless it was stored with a different request fingerprint,
+        - or return the status of the existing record untouched (EXISTING).
+        Expired records are treated as absent.
+     */
+    @Transactional
+    @Query(value = "SELECT claim_outcome AS outcome, claim_status AS status, claim_request_hash AS \"requestHash\" " +
+            "FROM gtw_idemp_claim(:xRequestId, :trxId, :action, :requestHash, :expirationSeconds, :lockSeconds, :takeoverLockSeconds)",
+            nativeQuery = true)
+    Optional<IdempotentRequestClaim> claim(@Param("xRequestId") String xRequestId,
+                                           @Param("trxId") String trxId,
+                                           @Param("action") short action,
+                                           @Param("requestHash") String requestHash,
+                                           @Param("expirationSeconds") long expirationSeconds,
+                                           @Param("lockSeconds") long lockSeconds,
+                                           @Param("takeoverLockSeconds") long takeoverLockSeconds);
+
+    /*
+        Claim all keys of a batch request in one statement (see gtw_idemp_claim_all in the migrations),
+        each key as claim does.
+     */
+    @Transactional
+    @Query(value = "SELECT claim_x_request_id AS \"xRequestId\", claim_outcome AS outcome, claim_status AS status, " +
+            "claim_request_hash AS \"requestHash\" " +
+            "FROM gtw_idemp_claim_all(:xRequestIds, :trxId, :action, :requestHashes, :expirationSeconds, :lockSeconds, :takeoverLockSeconds)",
+            nativeQuery = true)
+    List<IdempotentRequestClaim> claimAll(@Param("xRequestIds") String[] xRequestIds,
+                                          @Param("trxId") String trxId,
+                                          @Param("action") short action,
+                                          @Param("requestHashes") String[] requestHashes,
+                                          @Param("expirationSeconds") long expirationSeconds,
+                                          @Param("lockSeconds") long lockSeconds,
+                                          @Param("takeoverLockSeconds") long takeoverLockSeconds);
+
+    /*
+        Extend the leases of IN_PROGRESS records still held by the given claims, returns the renewed keys.
+        trx_id is unique per claim, so a record taken over by another claim is not renewed.
+     */
+    @Transactional
+    @Query(value = "UPDATE gtw_idemp g " +
+            "SET lock_deadline = now() + :leaseMillis * INTERVAL '1 millisecond' " +
+            "FROM unnest(:xRequestIds, :trxIds) AS l(x_request_id, trx_id) " +
+            "WHERE g.key_hash = gtw_idemp_key(l.x_request_id) AND g.x_request_id = l.x_request_id " +
+            "AND g.trx_id = CAST(l.trx_id AS UUID) AND g.status = " + IN_PROGRESS + " AND g.expired_at > now() " +
+            "RETURNING g.x_request_id", nativeQuery = true)
+    List<String> renewLeases(@Param("xRequestIds") String[] xRequestIds,
+                             @Param("trxIds") String[] trxIds,
+                             @Param("leaseMillis") long leaseMillis);
+
+    /*
+        Claim up to :limit records for compensation (see IdempotencyStore.claimForCompensation).
+     */
+    @Transactional
+    @Query(value = "UPDATE gtw_idemp g " +
+            "SET status = " + IN_COMPENSATION + ", updated_at = now(), version = g.version + 1 " +
+            "FROM (SELECT key_hash, expired_at, updated_at AS since FROM gtw_idemp " +
+            "      WHERE status = :status AND updated_at < now() - :eligibleAfterMillis * INTERVAL '1 millisecond' AND expired_at > now() " +
+            "      ORDER BY updated_at LIMIT :limit " +
+            "      FOR UPDATE SKIP LOCKED) c " +
+            "WHERE g.key_hash = c.key_hash AND g.expired_at = c.expired_at " +
+            "RETURNING g.x_request_id AS \"idempotentKey\", g.idempotent_action AS action, CAST(g.trx_id AS VARCHAR) AS \"trxId\", " +
+            "          CAST(EXTRACT(EPOCH FROM (now() - c.since)) * 1000 AS BIGINT) AS \"waitingMillis\"", nativeQuery = true)
+    List<IdempotentRequestCompensation> claimForCompensation(@Param("status") short status,
+                                                             @Param("eligibleAfterMillis") long eligibleAfterMillis,
+                                                             @Param("limit") int limit);
+
+    @Transactional
+    @Query(value = "UPDATE gtw_idemp g " +
+            "SET status = " + IN_COMPENSATION + ", updated_at = now(), version = g.version + 1 " +
+            "FROM (SELECT key_hash, expired_at, lock_deadline AS since FROM gtw_idemp " +
+            "      WHERE status = " + IN_PROGRESS + " AND lock_deadline < now() - :eligibleAfterMillis * INTERVAL '1 millisecond' AND expired_at > now() " +
+            "      ORDER BY lock_deadline LIMIT :limit " +
+            "      FOR UPDATE SKIP LOCKED) c " +
+            "WHERE g.key_hash = c.key_hash AND g.expired_at = c.expired_at " +
+            "RETURNING g.x_request_id AS \"idempotentKey\", g.idempotent_action AS action, CAST(g.trx_id AS VARCHAR) AS \"trxId\", " +
+            "          CAST(EXTRACT(EPOCH FROM (now() - c.since)) * 1000 AS BIGINT) AS \"waitingMillis\"", nativeQuery = true)
+    List<IdempotentRequestCompensation> claimStuckInProgressForCompensation(@Param("eligibleAfterMillis") long eligibleAfterMillis,
+                                                                            @Param("limit") int limit);
+
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE gtw_idemp " +
+            "SET status = :status, updated_at = now(), version = version + 1 " +
+            "WHERE key_hash = gtw_idemp_key(:xRequestId) AND x_request_id = :xRequestId AND expired_at > now() " +
+            "AND status = " + IN_COMPENSATION, nativeQuery = true)
+    int finishCompensation(@Param("xRequestId") String xRequestId, @Param("status") short status);
+
+    @Transactional
+    @Modifying
+    @Query(value = "UPDATE gtw_idemp g " +
+            "SET status = " + PENDING_COMPENSATION + ", updated_at = now(), version = g.version + 1 " +
+            "FROM (SELECT key_hash, expired_at FROM gtw_idemp " +
+            "      WHERE status = " + IN_COMPENSATION + " AND updated_at < now() - :timeoutMillis * INTERVAL '1 millisecond' AND expired_at > now() " +
+            "      LIMIT :limit " +
+            "      FOR UPDATE SKIP LOCKED) c " +
+            "WHERE g.key_hash = c.key_hash AND g.expired_at = c.expired_at", nativeQuery = true)
+    int resetStuckInCompensation(@Param("timeoutMillis") long timeoutMillis, @Param("limit") int limit);
 }
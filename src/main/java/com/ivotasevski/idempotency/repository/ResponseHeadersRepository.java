@@ -0,0 +1,24 @@
+package com.ivotasevski.idempotency.repository;
+
+import com.ivotasevski.idempotency.domain.ResponseHeadersEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public interface ResponseHeadersRepository extends JpaRepository<ResponseHeadersEntity, String> {
+
+    /*
+        Touching last_interned_at of an existing set also locks its row until the interning transaction ends, the
+        maintenance job does not delete a set that is being referenced meanwhile.
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO gtw_idemp_headers (hash, headers, created_at, last_interned_at) " +
+            "VALUES (:hash, CAST(:headers AS jsonb), now(), now()) " +
+            "ON CONFLICT (hash) DO UPDATE SET last_interned_at = now()", nativeQuery = true)
+    void insertOrTouch(@Param("hash") String hash, @Param("headers") String headers);
+}
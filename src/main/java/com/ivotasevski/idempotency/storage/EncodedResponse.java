@@ -0,0 +1,17 @@
+package com.ivotasevski.idempotency.storage;
+
+import com.ivotasevski.idempotency.domain.BodyEncoding;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+    Response in the stored format of gtw_idemp: one of responseHeaders (jsonb), responseHeadersHash (interned)
+    or responseHeaderBlock (see HeaderBlock) is set.
+ */
+public record EncodedResponse(BodyEncoding bodyEncoding,
+                              byte[] responseBody,
+                              Map<String, List<String>> responseHeaders,
+                              String responseHeadersHash,
+                              byte[] responseHeaderBlock) {
+}
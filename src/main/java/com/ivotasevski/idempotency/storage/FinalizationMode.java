@@ -0,0 +1,8 @@
+package com.ivotasevski.idempotency.storage;
+
+public enum FinalizationMode {
+    // response is stored before the request completes
+    SYNC,
+    // response is queued and stored in batches, the queue is flushed on shutdown
+    ASYNC
+}
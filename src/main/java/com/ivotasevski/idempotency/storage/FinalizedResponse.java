@@ -0,0 +1,17 @@
+package com.ivotasevski.idempotency.storage;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
+import java.util.List;
+import java.util.Map;
+
+public record FinalizedResponse(String xRequestId,
+                                int responseCode,
+                                byte[] responseBody,
+                                Map<String, List<String>> responseHeaders,
+                                String requestHash,
+                                IdempotentRequestStatus status,
+                                Action action,
+                                String leaseId) {
+}
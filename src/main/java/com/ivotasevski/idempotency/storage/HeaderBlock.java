@@ -0,0 +1,96 @@
+package com.ivotasevski.idempotency.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/*
+    Compact binary serialization of a response header set, stored in gtw_idemp.response_header_block.
+
+    Layout: version byte, then varint header count and per header a length-prefixed UTF-8 name, a varint value
+    count and the length-prefixed values (lengths are varints). Replays decode the block straight onto the response,
+    without building a map or parsing JSON.
+ */
+public final class HeaderBlock {
+
+    private static final byte VERSION = 1;
+    private static final byte[] EMPTY = {VERSION, 0};
+
+    private HeaderBlock() {
+    }
+
+    public static byte[] encode(Map<String, List<String>> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return EMPTY;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * headers.size());
+        out.write(VERSION);
+        writeVarint(out, headers.size());
+        headers.forEach((name, values) -> {
+            writeString(out, name);
+            writeVarint(out, values.size());
+            values.forEach(value -> writeString(out, value));
+        });
+        return out.toByteArray();
+    }
+
+    public static Map<String, List<String>> decode(byte[] block) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        forEach(block, (name, value) -> headers.computeIfAbsent(name, n -> new ArrayList<>(1)).add(value));
+        return headers;
+    }
+
+    /*
+        Call the consumer with each header name and value, in stored order (e.g. response::addHeader).
+     */
+    public static void forEach(byte[] block, BiConsumer<String, String> consumer) {
+        if (block[0] != VERSION) {
+            throw new IllegalStateException("Unsupported header block version " + block[0]);
+        }
+        int[] position = {1};
+        int headers = readVarint(block, position);
+        for (int i = 0; i < headers; i++) {
+            String name = readString(block, position);
+            int values = readVarint(block, position);
+            for (int j = 0; j < values; j++) {
+                consumer.accept(name, readString(block, position));
+            }
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] block, int[] position) {
+        int length = readVarint(block, position);
+        String value = new String(block, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] block, int[] position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = block[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
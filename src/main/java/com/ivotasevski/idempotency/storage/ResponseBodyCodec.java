@@ -0,0 +1,82 @@
+package com.ivotasevski.idempotency.storage;
+
+import com.ivotasevski.idempotency.domain.BodyEncoding;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+    Encodes stored response bodies.
+    The preset dictionary is part of the stored format: rows encoded with DEFLATE_DICT_V1 can only be decoded
+    with exactly this dictionary, so changing it requires a new BodyEncoding constant.
+ */
+@Component
+public class ResponseBodyCodec {
+
+    // common fragments of JSON API responses, most frequent last (closest to the compressed data)
+    private static final byte[] DICTIONARY_V1 = ("application/problem+json;charset=UTF-8application/json" +
+            "\"instance\":\"/\"detail\":\"\"title\":\"\"type\":\"about:blank\"" +
+            "\"trace\":\"\"error\":\"Gateway Timeout\"error\":\"Bad Request\"error\":\"Internal Server Error\"" +
+            "\"message\":\"\"path\":\"/example/\"status\":200,\"status\":400,\"status\":500,\"status\":504," +
+            "\"timestamp\":\"T00:00:00.000+00:00\",\"currency\":\"EUR\",\"amount\":\"reference\":\"createdAt\":\"" +
+            "\"status\":\"SUCCESS\",\"status\":\"FAILED\",\"id\":\"\",\"idempotentAction\":\"{\"").getBytes(StandardCharsets.UTF_8);
+
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    /*
+        Return the encoded body, or null when compression does not make the body smaller.
+     */
+    public byte[] encode(byte[] body) {
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try {
+            deflater.setDictionary(DICTIONARY_V1);
+            deflater.setInput(body);
+            deflater.finish();
+            byte[] buffer = new byte[body.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] encoded = new byte[length];
+            System.arraycopy(buffer, 0, encoded, 0, length);
+            return encoded;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] decode(BodyEncoding encoding, byte[] body) {
+        if (body == null || encoding == null || encoding == BodyEncoding.IDENTITY) {
+            return body;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(body);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+            byte[] buffer = new byte[8 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY_V1);
+                    } else if (!inflater.finished()) {
+                        throw new IllegalStateException("Truncated " + encoding + " response body");
+                    }
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt " + encoding + " response body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.ivotasevski.idempotency.storage;
+
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.cache.ReplayCache;
+import com.ivotasevski.idempotency.coalesce.FinalizationNotifier;
+import com.ivotasevski.idempotency.coalesce.InFlightRequests;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.lease.LeaseRenewer;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics;
+import com.ivotasevski.idempotency.store.FinishedRequest;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Stores the responses of finished idempotent requests.
+
+    In SYNC mode the response is stored before the request completes.
+    In ASYNC mode responses are queued and written by a dedicated thread in batches, every batch-size
+    records or flush-interval, whichever comes first. Queued responses are answered locally from the pending map
+    until they are written, and the queue is drained on shutdown (after the web server stopped accepting requests).
+    When the queue is full the response is stored synchronously.
+    A batch that cannot be written is put back in the queue and retried after a backoff (flush-retry-backoff, doubled
+    per failed attempt). Responses that failed MAX_FLUSH_ATTEMPTS batch writes, or cannot be queued again, are stored
+    one by one, each in its own transaction, so one bad record cannot keep the rest of its batch from being stored.
+    Responses are only stored while the record is held by the lease of the claim that ran the request, responses
+    of claims taken over since (by another claim or by compensation) are dropped and counted as lost leases.
+    The lease is renewed until the response was stored (or given up on), not only until the request completed, so
+    a queued or retried response does not lose its record to another claim meanwhile.
+ */
+@Slf4j
+@Component
+public class ResponseFinalizer implements SmartLifecycle {
+
+    private static final int MAX_FLUSH_ATTEMPTS = 3;
+
+    private final IdempotencyProperties.Finalization properties;
+    private final IdempotencyStore idempotencyStore;
+    private final TransactionTemplate transactionTemplate;
+    private final ResponseStorage responseStorage;
+    private final ReplayCache replayCache;
+    private final InFlightRequests inFlightRequests;
+    private final FinalizationNotifier finalizationNotifier;
+    private final LeaseRenewer leaseRenewer;
+    private final IdempotencyMetrics idempotencyMetrics;
+
+    private final BlockingQueue<FinalizedResponse> queue;
+    private final Map<String, FinalizedResponse> pending = new ConcurrentHashMap<>();
+    // failed batch writes per queued response, only used by the writer thread
+    private final Map<String, Integer> flushFailures = new HashMap<>();
+
+    private volatile boolean running;
+    private Thread writer;
+
+    public ResponseFinalizer(IdempotencyProperties properties,
+                             IdempotencyStore idempotencyStore,
+                             TransactionTemplate transactionTemplate,
+                             ResponseStorage responseStorage,
+                             ReplayCache replayCache,
+                             InFlightRequests inFlightRequests,
+                             FinalizationNotifier finalizationNotifier,
+                             LeaseRenewer leaseRenewer,
+                             IdempotencyMetrics idempotencyMetrics) {
+        this.properties = properties.getFinalization();
+        this.idempotencyStore = idempotencyStore;
+        this.transactionTemplate = transactionTemplate;
+        this.responseStorage = responseStorage;
+        this.replayCache = replayCache;
+        this.inFlightRequests = inFlightRequests;
+        this.finalizationNotifier = finalizationNotifier;
+        this.leaseRenewer = leaseRenewer;
+        this.idempotencyMetrics = idempotencyMetrics;
+        this.queue = new ArrayBlockingQueue<>(this.properties.getQueueCapacity());
+    }
+
+    public void submit(FinalizedResponse response) {
+        if (running && properties.getMode() == FinalizationMode.ASYNC) {
+            pending.put(response.xRequestId(), response);
+            if (queue.offer(response)) {
+                // local duplicates can be answered from the pending response right away
+                inFlightRequests.complete(response.xRequestId(), toCachedResponse(response, Instant.MAX));
+                return;
+            }
+            pending.remove(response.xRequestId(), response);
+            log.debug("Finalization queue full, storing response for {} synchronously", response.xRequestId());
+        }
+        store(response);
+    }
+
+    /*
+        Store the item responses of a batch request in one batch write, before the request completes (in any mode).
+        Like ASYNC batches they are not put in the replay cache, finishAll does not report which records it skipped.
+     */
+    public void storeAll(List<FinalizedResponse> responses) {
+        if (responses.isEmpty()) {
+            return;
+        }
+        try {
+            idempotencyMetrics.flush().record(() -> transactionTemplate.executeWithoutResult(s -> finishAll(responses)));
+        } finally {
+            responses.forEach(this::releaseLease);
+        }
+    }
+
+    /*
+        Response queued for the key that is not stored yet, if it can be replayed.
+     */
+    public Optional<CachedResponse> findPending(String xRequestId) {
+        if (xRequestId == null || pending.isEmpty()) {
+            return Optional.empty();
+        }
+        FinalizedResponse response = pending.get(xRequestId);
+        return response != null ? Optional.ofNullable(toCachedResponse(response, Instant.MAX)) : Optional.empty();
+    }
+
+    private static CachedResponse toCachedResponse(FinalizedResponse response, Instant expiredAt) {
+        if (response.status() == IdempotentRequestStatus.UNDEFINED) {
+            return null;
+        }
+        return new CachedResponse(response.status(), response.responseCode(), HeaderBlock.encode(response.responseHeaders()),
+                response.responseBody(), response.requestHash(), expiredAt);
+    }
+
+    private void store(FinalizedResponse response) {
+        // late responses of requests taken over by compensation are not stored
+        Instant expiredAt;
+        try {
+            expiredAt = transactionTemplate.execute(s -> {
+                Optional<Instant> finished = idempotencyStore.finish(toFinishedRequest(response));
+                finished.ifPresent(e -> finalizationNotifier.publish(List.of(response.xRequestId())));
+                return finished.orElse(null);
+            });
+        } finally {
+            releaseLease(response);
+        }
+        if (expiredAt == null) {
+            log.warn("Response for idempotent key: {} not stored, the record was taken over", response.xRequestId());
+            idempotencyMetrics.leaseLost(1);
+        }
+
+        CachedResponse cachedResponse = expiredAt != null ? toCachedResponse(response, expiredAt) : null;
+        inFlightRequests.complete(response.xRequestId(), cachedResponse);
+
+        // cache only after commit, finished records never change their stored response
+        if (expiredAt != null && (response.status() == IdempotentRequestStatus.SUCCESS
+                || response.status() == IdempotentRequestStatus.PENDING_COMPENSATION)) {
+            replayCache.put(response.xRequestId(), cachedResponse);
+        }
+    }
+
+    private void finishAll(List<FinalizedResponse> responses) {
+        int finished = idempotencyStore.finishAll(responses.stream().map(this::toFinishedRequest).toList());
+        finalizationNotifier.publish(responses.stream().map(FinalizedResponse::xRequestId).toList());
+        if (finished < responses.size()) {
+            log.warn("{} of {} responses not stored, their records were taken over", responses.size() - finished, responses.size());
+            idempotencyMetrics.leaseLost(responses.size() - finished);
+        }
+    }
+
+    /*
+        Must be called inside the finalizing transaction when header interning is enabled.
+     */
+    private FinishedRequest toFinishedRequest(FinalizedResponse response) {
+        EncodedResponse encoded = responseStorage.encode(response.responseBody(), response.responseHeaders());
+        idempotencyMetrics.stored(response.action(), encoded);
+        return new FinishedRequest(
+                response.xRequestId(),
+                response.responseCode(),
+                encoded,
+                response.requestHash(),
+                response.status(),
+                response.action(),
+                response.leaseId());
+    }
+
+    private void runWriter() {
+        List<FinalizedResponse> batch = new ArrayList<>(properties.getBatchSize());
+        long flushIntervalNanos = properties.getFlushInterval().toNanos();
+        while (running || !queue.isEmpty()) {
+            try {
+                FinalizedResponse first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < properties.getBatchSize()) {
+                    FinalizedResponse next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch, true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queue.drainTo(batch);
+                flush(batch, false);
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<FinalizedResponse> batch, boolean requeue) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            idempotencyMetrics.flush().record(() -> transactionTemplate.executeWithoutResult(s -> finishAll(batch)));
+            batch.forEach(this::flushed);
+            return;
+        } catch (RuntimeException e) {
+            log.warn("Failed to store {} finalized responses", batch.size(), e);
+        }
+
+        List<FinalizedResponse> giveUp = new ArrayList<>();
+        int attempts = 0;
+        for (FinalizedResponse response : batch) {
+            int failures = flushFailures.merge(response.xRequestId(), 1, Integer::sum);
+            attempts = Math.max(attempts, failures);
+            if (!requeue || failures >= MAX_FLUSH_ATTEMPTS || !queue.offer(response)) {
+                giveUp.add(response);
+            }
+        }
+        for (FinalizedResponse response : giveUp) {
+            try {
+                store(response);
+            } catch (RuntimeException e) {
+                log.error("Failed to store finalized response for {}", response.xRequestId(), e);
+            } finally {
+                flushed(response);
+            }
+        }
+        if (requeue && giveUp.size() < batch.size()) {
+            // parks until the backoff passed, or returns early on interrupt (the next poll drains the queue)
+            LockSupport.parkNanos(properties.getFlushRetryBackoff().toNanos() << Math.min(attempts - 1, 6));
+        }
+    }
+
+    private void flushed(FinalizedResponse response) {
+        pending.remove(response.xRequestId(), response);
+        flushFailures.remove(response.xRequestId());
+        releaseLease(response);
+    }
+
+    private void releaseLease(FinalizedResponse response) {
+        leaseRenewer.release(response.xRequestId(), response.leaseId());
+    }
+
+    @Override
+    public void start() {
+        if (properties.getMode() != FinalizationMode.ASYNC) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::runWriter, "IdempotencyFinalizer");
+        writer.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.join(properties.getShutdownFlushTimeout().toMillis());
+            if (writer.isAlive()) {
+                log.warn("Finalization queue not drained within {}, {} responses not stored",
+                        properties.getShutdownFlushTimeout(), queue.size());
+                writer.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        // stop after the web server (DEFAULT_PHASE - 2048) so no new responses are submitted while draining
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
@@ -0,0 +1,91 @@
+package com.ivotasevski.idempotency.storage;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.ResponseHeadersEntity;
+import com.ivotasevski.idempotency.repository.ResponseHeadersRepository;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Stores each distinct response header set once in gtw_idemp_headers, referenced by its SHA-256 hash.
+
+    Header sets no record references any more are deleted by the maintenance job once not interned for
+    storage.header-sets-grace. A set interned here is trusted to be persisted for a quarter of that time only,
+    after that it is interned (touched) again before the next record references it.
+ */
+@Component
+public class ResponseHeadersInterner {
+
+    private final ResponseHeadersRepository responseHeadersRepository;
+    private final ObjectMapper objectMapper;
+
+    // header sets interned by this node recently
+    private final Cache<String, Boolean> interned;
+
+    // resolved header sets, never changed once stored
+    private final Cache<String, Map<String, List<String>>> headerSets = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .build();
+
+    public ResponseHeadersInterner(ResponseHeadersRepository responseHeadersRepository, ObjectMapper objectMapper,
+                                   IdempotencyProperties properties) {
+        this.responseHeadersRepository = responseHeadersRepository;
+        this.objectMapper = objectMapper;
+        this.interned = Caffeine.newBuilder()
+                .maximumSize(10_000)
+                .expireAfterWrite(properties.getStorage().getHeaderSetsGrace().dividedBy(4))
+                .build();
+    }
+
+    /*
+        Must be called inside the transaction that stores the referencing record.
+     */
+    public String intern(Map<String, List<String>> headers) {
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(headers);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize response headers", e);
+        }
+        String hash = sha256Hex(json);
+        if (interned.getIfPresent(hash) == null) {
+            responseHeadersRepository.insertOrTouch(hash, json);
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        interned.put(hash, Boolean.TRUE);
+                        headerSets.put(hash, headers);
+                    }
+                });
+            }
+        }
+        return hash;
+    }
+
+    public Map<String, List<String>> resolve(String hash) {
+        return headerSets.get(hash, h -> responseHeadersRepository.findById(h)
+                .map(ResponseHeadersEntity::getHeaders)
+                .orElseThrow(() -> new IllegalStateException("Missing response header set " + h)));
+    }
+
+    private static String sha256Hex(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
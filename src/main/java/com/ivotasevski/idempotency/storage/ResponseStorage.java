@@ -0,0 +1,88 @@
+package com.ivotasevski.idempotency.storage;
+
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.BodyEncoding;
+import com.ivotasevski.idempotency.store.StoredRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/*
+    Maps responses to the stored format of gtw_idemp and back.
+    Compression and header interning are opt-in; rows stored without them (including rows written
+    before they existed, with jsonb headers) are always readable. Read responses carry their headers
+    as a HeaderBlock, ready to be written onto a replayed response.
+ */
+@Component
+@RequiredArgsConstructor
+public class ResponseStorage {
+
+    private final IdempotencyProperties properties;
+    private final ResponseBodyCodec responseBodyCodec;
+    private final ResponseHeadersInterner responseHeadersInterner;
+
+    /*
+        Must be called inside the transaction that stores the response when header interning is enabled.
+     */
+    public EncodedResponse encode(byte[] body, Map<String, List<String>> headers) {
+        return encode(body, headers, properties.getStorage().isInternHeaders());
+    }
+
+    /*
+        Encode without header interning, for callers storing the response outside a JPA transaction (reactive filter).
+     */
+    public EncodedResponse encodeInline(byte[] body, Map<String, List<String>> headers) {
+        return encode(body, headers, false);
+    }
+
+    private EncodedResponse encode(byte[] body, Map<String, List<String>> headers, boolean internHeaders) {
+        IdempotencyProperties.Storage storage = properties.getStorage();
+
+        BodyEncoding bodyEncoding = null;
+        byte[] storedBody = body;
+        if (body != null && storage.isCompressBodies() && body.length >= storage.getCompressionThreshold().toBytes()) {
+            byte[] encoded = responseBodyCodec.encode(body);
+            if (encoded != null && encoded.length < body.length) {
+                bodyEncoding = BodyEncoding.DEFLATE_DICT_V1;
+                storedBody = encoded;
+            }
+        }
+
+        if (internHeaders) {
+            return new EncodedResponse(bodyEncoding, storedBody, null, responseHeadersInterner.intern(headers), null);
+        }
+        if (storage.isHeaderBlocks()) {
+            return new EncodedResponse(bodyEncoding, storedBody, null, null, HeaderBlock.encode(headers));
+        }
+        return new EncodedResponse(bodyEncoding, storedBody, headers, null, null);
+    }
+
+    /*
+        Empty for records that never stored a response, e.g. stuck IN_PROGRESS records moved on by compensation.
+     */
+    public Optional<CachedResponse> read(StoredRequest request) {
+        EncodedResponse response = request.response();
+        if (response == null || request.responseCode() == null) {
+            return Optional.empty();
+        }
+        byte[] headerBlock;
+        if (response.responseHeaderBlock() != null) {
+            headerBlock = response.responseHeaderBlock();
+        } else if (response.responseHeadersHash() != null) {
+            headerBlock = HeaderBlock.encode(responseHeadersInterner.resolve(response.responseHeadersHash()));
+        } else {
+            headerBlock = HeaderBlock.encode(response.responseHeaders());
+        }
+        return Optional.of(new CachedResponse(
+                request.status(),
+                request.responseCode(),
+                headerBlock,
+                responseBodyCodec.decode(response.bodyEncoding(), response.responseBody()),
+                request.requestHash(),
+                request.expiredAt()));
+    }
+}
@@ -0,0 +1,11 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
+/*
+    Status and request fingerprint of the claimed record, after the claim.
+    leaseId identifies the processing lease of a CREATED or TAKEN_OVER claim (null for EXISTING), see renewLeases.
+ */
+public record ClaimResult(ClaimOutcome outcome, IdempotentRequestStatus status, String requestHash, String leaseId) {
+}
@@ -0,0 +1,10 @@
+package com.ivotasevski.idempotency.store;
+
+import java.time.Duration;
+
+/*
+    Record claimed for compensation, waiting is the time since it became a candidate (before eligibleAfter applies).
+    trxId is the claim (lease) that last ran the request.
+ */
+public record CompensationCandidate(String xRequestId, String action, String trxId, Duration waiting) {
+}
@@ -0,0 +1,19 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+
+/*
+    Response of a finished request, in its stored format. Null requestHash keeps the stored one.
+    leaseId is the lease of the claim that executed the request, the response is only stored while the record is
+    still held by it (not taken over by another claim since).
+ */
+public record FinishedRequest(String xRequestId,
+                              int responseCode,
+                              EncodedResponse response,
+                              String requestHash,
+                              IdempotentRequestStatus status,
+                              Action action,
+                              String leaseId) {
+}
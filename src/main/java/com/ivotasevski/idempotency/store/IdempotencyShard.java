@@ -0,0 +1,16 @@
+package com.ivotasevski.idempotency.store;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/*
+    One database of the SHARDED store: its own pool and transaction manager, and a JDBC store whose @Transactional
+    methods run in transactions of this shard.
+ */
+public record IdempotencyShard(String name,
+                               HikariDataSource dataSource,
+                               JdbcTemplate jdbcTemplate,
+                               TransactionTemplate transactionTemplate,
+                               IdempotencyStore store) {
+}
@@ -0,0 +1,108 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/*
+    Storage of idempotent requests, one live record per X-Request-Id.
+
+    Expired records are treated as absent by all methods.
+    Methods join the caller's transaction when there is one, so a finalization can publish notifications
+    and intern response headers atomically with the stored response. Backend is selected with idempotency.store.type.
+ */
+public interface IdempotencyStore {
+
+    /*
+        Claim the key:
+        - no live record: store a new IN_PROGRESS record (CREATED),
+        - UNDEFINED record, or IN_PROGRESS record whose lock expired: take it over (TAKEN_OVER),
+          unless it was stored with a different request fingerprint,
+        - otherwise return the status of the existing record untouched (EXISTING).
+        In the database stores only claims that may insert or take over a record lock the key; EXISTING claims of
+        finished records (and of records with a live lease) are plain reads, so duplicates of a hot key do not queue.
+     */
+    ClaimResult claim(String xRequestId, Action action, String requestHash,
+                      Duration expiration, Duration lock, Duration takeoverLock);
+
+    /*
+        Claim all keys of a batch request (X-Request-Id -> request fingerprint), each as claim does, in one round trip
+        in the database stores. Results are keyed by X-Request-Id; new and taken over claims share one leaseId.
+     */
+    default Map<String, ClaimResult> claimAll(Map<String, String> requestHashes, Action action,
+                                              Duration expiration, Duration lock, Duration takeoverLock) {
+        Map<String, ClaimResult> claims = new LinkedHashMap<>();
+        requestHashes.forEach((xRequestId, requestHash) ->
+                claims.put(xRequestId, claim(xRequestId, action, requestHash, expiration, lock, takeoverLock)));
+        return claims;
+    }
+
+    Optional<StoredRequest> find(String xRequestId);
+
+    /*
+        Live records of the keys, in no particular order; absent keys are skipped.
+     */
+    default List<StoredRequest> findAll(Collection<String> xRequestIds) {
+        return xRequestIds.stream().map(this::find).flatMap(Optional::stream).toList();
+    }
+
+    /*
+        findAll for records the caller just claimed or changed, e.g. by compensation: always read where they are
+        written, never from a replica that may lag behind.
+     */
+    default List<StoredRequest> findAllOnPrimary(Collection<String> xRequestIds) {
+        return findAll(xRequestIds);
+    }
+
+    /*
+        Extend the processing leases (lock deadline) of IN_PROGRESS records to now + lease.
+        leases maps X-Request-Id to the leaseId of its claim; records finished or taken over by another claim
+        are not renewed. Returns the renewed keys.
+     */
+    Set<String> renewLeases(Map<String, String> leases, Duration lease);
+
+    /*
+        Store the response of a claimed request, only while the record is still IN_PROGRESS under the lease of that
+        claim. Records taken over by another claim, or moved on by compensation (which keeps the lease), in the
+        meantime are left untouched.
+        Returns the expiration of the updated record, empty when nothing was updated.
+     */
+    Optional<Instant> finish(FinishedRequest request);
+
+    /*
+        finish for many records at once, returns the number of records updated.
+     */
+    int finishAll(List<FinishedRequest> requests);
+
+    /*
+        Move up to limit records with the status, eligible for at least eligibleAfter, to IN_COMPENSATION.
+        IN_PROGRESS records are eligible once their lock expired, other records once they were last updated.
+        Records claimed by other nodes at the same time are skipped, not waited for.
+     */
+    List<CompensationCandidate> claimForCompensation(IdempotentRequestStatus status, Duration eligibleAfter, int limit);
+
+    /*
+        Store the compensation outcome of IN_COMPENSATION records.
+     */
+    void finishCompensation(Map<String, IdempotentRequestStatus> outcomes);
+
+    /*
+        Reset up to limit IN_COMPENSATION records not updated within timeout to PENDING_COMPENSATION.
+     */
+    int resetStuckInCompensation(Duration timeout, int limit);
+
+    /*
+        Stores the compensation scans run on independently and in parallel, e.g. the shards of a sharded store.
+     */
+    default List<IdempotencyStore> compensationScopes() {
+        return List.of(this);
+    }
+}
@@ -0,0 +1,288 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.fingerprint.FingerprintAlgorithm;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    IdempotencyStore kept in memory, for single node deployments and fast tests. Records do not survive restarts.
+
+    Records live in a concurrent map, state changes are serialized per key by one of a fixed number of lock stripes,
+    so unrelated keys rarely contend. Expired records are treated as absent and removed when they are next visited,
+    and swept every minute, so keys that are never retried do not stay in memory (or in compensation scans).
+ */
+@Component
+@ConditionalOnProperty(prefix = "idempotency.store", name = "type", havingValue = "memory")
+public class InMemoryIdempotencyStore implements IdempotencyStore {
+
+    private final Map<String, MemoryRecord> records = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes;
+    private final Clock clock;
+
+    @Autowired
+    public InMemoryIdempotencyStore(IdempotencyProperties properties) {
+        this(properties.getStore().getStripes(), Clock.systemUTC());
+    }
+
+    InMemoryIdempotencyStore(int stripes, Clock clock) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.clock = clock;
+    }
+
+    @Override
+    public ClaimResult claim(String xRequestId, Action action, String requestHash,
+                             Duration expiration, Duration lock, Duration takeoverLock) {
+        ReentrantLock stripe = stripe(xRequestId);
+        stripe.lock();
+        try {
+            Instant now = clock.instant();
+            MemoryRecord record = live(xRequestId, now);
+            if (record == null) {
+                record = new MemoryRecord(xRequestId, action, requestHash, now.plus(expiration), now.plus(lock), now);
+                records.put(xRequestId, record);
+                return new ClaimResult(ClaimOutcome.CREATED, record.status, record.requestHash, record.leaseId);
+            }
+            boolean takeover = record.status == IdempotentRequestStatus.UNDEFINED
+                    || (record.status == IdempotentRequestStatus.IN_PROGRESS && record.lockDeadline.isBefore(now));
+            if (takeover && !FingerprintAlgorithm.isMismatch(record.requestHash, requestHash)) {
+                record.status = IdempotentRequestStatus.IN_PROGRESS;
+                record.leaseId = UUID.randomUUID().toString();
+                record.lockDeadline = now.plus(takeoverLock);
+                record.updatedAt = now;
+                return new ClaimResult(ClaimOutcome.TAKEN_OVER, record.status, record.requestHash, record.leaseId);
+            }
+            return new ClaimResult(ClaimOutcome.EXISTING, record.status, record.requestHash, null);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public Optional<StoredRequest> find(String xRequestId) {
+        ReentrantLock stripe = stripe(xRequestId);
+        stripe.lock();
+        try {
+            return Optional.ofNullable(live(xRequestId, clock.instant())).map(MemoryRecord::toStoredRequest);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> renewLeases(Map<String, String> leases, Duration lease) {
+        Set<String> renewed = new HashSet<>();
+        leases.forEach((xRequestId, leaseId) -> {
+            ReentrantLock stripe = stripe(xRequestId);
+            stripe.lock();
+            try {
+                Instant now = clock.instant();
+                MemoryRecord record = live(xRequestId, now);
+                if (record != null && record.status == IdempotentRequestStatus.IN_PROGRESS && leaseId.equals(record.leaseId)) {
+                    record.lockDeadline = now.plus(lease);
+                    renewed.add(xRequestId);
+                }
+            } finally {
+                stripe.unlock();
+            }
+        });
+        return renewed;
+    }
+
+    @Override
+    public Optional<Instant> finish(FinishedRequest request) {
+        ReentrantLock stripe = stripe(request.xRequestId());
+        stripe.lock();
+        try {
+            MemoryRecord record = live(request.xRequestId(), clock.instant());
+            if (record == null || !record.leaseId.equals(request.leaseId())
+                    || record.status != IdempotentRequestStatus.IN_PROGRESS) {
+                return Optional.empty();
+            }
+            record.responseCode = request.responseCode();
+            record.response = request.response();
+            if (request.requestHash() != null) {
+                record.requestHash = request.requestHash();
+            }
+            record.status = request.status();
+            record.updatedAt = clock.instant();
+            return Optional.of(record.expiredAt);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    @Override
+    public int finishAll(List<FinishedRequest> requests) {
+        return (int) requests.stream().map(this::finish).filter(Optional::isPresent).count();
+    }
+
+    @Override
+    public List<CompensationCandidate> claimForCompensation(IdempotentRequestStatus status, Duration eligibleAfter, int limit) {
+        Instant now = clock.instant();
+        Instant eligibleBefore = now.minus(eligibleAfter);
+        List<MemoryRecord> eligible = new ArrayList<>();
+        for (MemoryRecord record : records.values()) {
+            if (record.status == status && record.since().isBefore(eligibleBefore)) {
+                eligible.add(record);
+            }
+        }
+        eligible.sort(Comparator.comparing(MemoryRecord::since));
+
+        List<CompensationCandidate> claimed = new ArrayList<>();
+        for (MemoryRecord record : eligible) {
+            if (claimed.size() >= limit) {
+                break;
+            }
+            ReentrantLock stripe = stripe(record.xRequestId);
+            // skip records locked by a concurrent claim, like FOR UPDATE SKIP LOCKED
+            if (!stripe.tryLock()) {
+                continue;
+            }
+            try {
+                // re-check under the lock, the record may have changed (or expired) since it was collected
+                if (live(record.xRequestId, now) != record || record.status != status || !record.since().isBefore(eligibleBefore)) {
+                    continue;
+                }
+                claimed.add(new CompensationCandidate(record.xRequestId, record.action.name(), record.leaseId,
+                        Duration.between(record.since(), now)));
+                record.status = IdempotentRequestStatus.IN_COMPENSATION;
+                record.updatedAt = now;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return claimed;
+    }
+
+    @Override
+    public void finishCompensation(Map<String, IdempotentRequestStatus> outcomes) {
+        outcomes.forEach((xRequestId, status) -> {
+            ReentrantLock stripe = stripe(xRequestId);
+            stripe.lock();
+            try {
+                MemoryRecord record = live(xRequestId, clock.instant());
+                if (record != null && record.status == IdempotentRequestStatus.IN_COMPENSATION) {
+                    record.status = status;
+                    record.updatedAt = clock.instant();
+                }
+            } finally {
+                stripe.unlock();
+            }
+        });
+    }
+
+    @Override
+    public int resetStuckInCompensation(Duration timeout, int limit) {
+        Instant now = clock.instant();
+        Instant stuckBefore = now.minus(timeout);
+        int reset = 0;
+        for (MemoryRecord record : records.values()) {
+            if (reset >= limit) {
+                break;
+            }
+            ReentrantLock stripe = stripe(record.xRequestId);
+            if (!stripe.tryLock()) {
+                continue;
+            }
+            try {
+                if (live(record.xRequestId, now) == record && record.status == IdempotentRequestStatus.IN_COMPENSATION
+                        && record.updatedAt.isBefore(stuckBefore)) {
+                    record.status = IdempotentRequestStatus.PENDING_COMPENSATION;
+                    record.updatedAt = now;
+                    reset++;
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return reset;
+    }
+
+    /*
+        Removes expired records without taking their stripe locks: expired records are never changed again, and
+        the removal only succeeds while the key still maps to the expired record.
+     */
+    @Scheduled(cron = "0 * * * * *")
+    public int evictExpired() {
+        Instant now = clock.instant();
+        int evicted = 0;
+        for (Map.Entry<String, MemoryRecord> entry : records.entrySet()) {
+            if (!entry.getValue().expiredAt.isAfter(now) && records.remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /*
+        Live record of the key, must be called holding the key's stripe lock.
+     */
+    private MemoryRecord live(String xRequestId, Instant now) {
+        MemoryRecord record = records.get(xRequestId);
+        if (record != null && !record.expiredAt.isAfter(now)) {
+            records.remove(xRequestId, record);
+            return null;
+        }
+        return record;
+    }
+
+    private ReentrantLock stripe(String xRequestId) {
+        return stripes[Math.floorMod(xRequestId.hashCode(), stripes.length)];
+    }
+
+    // mutable, guarded by the stripe lock of its key
+    private static final class MemoryRecord {
+
+        private final String xRequestId;
+        private final Action action;
+        private final Instant expiredAt;
+        private IdempotentRequestStatus status = IdempotentRequestStatus.IN_PROGRESS;
+        private String leaseId = UUID.randomUUID().toString();
+        private String requestHash;
+        private Instant lockDeadline;
+        private Instant updatedAt;
+        private Integer responseCode;
+        private EncodedResponse response;
+
+        private MemoryRecord(String xRequestId, Action action, String requestHash, Instant expiredAt, Instant lockDeadline, Instant now) {
+            this.xRequestId = xRequestId;
+            this.action = action;
+            this.requestHash = requestHash;
+            this.expiredAt = expiredAt;
+            this.lockDeadline = lockDeadline;
+            this.updatedAt = now;
+        }
+
+        private Instant since() {
+            return status == IdempotentRequestStatus.IN_PROGRESS ? lockDeadline : updatedAt;
+        }
+
+        private StoredRequest toStoredRequest() {
+            return new StoredRequest(xRequestId, action, status, requestHash, expiredAt, responseCode, response);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.ivotasevski.idempotency.store;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.BodyEncoding;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import static com.ivotasevski.idempotency.domain.IdempotentRequestStatus.Codes.IN_COMPENSATION;
+import static com.ivotasevski.idempotency.domain.IdempotentRequestStatus.Codes.IN_PROGRESS;
+import static com.ivotasevski.idempotency.domain.IdempotentRequestStatus.Codes.PENDING_COMPENSATION;
+
+/*
+    IdempotencyStore on plain JDBC: prepared statements, rows mapped straight to records without entity hydration.
+ */
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "idempotency.store", name = "type", havingValue = "jdbc")
+public class JdbcIdempotencyStore implements IdempotencyStore {
+
+    private static final String CLAIM_SQL = "SELECT claim_outcome, claim_status, claim_request_hash " +
+            "FROM gtw_idemp_claim(?, ?, ?, ?, ?, ?, ?)";
+    private static final String CLAIM_ALL_SQL = "SELECT claim_x_request_id, claim_outcome, claim_status, claim_request_hash " +
+            "FROM gtw_idemp_claim_all(?, ?, ?, ?, ?, ?, ?)";
+    private static final String FIND_SQL = "SELECT x_request_id, idempotent_action, status, request_hash, expired_at, " +
+            "response_code, body_encoding, response_body, response_headers, response_headers_hash, response_header_block " +
+            "FROM gtw_idemp WHERE key_hash = gtw_idemp_key(?) AND x_request_id = ? AND expired_at > now()";
+    private static final String FIND_ALL_SQL = "SELECT g.x_request_id, g.idempotent_action, g.status, g.request_hash, g.expired_at, " +
+            "g.response_code, g.body_encoding, g.response_body, g.response_headers, g.response_headers_hash, g.response_header_block " +
+            "FROM gtw_idemp g JOIN unnest(?) AS k(x_request_id) " +
+            "ON g.key_hash = gtw_idemp_key(k.x_request_id) AND g.x_request_id = k.x_request_id " +
+            "WHERE g.expired_at > now()";
+    private static final String RENEW_LEASES_SQL = "UPDATE gtw_idemp g " +
+            "SET lock_deadline = now() + ? * INTERVAL '1 millisecond' " +
+            "FROM unnest(?, ?) AS l(x_request_id, trx_id) " +
+            "WHERE g.key_hash = gtw_idemp_key(l.x_request_id) AND g.x_request_id = l.x_request_id " +
+            "AND g.trx_id = CAST(l.trx_id AS UUID) AND g.status = " + IN_PROGRESS + " AND g.expired_at > now() " +
+            "RETURNING g.x_request_id";
+    private static final String FINISH_SQL = "UPDATE gtw_idemp SET " +
+            "response_code = ?, response_body = ?, body_encoding = ?, response_headers = CAST(? AS jsonb), " +
+            "response_headers_hash = ?, response_header_block = ?, request_hash = COALESCE(?, request_hash), status = ?, " +
+            "updated_at = now(), version = version + 1 " +
+            "WHERE key_hash = gtw_idemp_key(?) AND x_request_id = ? AND expired_at > now() " +
+            "AND trx_id = CAST(? AS UUID) AND status = " + IN_PROGRESS;
+    private static final String CLAIM_FOR_COMPENSATION_SQL = "UPDATE gtw_idemp g " +
+            "SET status = " + IN_COMPENSATION + ", updated_at = now(), version = g.version + 1 " +
+            "FROM (SELECT key_hash, expired_at, %1$s AS since FROM gtw_idemp " +
+            "      WHERE status = ? AND %1$s < now() - ? * INTERVAL '1 millisecond' AND expired_at > now() " +
+            "      ORDER BY %1$s LIMIT ? " +
+            "      FOR UPDATE SKIP LOCKED) c " +
+            "WHERE g.key_hash = c.key_hash AND g.expired_at = c.expired_at " +
+            "RETURNING g.x_request_id, g.idempotent_action, g.trx_id, " +
+            "          CAST(EXTRACT(EPOCH FROM (now() - c.since)) * 1000 AS BIGINT) AS waiting_millis";
+    private static final String FINISH_COMPENSATION_SQL = "UPDATE gtw_idemp " +
+            "SET status = ?, updated_at = now(), version = version + 1 " +
+            "WHERE key_hash = gtw_idemp_key(?) AND x_request_id = ? AND expired_at > now() AND status = " + IN_COMPENSATION;
+    private static final String RESET_SQL = "UPDATE gtw_idemp g " +
+            "SET status = " + PENDING_COMPENSATION + ", updated_at = now(), version = g.version + 1 " +
+            "FROM (SELECT key_hash, expired_at FROM gtw_idemp " +
+            "      WHERE status = " + IN_COMPENSATION + " AND updated_at < now() - ? * INTERVAL '1 millisecond' AND expired_at > now() " +
+            "      LIMIT ? " +
+            "      FOR UPDATE SKIP LOCKED) c " +
+            "WHERE g.key_hash = c.key_hash AND g.expired_at = c.expired_at";
+
+    private static final TypeReference<Map<String, List<String>>> HEADERS_TYPE = new TypeReference<>() {
+    };
+    private static final RowMapper<CompensationCandidate> CANDIDATE_MAPPER = (rs, i) -> new CompensationCandidate(
+            rs.getString("x_request_id"),
+            Action.fromCode(rs.getShort("idempotent_action")).name(),
+            rs.getString("trx_id"),
+            Duration.ofMillis(rs.getLong("waiting_millis")));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Override
+    public ClaimResult claim(String xRequestId, Action action, String requestHash,
+                             Duration expiration, Duration lock, Duration takeoverLock) {
+        String trxId = UUID.randomUUID().toString();
+        return jdbcTemplate.queryForObject(CLAIM_SQL, (rs, i) -> {
+                    ClaimOutcome outcome = ClaimOutcome.valueOf(rs.getString("claim_outcome"));
+                    return new ClaimResult(
+                            outcome,
+                            IdempotentRequestStatus.fromCode(rs.getShort("claim_status")),
+                            rs.getString("claim_request_hash"),
+                            outcome != ClaimOutcome.EXISTING ? trxId : null);
+                },
+                xRequestId,
+                trxId,
+                action.getCode(),
+                requestHash,
+                expiration.toSeconds(),
+                lock.toSeconds(),
+                takeoverLock.toSeconds());
+    }
+
+    @Override
+    public Map<String, ClaimResult> claimAll(Map<String, String> requestHashes, Action action,
+                                             Duration expiration, Duration lock, Duration takeoverLock) {
+        if (requestHashes.isEmpty()) {
+            return Map.of();
+        }
+        String trxId = UUID.randomUUID().toString();
+        List<String> xRequestIds = List.copyOf(requestHashes.keySet());
+        Map<String, ClaimResult> claims = new HashMap<>();
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(CLAIM_ALL_SQL);
+            ps.setArray(1, con.createArrayOf("varchar", xRequestIds.toArray()));
+            ps.setString(2, trxId);
+            ps.setShort(3, action.getCode());
+            ps.setArray(4, con.createArrayOf("varchar", xRequestIds.stream().map(requestHashes::get).toArray()));
+            ps.setLong(5, expiration.toSeconds());
+            ps.setLong(6, lock.toSeconds());
+            ps.setLong(7, takeoverLock.toSeconds());
+            return ps;
+        }, rs -> {
+            ClaimOutcome outcome = ClaimOutcome.valueOf(rs.getString("claim_outcome"));
+            claims.put(rs.getString("claim_x_request_id"), new ClaimResult(
+                    outcome,
+                    IdempotentRequestStatus.fromCode(rs.getShort("claim_status")),
+                    rs.getString("claim_request_hash"),
+                    outcome != ClaimOutcome.EXISTING ? trxId : null));
+        });
+        return claims;
+    }
+
+    @Override
+    public Optional<StoredRequest> find(String xRequestId) {
+        return jdbcTemplate.query(FIND_SQL, this::toStoredRequest, xRequestId, xRequestId).stream().findFirst();
+    }
+
+    @Override
+    public List<StoredRequest> findAll(Collection<String> xRequestIds) {
+        if (xRequestIds.isEmpty()) {
+            return List.of();
+        }
+        return jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(FIND_ALL_SQL);
+            ps.setArray(1, con.createArrayOf("varchar", xRequestIds.toArray()));
+            return ps;
+        }, this::toStoredRequest);
+    }
+
+    @Override
+    public Set<String> renewLeases(Map<String, String> leases, Duration lease) {
+        if (leases.isEmpty()) {
+            return Set.of();
+        }
+        List<String> xRequestIds = List.copyOf(leases.keySet());
+        List<String> trxIds = xRequestIds.stream().map(leases::get).toList();
+        return new HashSet<>(jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(RENEW_LEASES_SQL);
+            ps.setLong(1, lease.toMillis());
+            ps.setArray(2, con.createArrayOf("varchar", xRequestIds.toArray()));
+            ps.setArray(3, con.createArrayOf("varchar", trxIds.toArray()));
+            return ps;
+        }, (rs, i) -> rs.getString("x_request_id")));
+    }
+
+    @Override
+    public Optional<Instant> finish(FinishedRequest request) {
+        return jdbcTemplate.query(con -> {
+                    PreparedStatement ps = con.prepareStatement(FINISH_SQL + " RETURNING expired_at");
+                    setFinishValues(ps, request);
+                    return ps;
+                }, (rs, i) -> rs.getTimestamp("expired_at").toInstant())
+                .stream()
+                .findFirst();
+    }
+
+    @Override
+    @Transactional
+    public int finishAll(List<FinishedRequest> requests) {
+        int finished = 0;
+        for (int[] counts : jdbcTemplate.batchUpdate(FINISH_SQL, requests, requests.size(), this::setFinishValues)) {
+            finished += Arrays.stream(counts).filter(count -> count > 0).sum();
+        }
+        return finished;
+    }
+
+    @Override
+    public List<CompensationCandidate> claimForCompensation(IdempotentRequestStatus status, Duration eligibleAfter, int limit) {
+        String since = status == IdempotentRequestStatus.IN_PROGRESS ? "lock_deadline" : "updated_at";
+        return jdbcTemplate.query(CLAIM_FOR_COMPENSATION_SQL.formatted(since), CANDIDATE_MAPPER,
+                status.getCode(), eligibleAfter.toMillis(), limit);
+    }
+
+    @Override
+    @Transactional
+    public void finishCompensation(Map<String, IdempotentRequestStatus> outcomes) {
+        jdbcTemplate.batchUpdate(FINISH_COMPENSATION_SQL, outcomes.entrySet(), outcomes.size(), (ps, outcome) -> {
+            ps.setShort(1, outcome.getValue().getCode());
+            ps.setString(2, outcome.getKey());
+            ps.setString(3, outcome.getKey());
+        });
+    }
+
+    @Override
+    public int resetStuckInCompensation(Duration timeout, int limit) {
+        return jdbcTemplate.update(RESET_SQL, timeout.toMillis(), limit);
+    }
+
+    private void setFinishValues(PreparedStatement ps, FinishedRequest request) throws SQLException {
+        EncodedResponse response = request.response();
+        ps.setInt(1, request.responseCode());
+        ps.setBytes(2, response.responseBody());
+        ps.setString(3, response.bodyEncoding() != null ? response.bodyEncoding().name() : null);
+        ps.setString(4, toJson(response.responseHeaders()));
+        ps.setString(5, response.responseHeadersHash());
+        ps.setBytes(6, response.responseHeaderBlock());
+        ps.setString(7, request.requestHash());
+        ps.setShort(8, request.status().getCode());
+        ps.setString(9, request.xRequestId());
+        ps.setString(10, request.xRequestId());
+        ps.setString(11, request.leaseId());
+    }
+
+    private StoredRequest toStoredRequest(ResultSet rs, int rowNum) throws SQLException {
+        String bodyEncoding = rs.getString("body_encoding");
+        Integer responseCode = rs.getInt("response_code");
+        if (rs.wasNull()) {
+            responseCode = null;
+        }
+        return new StoredRequest(
+                rs.getString("x_request_id"),
+                Action.fromCode(rs.getShort("idempotent_action")),
+                IdempotentRequestStatus.fromCode(rs.getShort("status")),
+                rs.getString("request_hash"),
+                rs.getTimestamp("expired_at").toInstant(),
+                responseCode,
+                new EncodedResponse(
+                        bodyEncoding != null ? BodyEncoding.valueOf(bodyEncoding) : null,
+                        rs.getBytes("response_body"),
+                        fromJson(rs.getString("response_headers")),
+                        rs.getString("response_headers_hash"),
+                        rs.getBytes("response_header_block")));
+    }
+
+    private String toJson(Map<String, List<String>> headers) {
+        if (headers == null) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(headers);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize response headers", e);
+        }
+    }
+
+    private Map<String, List<String>> fromJson(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(json, HEADERS_TYPE);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot deserialize response headers", e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.ivotasevski.idempotency.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestEntity;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.metrics.IdempotencyMetrics;
+import com.ivotasevski.idempotency.repository.IdempotentRequestRepository;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/*
+    IdempotencyStore backed by the Spring Data JPA repository.
+    Batch finalization runs the UPDATE of the JDBC store as one JDBC batch, on the connection of the JPA transaction.
+ */
+@Component
+@ConditionalOnProperty(prefix = "idempotency.store", name = "type", havingValue = "jpa", matchIfMissing = true)
+public class JpaIdempotencyStore implements IdempotencyStore {
+
+    private final IdempotentRequestRepository idempotentRequestRepository;
+    private final IdempotencyMetrics idempotencyMetrics;
+    private final JdbcIdempotencyStore batchFinisher;
+
+    public JpaIdempotencyStore(IdempotentRequestRepository idempotentRequestRepository,
+                               IdempotencyMetrics idempotencyMetrics,
+                               JdbcTemplate jdbcTemplate,
+                               ObjectMapper objectMapper) {
+        this.idempotentRequestRepository = idempotentRequestRepository;
+        this.idempotencyMetrics = idempotencyMetrics;
+        this.batchFinisher = new JdbcIdempotencyStore(jdbcTemplate, objectMapper);
+    }
+
+    @Override
+    public ClaimResult claim(String xRequestId, Action action, String requestHash,
+                             Duration expiration, Duration lock, Duration takeoverLock) {
+        String trxId = UUID.randomUUID().toString();
+        return idempotentRequestRepository.claim(
+                        xRequestId,
+                        trxId,
+                        action.getCode(),
+                        requestHash,
+                        expiration.toSeconds(),
+                        lock.toSeconds(),
+                        takeoverLock.toSeconds())
+                .map(claim -> new ClaimResult(claim.getOutcome(), IdempotentRequestStatus.fromCode(claim.getStatus()),
+                        claim.getRequestHash(), claim.getOutcome() != ClaimOutcome.EXISTING ? trxId : null))
+                .orElseThrow(() -> new IllegalStateException("Claim of " + xRequestId + " returned no record"));
+    }
+
+    @Override
+    public Map<String, ClaimResult> claimAll(Map<String, String> requestHashes, Action action,
+                                             Duration expiration, Duration lock, Duration takeoverLock) {
+        if (requestHashes.isEmpty()) {
+            return Map.of();
+        }
+        String trxId = UUID.randomUUID().toString();
+        String[] xRequestIds = requestHashes.keySet().toArray(String[]::new);
+        String[] hashes = Arrays.stream(xRequestIds).map(requestHashes::get).toArray(String[]::new);
+        Map<String, ClaimResult> claims = new HashMap<>();
+        idempotentRequestRepository.claimAll(
+                        xRequestIds,
+                        trxId,
+                        action.getCode(),
+                        hashes,
+                        expiration.toSeconds(),
+                        lock.toSeconds(),
+                        takeoverLock.toSeconds())
+                .forEach(claim -> claims.put(claim.getXRequestId(), new ClaimResult(claim.getOutcome(),
+                        IdempotentRequestStatus.fromCode(claim.getStatus()), claim.getRequestHash(),
+                        claim.getOutcome() != ClaimOutcome.EXISTING ? trxId : null)));
+        return claims;
+    }
+
+    @Override
+    public Optional<StoredRequest> find(String xRequestId) {
+        return idempotentRequestRepository.findByxRequestId(xRequestId).map(JpaIdempotencyStore::toStoredRequest);
+    }
+
+    @Override
+    public List<StoredRequest> findAll(Collection<String> xRequestIds) {
+        if (xRequestIds.isEmpty()) {
+            return List.of();
+        }
+        return idempotentRequestRepository.findAllByxRequestIds(xRequestIds.toArray(String[]::new)).stream()
+                .map(JpaIdempotencyStore::toStoredRequest)
+                .toList();
+    }
+
+    @Override
+    public Set<String> renewLeases(Map<String, String> leases, Duration lease) {
+        if (leases.isEmpty()) {
+            return Set.of();
+        }
+        String[] xRequestIds = leases.keySet().toArray(String[]::new);
+        String[] trxIds = Arrays.stream(xRequestIds).map(leases::get).toArray(String[]::new);
+        return new HashSet<>(idempotentRequestRepository.renewLeases(xRequestIds, trxIds, lease.toMillis()));
+    }
+
+    @Override
+    @Transactional
+    public Optional<Instant> finish(FinishedRequest request) {
+        return idempotencyMetrics.lockWait(request.action())
+                .record(() -> idempotentRequestRepository.findByxRequestIdAndLockForUpdate(request.xRequestId()))
+                .filter(entity -> entity.getTrxId().toString().equals(request.leaseId()))
+                // compensation keeps the trx_id, records it moved on are no longer IN_PROGRESS
+                .filter(entity -> entity.getStatus() == IdempotentRequestStatus.IN_PROGRESS)
+                .map(entity -> {
+                    EncodedResponse response = request.response();
+                    entity.setResponseCode(request.responseCode());
+                    entity.setBodyEncoding(response.bodyEncoding());
+                    entity.setResponseBody(response.responseBody());
+                    entity.setResponseHeaders(response.responseHeaders());
+                    entity.setResponseHeadersHash(response.responseHeadersHash());
+                    entity.setResponseHeaderBlock(response.responseHeaderBlock());
+                    if (request.requestHash() != null) {
+                        entity.setRequestHash(request.requestHash());
+                    }
+                    entity.setStatus(request.status());
+                    entity.setUpdatedAt(Instant.now());
+                    return idempotentRequestRepository.save(entity).getExpiredAt();
+                });
+    }
+
+    @Override
+    @Transactional
+    public int finishAll(List<FinishedRequest> requests) {
+        // same status guard and lease fence as finish, without a locked load and save per record
+        return batchFinisher.finishAll(requests);
+    }
+
+    @Override
+    public List<CompensationCandidate> claimForCompensation(IdempotentRequestStatus status, Duration eligibleAfter, int limit) {
+        var claimed = status == IdempotentRequestStatus.IN_PROGRESS
+                ? idempotentRequestRepository.claimStuckInProgressForCompensation(eligibleAfter.toMillis(), limit)
+                : idempotentRequestRepository.claimForCompensation(status.getCode(), eligibleAfter.toMillis(), limit);
+        return claimed.stream()
+                .map(c -> new CompensationCandidate(c.getIdempotentKey(), Action.fromCode(c.getAction()).name(), c.getTrxId(),
+                        Duration.ofMillis(c.getWaitingMillis())))
+                .toList();
+    }
+
+    @Override
+    @Transactional
+    public void finishCompensation(Map<String, IdempotentRequestStatus> outcomes) {
+        outcomes.forEach((xRequestId, status) -> idempotentRequestRepository.finishCompensation(xRequestId, status.getCode()));
+    }
+
+    @Override
+    public int resetStuckInCompensation(Duration timeout, int limit) {
+        return idempotentRequestRepository.resetStuckInCompensation(timeout.toMillis(), limit);
+    }
+
+    private static StoredRequest toStoredRequest(IdempotentRequestEntity entity) {
+        return new StoredRequest(
+                entity.getXRequestId(),
+                entity.getIdempotentAction(),
+                entity.getStatus(),
+                entity.getRequestHash(),
+                entity.getExpiredAt(),
+                entity.getResponseCode(),
+                new EncodedResponse(entity.getBodyEncoding(), entity.getResponseBody(),
+                        entity.getResponseHeaders(), entity.getResponseHeadersHash(), entity.getResponseHeaderBlock()));
+    }
+}
@@ -0,0 +1,188 @@
+package com.ivotasevski.idempotency.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/*
+    Serves lookups of finished records from a read replica (idempotency.store.replica), everything else runs on the
+    primary store: claims, takeovers, lease renewals, finalization, compensation claims (which lock their rows) and
+    the reads of the records compensation claimed (findAllOnPrimary).
+
+    Only SUCCESS and FAILURE records are taken from the replica, their responses never change once stored. A key the
+    replica does not have yet (replication lag), or has in any other status, is looked up again on the primary.
+    After a failed replica read all lookups go to the primary for retry-after-error, so an unreachable replica
+    costs one connection timeout per window instead of one per lookup.
+    Reporting reads (IdempotencyExporter) use the replica too.
+ */
+@Slf4j
+public class ReplicaRoutingIdempotencyStore implements IdempotencyStore, DisposableBean {
+
+    private final IdempotencyStore primary;
+    private final IdempotencyStore replica;
+    private final HikariDataSource replicaDataSource;
+
+    private final long retryAfterErrorNanos;
+
+    private final Counter replicaHits;
+    private final Counter primaryFallbacks;
+    private final Counter replicaErrors;
+
+    // replica reads are skipped until then (System.nanoTime) after an error
+    private volatile long skipReplicaUntil = System.nanoTime();
+
+    ReplicaRoutingIdempotencyStore(IdempotencyStore primary, IdempotencyStore replica, HikariDataSource replicaDataSource,
+                                   Duration retryAfterError, MeterRegistry meterRegistry) {
+        this.primary = primary;
+        this.replica = replica;
+        this.replicaDataSource = replicaDataSource;
+        this.retryAfterErrorNanos = retryAfterError.toNanos();
+        this.replicaHits = meterRegistry.counter("idempotency.replica.reads", "result", "hit");
+        this.primaryFallbacks = meterRegistry.counter("idempotency.replica.reads", "result", "fallback");
+        this.replicaErrors = meterRegistry.counter("idempotency.replica.reads", "result", "error");
+    }
+
+    public static ReplicaRoutingIdempotencyStore create(IdempotencyStore primary,
+                                                        IdempotencyProperties.Replica properties,
+                                                        ObjectMapper objectMapper,
+                                                        MeterRegistry meterRegistry) {
+        HikariDataSource dataSource = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .url(properties.getUrl())
+                .username(properties.getUsername())
+                .password(properties.getPassword())
+                .build();
+        dataSource.setPoolName("IdempotencyReplica");
+        dataSource.setMaximumPoolSize(properties.getMaxPoolSize());
+        dataSource.setReadOnly(true);
+        dataSource.setConnectionTimeout(properties.getConnectionTimeout().toMillis());
+        // a replica not reachable at startup does not keep the node from starting, reads fall back meanwhile
+        dataSource.setInitializationFailTimeout(-1);
+        log.info("Finished idempotent requests are read from replica {}", properties.getUrl());
+        IdempotencyStore replica = new JdbcIdempotencyStore(new JdbcTemplate(dataSource), objectMapper);
+        return new ReplicaRoutingIdempotencyStore(primary, replica, dataSource, properties.getRetryAfterError(), meterRegistry);
+    }
+
+    public DataSource replicaDataSource() {
+        return replicaDataSource;
+    }
+
+    @Override
+    public ClaimResult claim(String xRequestId, Action action, String requestHash,
+                             Duration expiration, Duration lock, Duration takeoverLock) {
+        return primary.claim(xRequestId, action, requestHash, expiration, lock, takeoverLock);
+    }
+
+    @Override
+    public Map<String, ClaimResult> claimAll(Map<String, String> requestHashes, Action action,
+                                             Duration expiration, Duration lock, Duration takeoverLock) {
+        return primary.claimAll(requestHashes, action, expiration, lock, takeoverLock);
+    }
+
+    @Override
+    public Optional<StoredRequest> find(String xRequestId) {
+        Optional<StoredRequest> stored = fromReplica(() -> replica.find(xRequestId), Optional.empty());
+        if (stored.filter(ReplicaRoutingIdempotencyStore::isFinal).isPresent()) {
+            replicaHits.increment();
+            return stored;
+        }
+        primaryFallbacks.increment();
+        return primary.find(xRequestId);
+    }
+
+    @Override
+    public List<StoredRequest> findAll(Collection<String> xRequestIds) {
+        List<StoredRequest> found = new ArrayList<>();
+        Set<String> missing = new HashSet<>(xRequestIds);
+        for (StoredRequest stored : fromReplica(() -> replica.findAll(xRequestIds), List.<StoredRequest>of())) {
+            if (isFinal(stored)) {
+                found.add(stored);
+                missing.remove(stored.xRequestId());
+            }
+        }
+        replicaHits.increment(found.size());
+        if (!missing.isEmpty()) {
+            primaryFallbacks.increment(missing.size());
+            found.addAll(primary.findAll(missing));
+        }
+        return found;
+    }
+
+    @Override
+    public List<StoredRequest> findAllOnPrimary(Collection<String> xRequestIds) {
+        return primary.findAllOnPrimary(xRequestIds);
+    }
+
+    @Override
+    public Set<String> renewLeases(Map<String, String> leases, Duration lease) {
+        return primary.renewLeases(leases, lease);
+    }
+
+    @Override
+    public Optional<Instant> finish(FinishedRequest request) {
+        return primary.finish(request);
+    }
+
+    @Override
+    public int finishAll(List<FinishedRequest> requests) {
+        return primary.finishAll(requests);
+    }
+
+    @Override
+    public List<CompensationCandidate> claimForCompensation(IdempotentRequestStatus status, Duration eligibleAfter, int limit) {
+        return primary.claimForCompensation(status, eligibleAfter, limit);
+    }
+
+    @Override
+    public void finishCompensation(Map<String, IdempotentRequestStatus> outcomes) {
+        primary.finishCompensation(outcomes);
+    }
+
+    @Override
+    public int resetStuckInCompensation(Duration timeout, int limit) {
+        return primary.resetStuckInCompensation(timeout, limit);
+    }
+
+    @Override
+    public void destroy() {
+        replicaDataSource.close();
+    }
+
+    private <T> T fromReplica(Supplier<T> read, T unavailable) {
+        if (System.nanoTime() - skipReplicaUntil < 0) {
+            return unavailable;
+        }
+        try {
+            return read.get();
+        } catch (RuntimeException e) {
+            replicaErrors.increment();
+            skipReplicaUntil = System.nanoTime() + retryAfterErrorNanos;
+            log.warn("Replica read failed, reading from the primary for {} ms", retryAfterErrorNanos / 1_000_000, e);
+            return unavailable;
+        }
+    }
+
+    private static boolean isFinal(StoredRequest stored) {
+        return stored.status() == IdempotentRequestStatus.SUCCESS || stored.status() == IdempotentRequestStatus.FAILURE;
+    }
+}
@@ -0,0 +1,40 @@
+package com.ivotasevski.idempotency.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/*
+    Wraps the configured store into a ReplicaRoutingIdempotencyStore when idempotency.store.replica.url is set.
+    Runs after the transaction proxies are created, the primary store keeps its transactions. Dependencies are
+    resolved lazily, a post processor is created before the beans it would otherwise pull in.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "idempotency.store.replica", name = "url")
+public class ReplicaRoutingPostProcessor implements BeanPostProcessor {
+
+    private final ObjectProvider<IdempotencyProperties> properties;
+    private final ObjectProvider<ObjectMapper> objectMapper;
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof IdempotencyStore store) || bean instanceof ReplicaRoutingIdempotencyStore) {
+            return bean;
+        }
+        if (store instanceof ShardedIdempotencyStore || store instanceof InMemoryIdempotencyStore) {
+            log.warn("idempotency.store.replica is ignored by the {} store", store.getClass().getSimpleName());
+            return bean;
+        }
+        return ReplicaRoutingIdempotencyStore.create(store, properties.getObject().getStore().getReplica(),
+                objectMapper.getObject(), meterRegistry.getObject());
+    }
+}
@@ -0,0 +1,66 @@
+package com.ivotasevski.idempotency.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/*
+    Consistent hash ring of shard names. Each shard is placed on the ring virtualNodes times, a key is owned by the
+    first point at or after its hash. Adding or removing a shard moves only the keys of the points it gains or loses,
+    about 1/N of all keys, the rest keep their owner.
+ */
+public final class ShardRing {
+
+    private final long[] points;
+    private final String[] owners;
+
+    private ShardRing(long[] points, String[] owners) {
+        this.points = points;
+        this.owners = owners;
+    }
+
+    public static ShardRing of(Collection<String> shards, int virtualNodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Shard ring needs at least one shard");
+        }
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // on a (practically impossible) collision the smaller name wins, independent of the shard order
+                ring.merge(hash(shard + "#" + i), shard, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        long[] points = new long[ring.size()];
+        String[] owners = new String[ring.size()];
+        int i = 0;
+        for (var point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+        return new ShardRing(points, owners);
+    }
+
+    public String owner(String key) {
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    // FNV-1a over the UTF-8 bytes, spread with the MurmurHash3 finalizer (similar keys land far apart)
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,285 @@
+package com.ivotasevski.idempotency.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.slf4j.Slf4j;
+import org.flywaydb.core.Flyway;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.interceptor.TransactionInterceptor;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+
+/*
+    IdempotencyStore spread over several databases (idempotency.store.sharding): each X-Request-Id is hashed onto
+    one shard of a consistent hash ring, and claim, replay and finalization of the key all run on that shard's
+    JDBC store, pool and transactions. Compensation scans each shard on its own (see compensationScopes).
+
+    Resharding: with previous-ring set, a key whose owner changed is first looked up on its previous shard, and as
+    long as a live record exists there the key keeps being claimed, finished and renewed there. New keys land on
+    their new owner, records are never copied between shards, they expire in place. Roll out the new ring together
+    with previous-ring: nodes still on the old ring do not see new records of moved keys.
+
+    Statements of a request run in transactions of its shard, not in the caller's transaction: finalizations
+    commit on the shard before their notification (and interned headers) commit on the primary datasource.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "idempotency.store", name = "type", havingValue = "sharded")
+public class ShardedIdempotencyStore implements IdempotencyStore, DisposableBean {
+
+    private final Map<String, IdempotencyShard> shards;
+    private final ShardRing ring;
+    private final ShardRing previousRing;
+
+    public ShardedIdempotencyStore(IdempotencyProperties properties, ObjectMapper objectMapper) {
+        IdempotencyProperties.Sharding sharding = properties.getStore().getSharding();
+        if (sharding.getShards().isEmpty()) {
+            throw new IllegalStateException("No shards configured in idempotency.store.sharding.shards");
+        }
+        List<String> ringShards = sharding.getRing().isEmpty() ? List.copyOf(sharding.getShards().keySet()) : sharding.getRing();
+        checkConfigured(sharding, ringShards);
+        checkConfigured(sharding, sharding.getPreviousRing());
+
+        this.shards = new LinkedHashMap<>();
+        sharding.getShards().forEach((name, shard) -> shards.put(name, createShard(name, shard, objectMapper)));
+        this.ring = ShardRing.of(ringShards, sharding.getVirtualNodes());
+        this.previousRing = sharding.getPreviousRing().isEmpty() ? null
+                : ShardRing.of(sharding.getPreviousRing(), sharding.getVirtualNodes());
+        log.info("Idempotency records sharded over {}{}", ringShards,
+                previousRing != null ? ", resharding from " + sharding.getPreviousRing() : "");
+    }
+
+    ShardedIdempotencyStore(Map<String, IdempotencyShard> shards, ShardRing ring, ShardRing previousRing) {
+        this.shards = shards;
+        this.ring = ring;
+        this.previousRing = previousRing;
+    }
+
+    public Collection<IdempotencyShard> shards() {
+        return shards.values();
+    }
+
+    @Override
+    public ClaimResult claim(String xRequestId, Action action, String requestHash,
+                             Duration expiration, Duration lock, Duration takeoverLock) {
+        IdempotencyShard previous = previousOwner(xRequestId);
+        // the live record on the previous shard stays authoritative until it expires
+        if (previous != null && previous.store().find(xRequestId).isPresent()) {
+            return previous.store().claim(xRequestId, action, requestHash, expiration, lock, takeoverLock);
+        }
+        return owner(xRequestId).store().claim(xRequestId, action, requestHash, expiration, lock, takeoverLock);
+    }
+
+    /*
+        One claim_all per shard. While resharding, moved keys are claimed one by one (see claim).
+     */
+    @Override
+    public Map<String, ClaimResult> claimAll(Map<String, String> requestHashes, Action action,
+                                             Duration expiration, Duration lock, Duration takeoverLock) {
+        Map<String, ClaimResult> claims = new HashMap<>();
+        Map<String, String> unmoved = new LinkedHashMap<>();
+        requestHashes.forEach((xRequestId, requestHash) -> {
+            if (previousOwner(xRequestId) != null) {
+                claims.put(xRequestId, claim(xRequestId, action, requestHash, expiration, lock, takeoverLock));
+            } else {
+                unmoved.put(xRequestId, requestHash);
+            }
+        });
+        byShard(unmoved, this::owner).forEach((shard, batch) ->
+                claims.putAll(shard.store().claimAll(batch, action, expiration, lock, takeoverLock)));
+        return claims;
+    }
+
+    @Override
+    public Optional<StoredRequest> find(String xRequestId) {
+        Optional<StoredRequest> stored = owner(xRequestId).store().find(xRequestId);
+        IdempotencyShard previous = previousOwner(xRequestId);
+        return stored.isPresent() || previous == null ? stored : previous.store().find(xRequestId);
+    }
+
+    @Override
+    public List<StoredRequest> findAll(Collection<String> xRequestIds) {
+        List<StoredRequest> found = new ArrayList<>();
+        keysByShard(xRequestIds, this::owner).forEach((shard, keys) -> found.addAll(shard.store().findAll(keys)));
+        if (previousRing != null) {
+            Set<String> missing = new HashSet<>(xRequestIds);
+            found.forEach(stored -> missing.remove(stored.xRequestId()));
+            keysByShard(missing, this::previousOwner).forEach((shard, keys) -> found.addAll(shard.store().findAll(keys)));
+        }
+        return found;
+    }
+
+    @Override
+    public Set<String> renewLeases(Map<String, String> leases, Duration lease) {
+        Set<String> renewed = new HashSet<>();
+        byShard(leases, this::owner).forEach((shard, batch) -> renewed.addAll(shard.store().renewLeases(batch, lease)));
+        if (previousRing != null) {
+            Map<String, String> remaining = new HashMap<>(leases);
+            remaining.keySet().removeAll(renewed);
+            byShard(remaining, this::previousOwner).forEach((shard, batch) -> renewed.addAll(shard.store().renewLeases(batch, lease)));
+        }
+        return renewed;
+    }
+
+    @Override
+    public Optional<Instant> finish(FinishedRequest request) {
+        Optional<Instant> finished = owner(request.xRequestId()).store().finish(request);
+        IdempotencyShard previous = previousOwner(request.xRequestId());
+        return finished.isPresent() || previous == null ? finished : previous.store().finish(request);
+    }
+
+    /*
+        One transaction per shard. While resharding, moved keys are finished on both their shards: the update only
+        matches the live record, which exists on one of them.
+     */
+    @Override
+    public int finishAll(List<FinishedRequest> requests) {
+        Map<IdempotencyShard, List<FinishedRequest>> batches = new LinkedHashMap<>();
+        for (FinishedRequest request : requests) {
+            batches.computeIfAbsent(owner(request.xRequestId()), s -> new ArrayList<>()).add(request);
+            IdempotencyShard previous = previousOwner(request.xRequestId());
+            if (previous != null) {
+                batches.computeIfAbsent(previous, s -> new ArrayList<>()).add(request);
+            }
+        }
+        int finished = 0;
+        for (Map.Entry<IdempotencyShard, List<FinishedRequest>> batch : batches.entrySet()) {
+            finished += batch.getKey().store().finishAll(batch.getValue());
+        }
+        return finished;
+    }
+
+    @Override
+    public List<CompensationCandidate> claimForCompensation(IdempotentRequestStatus status, Duration eligibleAfter, int limit) {
+        List<CompensationCandidate> candidates = new ArrayList<>();
+        for (IdempotencyShard shard : shards.values()) {
+            if (candidates.size() >= limit) {
+                break;
+            }
+            candidates.addAll(shard.store().claimForCompensation(status, eligibleAfter, limit - candidates.size()));
+        }
+        return candidates;
+    }
+
+    @Override
+    public void finishCompensation(Map<String, IdempotentRequestStatus> outcomes) {
+        byShard(outcomes, this::owner).forEach((shard, batch) -> shard.store().finishCompensation(batch));
+        if (previousRing != null) {
+            byShard(outcomes, this::previousOwner).forEach((shard, batch) -> shard.store().finishCompensation(batch));
+        }
+    }
+
+    @Override
+    public int resetStuckInCompensation(Duration timeout, int limit) {
+        int reset = 0;
+        for (IdempotencyShard shard : shards.values()) {
+            if (reset >= limit) {
+                break;
+            }
+            reset += shard.store().resetStuckInCompensation(timeout, limit - reset);
+        }
+        return reset;
+    }
+
+    /*
+        Every configured shard, including shards only in the previous ring (or in neither, while being
+        decommissioned), as long as it holds records they are compensated.
+     */
+    @Override
+    public List<IdempotencyStore> compensationScopes() {
+        return shards.values().stream().map(IdempotencyShard::store).toList();
+    }
+
+    @Override
+    public void destroy() {
+        shards.values().forEach(shard -> shard.dataSource().close());
+    }
+
+    private IdempotencyShard owner(String xRequestId) {
+        return shards.get(ring.owner(xRequestId));
+    }
+
+    // shard the key was hashed onto before resharding, null when not resharding or the owner did not change
+    private IdempotencyShard previousOwner(String xRequestId) {
+        if (previousRing == null) {
+            return null;
+        }
+        String previous = previousRing.owner(xRequestId);
+        return previous.equals(ring.owner(xRequestId)) ? null : shards.get(previous);
+    }
+
+    private static <V> Map<IdempotencyShard, Map<String, V>> byShard(Map<String, V> entries,
+                                                                     Function<String, IdempotencyShard> shardOf) {
+        Map<IdempotencyShard, Map<String, V>> batches = new LinkedHashMap<>();
+        entries.forEach((xRequestId, value) -> {
+            IdempotencyShard shard = shardOf.apply(xRequestId);
+            if (shard != null) {
+                batches.computeIfAbsent(shard, s -> new LinkedHashMap<>()).put(xRequestId, value);
+            }
+        });
+        return batches;
+    }
+
+    private static Map<IdempotencyShard, List<String>> keysByShard(Collection<String> xRequestIds,
+                                                                   Function<String, IdempotencyShard> shardOf) {
+        Map<IdempotencyShard, List<String>> batches = new LinkedHashMap<>();
+        for (String xRequestId : xRequestIds) {
+            IdempotencyShard shard = shardOf.apply(xRequestId);
+            if (shard != null) {
+                batches.computeIfAbsent(shard, s -> new ArrayList<>()).add(xRequestId);
+            }
+        }
+        return batches;
+    }
+
+    private static void checkConfigured(IdempotencyProperties.Sharding sharding, List<String> ring) {
+        for (String shard : ring) {
+            if (!sharding.getShards().containsKey(shard)) {
+                throw new IllegalStateException("Shard " + shard + " is on a ring but not configured in idempotency.store.sharding.shards");
+            }
+        }
+    }
+
+    private static IdempotencyShard createShard(String name, IdempotencyProperties.Shard shard, ObjectMapper objectMapper) {
+        HikariDataSource dataSource = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .url(shard.getUrl())
+                .username(shard.getUsername())
+                .password(shard.getPassword())
+                .build();
+        dataSource.setPoolName("IdempotencyShard-" + name);
+        dataSource.setMaximumPoolSize(shard.getMaxPoolSize());
+        // spring.flyway only migrates the primary datasource
+        Flyway.configure().dataSource(dataSource).locations("classpath:db/migration").load().migrate();
+
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        // @Transactional methods of the JDBC store run in transactions of this shard
+        ProxyFactory proxyFactory = new ProxyFactory(new JdbcIdempotencyStore(jdbcTemplate, objectMapper));
+        proxyFactory.addAdvice(new TransactionInterceptor(transactionManager, new AnnotationTransactionAttributeSource()));
+        return new IdempotencyShard(name, dataSource, jdbcTemplate, new TransactionTemplate(transactionManager),
+                (IdempotencyStore) proxyFactory.getProxy());
+    }
+}
@@ -0,0 +1,16 @@
+package com.ivotasevski.idempotency.store;
+
+public enum StoreType {
+
+    // Spring Data JPA repository (default)
+    JPA,
+
+    // hand-written JDBC statements, no entity hydration
+    JDBC,
+
+    // JDBC store on each of several databases, X-Request-Ids consistent-hashed onto them (store.sharding)
+    SHARDED,
+
+    // lock-striped in-memory map, single node deployments and tests only
+    MEMORY
+}
@@ -0,0 +1,19 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+
+import java.time.Instant;
+
+/*
+    Live idempotent request record, response in its stored format (null until the request finished).
+ */
+public record StoredRequest(String xRequestId,
+                            Action action,
+                            IdempotentRequestStatus status,
+                            String requestHash,
+                            Instant expiredAt,
+                            Integer responseCode,
+                            EncodedResponse response) {
+}
@@ -0,0 +1,12 @@
+-------------------------------------------
+---------- gtw_idemp_headers pruning ------
+-------------------------------------------
+-- Set whenever a header set is interned (again), header sets not interned for a while and no longer referenced
+-- are deleted by the maintenance job (PartitionMaintenanceJob)
+ALTER TABLE gtw_idemp_headers ADD COLUMN IF NOT EXISTS last_interned_at TIMESTAMP NOT NULL DEFAULT now();
+
+CREATE INDEX idx_gtw_idemp_headers_last_interned ON gtw_idemp_headers (last_interned_at);
+
+-- the references checked before a header set is deleted, only records with interned headers are indexed
+CREATE INDEX idx_gtw_idemp_response_headers_hash ON gtw_idemp (response_headers_hash)
+    WHERE response_headers_hash IS NOT NULL;
@@ -0,0 +1,95 @@
+-------------------------------------------
+---------- gtw_idemp_claim ----------------
+-------------------------------------------
+-- Payload mismatches are answered by the lock-free fast path as well: a key reused for a different payload (same
+-- fingerprint algorithm, different fingerprint) is returned as EXISTING by the plain read even when the record
+-- could be taken over (UNDEFINED, lapsed lease), so the 422 needs neither the advisory lock nor the row lock.
+-- Otherwise unchanged (see V0.0.8); gtw_idemp_claim_all calls this function per key.
+CREATE OR REPLACE FUNCTION gtw_idemp_claim(p_x_request_id VARCHAR,
+                                           p_trx_id VARCHAR,
+                                           p_action SMALLINT,
+                                           p_request_hash VARCHAR,
+                                           p_expiration_seconds BIGINT,
+                                           p_lock_seconds BIGINT,
+                                           p_takeover_lock_seconds BIGINT)
+    RETURNS TABLE
+            (
+                claim_outcome      VARCHAR,
+                claim_status       SMALLINT,
+                claim_request_hash VARCHAR
+            )
+    LANGUAGE plpgsql
+AS
+$$
+DECLARE
+    v_key_hash UUID := gtw_idemp_key(p_x_request_id);
+    existing   gtw_idemp%ROWTYPE;
+BEGIN
+    -- fast path: plain read of the status columns only, no lock
+    SELECT g.status, g.request_hash
+    INTO claim_status, claim_request_hash
+    FROM gtw_idemp g
+    WHERE g.key_hash = v_key_hash
+      AND g.x_request_id = p_x_request_id
+      AND g.expired_at > now()
+      AND (g.status NOT IN (1, 2) OR (g.status = 1 AND g.lock_deadline >= now())
+        -- fingerprint mismatch, never taken over (same rule as the takeover below)
+        OR (g.request_hash <> p_request_hash
+            AND split_part(g.request_hash, ':', 1) = split_part(p_request_hash, ':', 1)))
+    ORDER BY g.expired_at DESC
+    LIMIT 1;
+
+    IF FOUND THEN
+        claim_outcome := 'EXISTING';
+        RETURN NEXT;
+        RETURN;
+    END IF;
+
+    PERFORM pg_advisory_xact_lock(hashtextextended(p_x_request_id, 0));
+
+    SELECT *
+    INTO existing
+    FROM gtw_idemp g
+    WHERE g.key_hash = v_key_hash
+      AND g.x_request_id = p_x_request_id
+      AND g.expired_at > now()
+    ORDER BY g.expired_at DESC
+    LIMIT 1
+    FOR UPDATE;
+
+    IF NOT FOUND THEN
+        INSERT INTO gtw_idemp (key_hash, x_request_id, trx_id, status, idempotent_action, created_at, updated_at,
+                               expired_at, lock_deadline, request_hash, version)
+        VALUES (v_key_hash, p_x_request_id, CAST(p_trx_id AS UUID), 1, p_action, now(), now(),
+                now() + p_expiration_seconds * INTERVAL '1 second',
+                now() + p_lock_seconds * INTERVAL '1 second', p_request_hash, 0);
+        claim_outcome := 'CREATED';
+        claim_status := 1;
+        claim_request_hash := p_request_hash;
+        RETURN NEXT;
+        RETURN;
+    END IF;
+
+    claim_request_hash := existing.request_hash;
+    IF (existing.status = 2 OR (existing.status = 1 AND existing.lock_deadline < now()))
+        AND (existing.request_hash IS NULL
+            OR existing.request_hash = p_request_hash
+            OR split_part(existing.request_hash, ':', 1) <> split_part(p_request_hash, ':', 1)) THEN
+        UPDATE gtw_idemp g
+        SET status        = 1,
+            trx_id        = CAST(p_trx_id AS UUID),
+            lock_deadline = now() + p_takeover_lock_seconds * INTERVAL '1 second',
+            updated_at    = now(),
+            version       = g.version + 1
+        WHERE g.key_hash = existing.key_hash
+          AND g.expired_at = existing.expired_at;
+        claim_outcome := 'TAKEN_OVER';
+        claim_status := 1;
+    ELSE
+        claim_outcome := 'EXISTING';
+        claim_status := existing.status;
+    END IF;
+    RETURN NEXT;
+END
+$$;
+
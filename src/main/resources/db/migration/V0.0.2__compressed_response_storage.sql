@@ -0,0 +1,18 @@
+-------------------------------------------
+---------- gtw_idemp_headers --------------
+-------------------------------------------
+-- Distinct response header sets, referenced from gtw_idemp by hash
+CREATE TABLE IF NOT EXISTS gtw_idemp_headers
+(
+    hash                 VARCHAR(64)    PRIMARY KEY,
+    headers              JSONB          NOT NULL,
+    created_at           TIMESTAMP      NOT NULL
+);
+
+-------------------------------------------
+---------- gtw_idemp ----------------------
+-------------------------------------------
+-- NULL body_encoding means the body is stored as is (rows written before this migration)
+ALTER TABLE gtw_idemp ADD COLUMN IF NOT EXISTS body_encoding VARCHAR(32);
+-- when set, response_headers is NULL and the headers are stored in gtw_idemp_headers
+ALTER TABLE gtw_idemp ADD COLUMN IF NOT EXISTS response_headers_hash VARCHAR(64);
@@ -0,0 +1,144 @@
+-------------------------------------------
+---------- gtw_idemp (partitioned) --------
+-------------------------------------------
+-- gtw_idemp is range partitioned by expired_at in daily partitions, expired partitions are dropped
+-- as a whole by the partition maintenance job (see PartitionMaintenanceJob).
+-- A unique constraint on a partitioned table must include the partition key, so x_request_id is no
+-- longer unique on its own: claims are serialized per key in gtw_idemp_claim() instead.
+
+ALTER TABLE gtw_idemp RENAME TO gtw_idemp_unpartitioned;
+ALTER TABLE gtw_idemp_unpartitioned RENAME CONSTRAINT gtw_idemp_pkey TO gtw_idemp_unpartitioned_pkey;
+ALTER TABLE gtw_idemp_unpartitioned RENAME CONSTRAINT unique_gtw_idemp_x_request_id TO unique_gtw_idemp_unpartitioned_x_request_id;
+ALTER SEQUENCE gtw_idemp_id_seq OWNED BY NONE;
+
+CREATE TABLE gtw_idemp
+(
+    id                    BIGINT         NOT NULL DEFAULT nextval('gtw_idemp_id_seq'),
+    x_request_id          VARCHAR(255)   NOT NULL,
+    trx_id                VARCHAR(255)   NOT NULL,
+    status                VARCHAR(255)   NOT NULL,
+    idempotent_action     VARCHAR(255)   NOT NULL,
+    created_at            TIMESTAMP      NOT NULL,
+    updated_at            TIMESTAMP      NOT NULL,
+    expired_at            TIMESTAMP      NOT NULL,
+    lock_deadline         TIMESTAMP      NOT NULL,
+    request_hash          VARCHAR(255),
+    response_code         INTEGER,
+    response_body         BYTEA,
+    response_headers      JSONB,
+    version               NUMERIC        DEFAULT 0,
+    body_encoding         VARCHAR(32),
+    response_headers_hash VARCHAR(64),
+    CONSTRAINT gtw_idemp_pkey PRIMARY KEY (id, expired_at)
+) PARTITION BY RANGE (expired_at);
+
+ALTER SEQUENCE gtw_idemp_id_seq OWNED BY gtw_idemp.id;
+
+CREATE INDEX idx_gtw_idemp_x_request_id ON gtw_idemp (x_request_id, expired_at);
+
+-- safety net for rows beyond the pre-created partitions, expected to stay empty
+CREATE TABLE gtw_idemp_default PARTITION OF gtw_idemp DEFAULT;
+
+DO
+$$
+    DECLARE
+        day DATE := LEAST(CAST(now() AS DATE), (SELECT CAST(min(expired_at) AS DATE) FROM gtw_idemp_unpartitioned));
+    BEGIN
+        WHILE day <= CAST(now() AS DATE) + 14
+            LOOP
+                EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF gtw_idemp FOR VALUES FROM (%L) TO (%L)',
+                               'gtw_idemp_p' || to_char(day, 'YYYYMMDD'), day, day + 1);
+                day := day + 1;
+            END LOOP;
+    END
+$$;
+
+INSERT INTO gtw_idemp (id, x_request_id, trx_id, status, idempotent_action, created_at, updated_at, expired_at,
+                       lock_deadline, request_hash, response_code, response_body, response_headers, version,
+                       body_encoding, response_headers_hash)
+SELECT id, x_request_id, trx_id, status, idempotent_action, created_at, updated_at, expired_at,
+       lock_deadline, request_hash, response_code, response_body, response_headers, version,
+       body_encoding, response_headers_hash
+FROM gtw_idemp_unpartitioned;
+
+DROP TABLE gtw_idemp_unpartitioned;
+
+-------------------------------------------
+---------- gtw_idemp_claim ----------------
+-------------------------------------------
+-- Claim a key in one round trip:
+-- - insert a new IN_PROGRESS record (CREATED),
+-- - take over an UNDEFINED record or an IN_PROGRESS record whose lock expired (TAKEN_OVER),
+--   unless it was stored with a different request fingerprint,
+-- - or return the status of the existing record untouched (EXISTING).
+-- Expired records are treated as absent. Claims of the same key are serialized with a transaction
+-- scoped advisory lock; each statement below takes a fresh snapshot, so it sees claims committed
+-- while this one was waiting for the lock.
+CREATE OR REPLACE FUNCTION gtw_idemp_claim(p_x_request_id VARCHAR,
+                                           p_trx_id VARCHAR,
+                                           p_action VARCHAR,
+                                           p_request_hash VARCHAR,
+                                           p_expiration_seconds BIGINT,
+                                           p_lock_seconds BIGINT,
+                                           p_takeover_lock_seconds BIGINT)
+    RETURNS TABLE
+            (
+                claim_id           BIGINT,
+                claim_outcome      VARCHAR,
+                claim_status       VARCHAR,
+                claim_request_hash VARCHAR
+            )
+    LANGUAGE plpgsql
+AS
+$$
+DECLARE
+    existing gtw_idemp%ROWTYPE;
+BEGIN
+    PERFORM pg_advisory_xact_lock(hashtextextended(p_x_request_id, 0));
+
+    SELECT *
+    INTO existing
+    FROM gtw_idemp g
+    WHERE g.x_request_id = p_x_request_id
+      AND g.expired_at > now()
+    ORDER BY g.expired_at DESC
+    LIMIT 1
+    FOR UPDATE;
+
+    IF NOT FOUND THEN
+        claim_id := nextval('gtw_idemp_id_seq');
+        INSERT INTO gtw_idemp (id, x_request_id, trx_id, status, idempotent_action, created_at, updated_at,
+                               expired_at, lock_deadline, request_hash, version)
+        VALUES (claim_id, p_x_request_id, p_trx_id, 'IN_PROGRESS', p_action, now(), now(),
+                now() + p_expiration_seconds * INTERVAL '1 second',
+                now() + p_lock_seconds * INTERVAL '1 second', p_request_hash, 0);
+        claim_outcome := 'CREATED';
+        claim_status := 'IN_PROGRESS';
+        claim_request_hash := p_request_hash;
+        RETURN NEXT;
+        RETURN;
+    END IF;
+
+    claim_id := existing.id;
+    claim_request_hash := existing.request_hash;
+    IF (existing.status = 'UNDEFINED' OR (existing.status = 'IN_PROGRESS' AND existing.lock_deadline < now()))
+        AND (existing.request_hash IS NULL
+            OR existing.request_hash = p_request_hash
+            OR split_part(existing.request_hash, ':', 1) <> split_part(p_request_hash, ':', 1)) THEN
+        UPDATE gtw_idemp g
+        SET status        = 'IN_PROGRESS',
+            trx_id        = p_trx_id,
+            lock_deadline = now() + p_takeover_lock_seconds * INTERVAL '1 second',
+            updated_at    = now(),
+            version       = g.version + 1
+        WHERE g.id = existing.id
+          AND g.expired_at = existing.expired_at;
+        claim_outcome := 'TAKEN_OVER';
+        claim_status := 'IN_PROGRESS';
+    ELSE
+        claim_outcome := 'EXISTING';
+        claim_status := existing.status;
+    END IF;
+    RETURN NEXT;
+END
+$$;
@@ -0,0 +1,9 @@
+-------------------------------------------
+---------- compensation scans -------------
+-------------------------------------------
+-- only records waiting for compensation are indexed, finished records never are
+CREATE INDEX idx_gtw_idemp_compensation ON gtw_idemp (status, updated_at)
+    WHERE status IN ('UNDEFINED', 'PENDING_COMPENSATION', 'IN_COMPENSATION');
+
+CREATE INDEX idx_gtw_idemp_in_progress_lock ON gtw_idemp (lock_deadline)
+    WHERE status = 'IN_PROGRESS';
@@ -0,0 +1,92 @@
+-------------------------------------------
+---------- gtw_idemp_claim ----------------
+-------------------------------------------
+-- Lock-free fast path: records that cannot be claimed (finished, or IN_PROGRESS with a live lease) are
+-- returned as EXISTING by a plain read, without the advisory lock or the row lock. Duplicates of finished
+-- requests, however many arrive at once, no longer queue on the lock of their key; locking is left to the
+-- insert and takeover cases. A record whose lease lapses right after the read is still reported
+-- IN_PROGRESS, the retry that follows takes it over.
+CREATE OR REPLACE FUNCTION gtw_idemp_claim(p_x_request_id VARCHAR,
+                                           p_trx_id VARCHAR,
+                                           p_action VARCHAR,
+                                           p_request_hash VARCHAR,
+                                           p_expiration_seconds BIGINT,
+                                           p_lock_seconds BIGINT,
+                                           p_takeover_lock_seconds BIGINT)
+    RETURNS TABLE
+            (
+                claim_id           BIGINT,
+                claim_outcome      VARCHAR,
+                claim_status       VARCHAR,
+                claim_request_hash VARCHAR
+            )
+    LANGUAGE plpgsql
+AS
+$$
+DECLARE
+    existing gtw_idemp%ROWTYPE;
+BEGIN
+    -- fast path: plain read of the status columns only, no lock
+    SELECT g.id, g.status, g.request_hash
+    INTO claim_id, claim_status, claim_request_hash
+    FROM gtw_idemp g
+    WHERE g.x_request_id = p_x_request_id
+      AND g.expired_at > now()
+      AND (g.status NOT IN ('UNDEFINED', 'IN_PROGRESS') OR (g.status = 'IN_PROGRESS' AND g.lock_deadline >= now()))
+    ORDER BY g.expired_at DESC
+    LIMIT 1;
+
+    IF FOUND THEN
+        claim_outcome := 'EXISTING';
+        RETURN NEXT;
+        RETURN;
+    END IF;
+
+    PERFORM pg_advisory_xact_lock(hashtextextended(p_x_request_id, 0));
+
+    SELECT *
+    INTO existing
+    FROM gtw_idemp g
+    WHERE g.x_request_id = p_x_request_id
+      AND g.expired_at > now()
+    ORDER BY g.expired_at DESC
+    LIMIT 1
+    FOR UPDATE;
+
+    IF NOT FOUND THEN
+        claim_id := nextval('gtw_idemp_id_seq');
+        INSERT INTO gtw_idemp (id, x_request_id, trx_id, status, idempotent_action, created_at, updated_at,
+                               expired_at, lock_deadline, request_hash, version)
+        VALUES (claim_id, p_x_request_id, p_trx_id, 'IN_PROGRESS', p_action, now(), now(),
+                now() + p_expiration_seconds * INTERVAL '1 second',
+                now() + p_lock_seconds * INTERVAL '1 second', p_request_hash, 0);
+        claim_outcome := 'CREATED';
+        claim_status := 'IN_PROGRESS';
+        claim_request_hash := p_request_hash;
+        RETURN NEXT;
+        RETURN;
+    END IF;
+
+    claim_id := existing.id;
+    claim_request_hash := existing.request_hash;
+    IF (existing.status = 'UNDEFINED' OR (existing.status = 'IN_PROGRESS' AND existing.lock_deadline < now()))
+        AND (existing.request_hash IS NULL
+            OR existing.request_hash = p_request_hash
+            OR split_part(existing.request_hash, ':', 1) <> split_part(p_request_hash, ':', 1)) THEN
+        UPDATE gtw_idemp g
+        SET status        = 'IN_PROGRESS',
+            trx_id        = p_trx_id,
+            lock_deadline = now() + p_takeover_lock_seconds * INTERVAL '1 second',
+            updated_at    = now(),
+            version       = g.version + 1
+        WHERE g.id = existing.id
+          AND g.expired_at = existing.expired_at;
+        claim_outcome := 'TAKEN_OVER';
+        claim_status := 'IN_PROGRESS';
+    ELSE
+        claim_outcome := 'EXISTING';
+        claim_status := existing.status;
+    END IF;
+    RETURN NEXT;
+END
+$$;
@@ -0,0 +1,6 @@
+-------------------------------------------
+---------- gtw_idemp ----------------------
+-------------------------------------------
+-- when set, response_headers is NULL and the headers are stored as a pre-serialized binary block
+-- (see HeaderBlock), written onto replayed responses without parsing jsonb
+ALTER TABLE gtw_idemp ADD COLUMN IF NOT EXISTS response_header_block BYTEA;
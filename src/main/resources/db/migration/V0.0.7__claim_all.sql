@@ -0,0 +1,37 @@
+-------------------------------------------
+---------- gtw_idemp_claim_all ------------
+-------------------------------------------
+-- Claims all keys of a batch request in one statement, each key as gtw_idemp_claim does (same trx_id for all
+-- of them). Keys are claimed in sorted order, so batches with overlapping keys take their advisory locks in
+-- the same order and cannot deadlock; the locks are held until the claiming transaction ends.
+CREATE OR REPLACE FUNCTION gtw_idemp_claim_all(p_x_request_ids VARCHAR[],
+                                               p_trx_id VARCHAR,
+                                               p_action VARCHAR,
+                                               p_request_hashes VARCHAR[],
+                                               p_expiration_seconds BIGINT,
+                                               p_lock_seconds BIGINT,
+                                               p_takeover_lock_seconds BIGINT)
+    RETURNS TABLE
+            (
+                claim_x_request_id VARCHAR,
+                claim_id           BIGINT,
+                claim_outcome      VARCHAR,
+                claim_status       VARCHAR,
+                claim_request_hash VARCHAR
+            )
+    LANGUAGE plpgsql
+AS
+$$
+DECLARE
+    k RECORD;
+BEGIN
+    FOR k IN SELECT t.x_request_id, t.request_hash
+             FROM unnest(p_x_request_ids, p_request_hashes) AS t(x_request_id, request_hash)
+             ORDER BY t.x_request_id
+        LOOP
+            RETURN QUERY SELECT k.x_request_id, c.claim_id, c.claim_outcome, c.claim_status, c.claim_request_hash
+                         FROM gtw_idemp_claim(k.x_request_id, p_trx_id, p_action, k.request_hash,
+                                              p_expiration_seconds, p_lock_seconds, p_takeover_lock_seconds) c;
+        END LOOP;
+END
+$$;
@@ -0,0 +1,268 @@
+-------------------------------------------
+---------- gtw_idemp (compact keys) -------
+-------------------------------------------
+-- Leaner row and index layout:
+-- - key_hash (gtw_idemp_key(x_request_id), the md5 of the key as a 16 byte UUID) replaces the BIGINT id and
+--   the VARCHAR index on x_request_id: PRIMARY KEY (key_hash, expired_at) is the only index lookups use.
+--   x_request_id is kept for display and is still compared on every lookup, so a hash collision never mixes
+--   up two keys,
+-- - trx_id is a UUID,
+-- - status and idempotent_action are SMALLINT codes (IdempotentRequestStatus.Codes, Action):
+--   1 IN_PROGRESS, 2 UNDEFINED, 3 SUCCESS, 4 FAILURE, 5 PENDING_COMPENSATION, 6 IN_COMPENSATION; 1 PAYMENT,
+-- - version is a BIGINT.
+-- Existing records are copied into the new table. Table and index sizes before and after are reported as notices
+-- (in the Flyway log).
+
+-- hashed key, inlined by the planner so lookups by gtw_idemp_key(?) use the primary key
+CREATE FUNCTION gtw_idemp_key(p_x_request_id VARCHAR)
+    RETURNS UUID
+    LANGUAGE sql
+    IMMUTABLE
+    PARALLEL SAFE
+AS
+$$
+SELECT CAST(md5(p_x_request_id) AS UUID)
+$$;
+
+DO
+$$
+    BEGIN
+        RAISE NOTICE 'gtw_idemp before: table % / indexes %',
+            pg_size_pretty((SELECT sum(pg_table_size(i.inhrelid)) FROM pg_inherits i WHERE i.inhparent = 'gtw_idemp'::regclass)),
+            pg_size_pretty((SELECT sum(pg_indexes_size(i.inhrelid)) FROM pg_inherits i WHERE i.inhparent = 'gtw_idemp'::regclass));
+    END
+$$;
+
+-- the old table and its partitions make way for the new ones (partition names are used by PartitionMaintenanceJob)
+DO
+$$
+    DECLARE
+        partition_name TEXT;
+    BEGIN
+        FOR partition_name IN SELECT c.relname
+                              FROM pg_inherits i
+                                       JOIN pg_class c ON c.oid = i.inhrelid
+                              WHERE i.inhparent = 'gtw_idemp'::regclass
+            LOOP
+                EXECUTE format('ALTER TABLE %I RENAME TO %I', partition_name,
+                               'gtw_idemp_old' || substr(partition_name, length('gtw_idemp') + 1));
+            END LOOP;
+    END
+$$;
+
+ALTER TABLE gtw_idemp RENAME TO gtw_idemp_old;
+ALTER TABLE gtw_idemp_old RENAME CONSTRAINT gtw_idemp_pkey TO gtw_idemp_old_pkey;
+ALTER INDEX idx_gtw_idemp_x_request_id RENAME TO idx_gtw_idemp_old_x_request_id;
+ALTER INDEX idx_gtw_idemp_compensation RENAME TO idx_gtw_idemp_old_compensation;
+ALTER INDEX idx_gtw_idemp_in_progress_lock RENAME TO idx_gtw_idemp_old_in_progress_lock;
+
+CREATE TABLE gtw_idemp
+(
+    key_hash              UUID           NOT NULL,
+    x_request_id          VARCHAR(255)   NOT NULL,
+    trx_id                UUID           NOT NULL,
+    status                SMALLINT       NOT NULL,
+    idempotent_action     SMALLINT       NOT NULL,
+    created_at            TIMESTAMP      NOT NULL,
+    updated_at            TIMESTAMP      NOT NULL,
+    expired_at            TIMESTAMP      NOT NULL,
+    lock_deadline         TIMESTAMP      NOT NULL,
+    version               BIGINT         NOT NULL DEFAULT 0,
+    request_hash          VARCHAR(255),
+    response_code         INTEGER,
+    body_encoding         VARCHAR(32),
+    response_headers_hash VARCHAR(64),
+    response_headers      JSONB,
+    response_header_block BYTEA,
+    response_body         BYTEA,
+    CONSTRAINT gtw_idemp_pkey PRIMARY KEY (key_hash, expired_at)
+) PARTITION BY RANGE (expired_at);
+
+-- safety net for rows beyond the pre-created partitions, expected to stay empty
+CREATE TABLE gtw_idemp_default PARTITION OF gtw_idemp DEFAULT;
+
+DO
+$$
+    DECLARE
+        day DATE := LEAST(CAST(now() AS DATE), (SELECT CAST(min(expired_at) AS DATE) FROM gtw_idemp_old));
+    BEGIN
+        WHILE day <= CAST(now() AS DATE) + 14
+            LOOP
+                EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF gtw_idemp FOR VALUES FROM (%L) TO (%L)',
+                               'gtw_idemp_p' || to_char(day, 'YYYYMMDD'), day, day + 1);
+                day := day + 1;
+            END LOOP;
+    END
+$$;
+
+-- only records waiting for compensation are indexed, finished records never are
+CREATE INDEX idx_gtw_idemp_compensation ON gtw_idemp (status, updated_at)
+    WHERE status IN (2, 5, 6);
+
+CREATE INDEX idx_gtw_idemp_in_progress_lock ON gtw_idemp (lock_deadline)
+    WHERE status = 1;
+
+-- expired records are not copied, they are absent to all lookups anyway
+INSERT INTO gtw_idemp (key_hash, x_request_id, trx_id, status, idempotent_action, created_at, updated_at, expired_at,
+                       lock_deadline, version, request_hash, response_code, body_encoding, response_headers_hash,
+                       response_headers, response_header_block, response_body)
+SELECT gtw_idemp_key(x_request_id),
+       x_request_id,
+       CASE
+           WHEN trx_id ~* '^[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}$' THEN CAST(trx_id AS UUID)
+           ELSE CAST(md5(trx_id) AS UUID)
+           END,
+       CASE status
+           WHEN 'IN_PROGRESS' THEN 1
+           WHEN 'UNDEFINED' THEN 2
+           WHEN 'SUCCESS' THEN 3
+           WHEN 'FAILURE' THEN 4
+           WHEN 'PENDING_COMPENSATION' THEN 5
+           WHEN 'IN_COMPENSATION' THEN 6
+           END,
+       CASE idempotent_action
+           WHEN 'PAYMENT' THEN 1
+           END,
+       created_at, updated_at, expired_at, lock_deadline, COALESCE(CAST(version AS BIGINT), 0), request_hash,
+       response_code, body_encoding, response_headers_hash, response_headers, response_header_block, response_body
+FROM gtw_idemp_old
+WHERE expired_at > now();
+
+DROP TABLE gtw_idemp_old;
+DROP SEQUENCE IF EXISTS gtw_idemp_id_seq;
+
+DO
+$$
+    BEGIN
+        RAISE NOTICE 'gtw_idemp after: table % / indexes %',
+            pg_size_pretty((SELECT sum(pg_table_size(i.inhrelid)) FROM pg_inherits i WHERE i.inhparent = 'gtw_idemp'::regclass)),
+            pg_size_pretty((SELECT sum(pg_indexes_size(i.inhrelid)) FROM pg_inherits i WHERE i.inhparent = 'gtw_idemp'::regclass));
+    END
+$$;
+
+-------------------------------------------
+---------- gtw_idemp_claim ----------------
+-------------------------------------------
+-- Same logic as before (see V0.0.5), on the compact layout. Statuses are returned as codes, the record id is gone.
+DROP FUNCTION IF EXISTS gtw_idemp_claim_all(VARCHAR[], VARCHAR, VARCHAR, VARCHAR[], BIGINT, BIGINT, BIGINT);
+DROP FUNCTION IF EXISTS gtw_idemp_claim(VARCHAR, VARCHAR, VARCHAR, VARCHAR, BIGINT, BIGINT, BIGINT);
+
+CREATE FUNCTION gtw_idemp_claim(p_x_request_id VARCHAR,
+                                p_trx_id VARCHAR,
+                                p_action SMALLINT,
+                                p_request_hash VARCHAR,
+                                p_expiration_seconds BIGINT,
+                                p_lock_seconds BIGINT,
+                                p_takeover_lock_seconds BIGINT)
+    RETURNS TABLE
+            (
+                claim_outcome      VARCHAR,
+                claim_status       SMALLINT,
+                claim_request_hash VARCHAR
+            )
+    LANGUAGE plpgsql
+AS
+$$
+DECLARE
+    v_key_hash UUID := gtw_idemp_key(p_x_request_id);
+    existing   gtw_idemp%ROWTYPE;
+BEGIN
+    -- fast path: plain read of the status columns only, no lock
+    SELECT g.status, g.request_hash
+    INTO claim_status, claim_request_hash
+    FROM gtw_idemp g
+    WHERE g.key_hash = v_key_hash
+      AND g.x_request_id = p_x_request_id
+      AND g.expired_at > now()
+      AND (g.status NOT IN (1, 2) OR (g.status = 1 AND g.lock_deadline >= now()))
+    ORDER BY g.expired_at DESC
+    LIMIT 1;
+
+    IF FOUND THEN
+        claim_outcome := 'EXISTING';
+        RETURN NEXT;
+        RETURN;
+    END IF;
+
+    PERFORM pg_advisory_xact_lock(hashtextextended(p_x_request_id, 0));
+
+    SELECT *
+    INTO existing
+    FROM gtw_idemp g
+    WHERE g.key_hash = v_key_hash
+      AND g.x_request_id = p_x_request_id
+      AND g.expired_at > now()
+    ORDER BY g.expired_at DESC
+    LIMIT 1
+    FOR UPDATE;
+
+    IF NOT FOUND THEN
+        INSERT INTO gtw_idemp (key_hash, x_request_id, trx_id, status, idempotent_action, created_at, updated_at,
+                               expired_at, lock_deadline, request_hash, version)
+        VALUES (v_key_hash, p_x_request_id, CAST(p_trx_id AS UUID), 1, p_action, now(), now(),
+                now() + p_expiration_seconds * INTERVAL '1 second',
+                now() + p_lock_seconds * INTERVAL '1 second', p_request_hash, 0);
+        claim_outcome := 'CREATED';
+        claim_status := 1;
+        claim_request_hash := p_request_hash;
+        RETURN NEXT;
+        RETURN;
+    END IF;
+
+    claim_request_hash := existing.request_hash;
+    IF (existing.status = 2 OR (existing.status = 1 AND existing.lock_deadline < now()))
+        AND (existing.request_hash IS NULL
+            OR existing.request_hash = p_request_hash
+            OR split_part(existing.request_hash, ':', 1) <> split_part(p_request_hash, ':', 1)) THEN
+        UPDATE gtw_idemp g
+        SET status        = 1,
+            trx_id        = CAST(p_trx_id AS UUID),
+            lock_deadline = now() + p_takeover_lock_seconds * INTERVAL '1 second',
+            updated_at    = now(),
+            version       = g.version + 1
+        WHERE g.key_hash = existing.key_hash
+          AND g.expired_at = existing.expired_at;
+        claim_outcome := 'TAKEN_OVER';
+        claim_status := 1;
+    ELSE
+        claim_outcome := 'EXISTING';
+        claim_status := existing.status;
+    END IF;
+    RETURN NEXT;
+END
+$$;
+
+-------------------------------------------
+---------- gtw_idemp_claim_all ------------
+-------------------------------------------
+-- Same as before (see V0.0.7), keys claimed in sorted order.
+CREATE FUNCTION gtw_idemp_claim_all(p_x_request_ids VARCHAR[],
+                                    p_trx_id VARCHAR,
+                                    p_action SMALLINT,
+                                    p_request_hashes VARCHAR[],
+                                    p_expiration_seconds BIGINT,
+                                    p_lock_seconds BIGINT,
+                                    p_takeover_lock_seconds BIGINT)
+    RETURNS TABLE
+            (
+                claim_x_request_id VARCHAR,
+                claim_outcome      VARCHAR,
+                claim_status       SMALLINT,
+                claim_request_hash VARCHAR
+            )
+    LANGUAGE plpgsql
+AS
+$$
+DECLARE
+    k RECORD;
+BEGIN
+    FOR k IN SELECT t.x_request_id, t.request_hash
+             FROM unnest(p_x_request_ids, p_request_hashes) AS t(x_request_id, request_hash)
+             ORDER BY t.x_request_id
+        LOOP
+            RETURN QUERY SELECT k.x_request_id, c.claim_outcome, c.claim_status, c.claim_request_hash
+                         FROM gtw_idemp_claim(k.x_request_id, p_trx_id, p_action, k.request_hash,
+                                              p_expiration_seconds, p_lock_seconds, p_takeover_lock_seconds) c;
+        END LOOP;
+END
+$$;
@@ -0,0 +1,9 @@
+-------------------------------------------
+---------- audit export and counts --------
+-------------------------------------------
+-- Counts per status and action over a created_at range (IdempotencyExporter) are answered by an index only scan
+-- of this index, exports filtered by time range read their rows through it. expired_at is included so expired
+-- records waiting for their partition to be dropped are filtered without visiting the table.
+-- SMALLINT codes keep the entries small; the extra index write per insert is the price of the cheap counts.
+CREATE INDEX idx_gtw_idemp_created_status_action ON gtw_idemp (created_at, status, idempotent_action)
+    INCLUDE (expired_at);
@@ -0,0 +1,63 @@
+package com.ivotasevski.idempotency.capture;
+
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CapturingResponseWrapperTest {
+
+    private final CaptureBufferPool pool = new CaptureBufferPool(new IdempotencyProperties());
+    private final MockHttpServletResponse response = new MockHttpServletResponse();
+
+    @Test
+    void outputStreamIsTeedToClientAndCapture() throws IOException {
+        CapturingResponseWrapper wrapper = new CapturingResponseWrapper(response, pool.newCapture());
+        byte[] body = "{\"amount\":10}".getBytes(StandardCharsets.UTF_8);
+
+        wrapper.getOutputStream().write(body);
+
+        assertArrayEquals(body, response.getContentAsByteArray());
+        assertArrayEquals(body, wrapper.getCapture().toByteArray());
+    }
+
+    @Test
+    void writerIsFlushedIntoCaptureWithoutCommittingResponse() throws IOException {
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        CapturingResponseWrapper wrapper = new CapturingResponseWrapper(response, pool.newCapture());
+
+        PrintWriter writer = wrapper.getWriter();
+        writer.print("{\"name\":\"Zoë\"}");
+
+        assertArrayEquals("{\"name\":\"Zoë\"}".getBytes(StandardCharsets.UTF_8), wrapper.getCapture().toByteArray());
+        // the filter may still set status and headers after reading the capture
+        assertFalse(response.isCommitted());
+
+        wrapper.flushBuffer();
+        assertTrue(response.isCommitted());
+    }
+
+    @Test
+    void resetBufferDropsCapturedBytes() throws IOException {
+        CapturingResponseWrapper wrapper = new CapturingResponseWrapper(response, pool.newCapture());
+        wrapper.getOutputStream().write("partial".getBytes(StandardCharsets.UTF_8));
+
+        wrapper.resetBuffer();
+        wrapper.getOutputStream().write("error".getBytes(StandardCharsets.UTF_8));
+
+        assertArrayEquals("error".getBytes(StandardCharsets.UTF_8), wrapper.getCapture().toByteArray());
+    }
+
+    @Test
+    void outputStreamAfterWriterIsRejected() throws IOException {
+        CapturingResponseWrapper wrapper = new CapturingResponseWrapper(response, pool.newCapture());
+        wrapper.getWriter();
+
+        assertThrows(IllegalStateException.class, wrapper::getOutputStream);
+    }
+}
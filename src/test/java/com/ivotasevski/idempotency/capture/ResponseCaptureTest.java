@@ -0,0 +1,143 @@
+package com.ivotasevski.idempotency.capture;
+
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCaptureTest {
+
+    private static final int MEMORY_THRESHOLD = 2 * CaptureBufferPool.CHUNK_SIZE;
+    private static final int MAX_STORED_SIZE = 8 * CaptureBufferPool.CHUNK_SIZE;
+
+    @TempDir
+    private Path spillDirectory;
+
+    private CaptureBufferPool pool;
+
+    @BeforeEach
+    void setUp() {
+        IdempotencyProperties properties = new IdempotencyProperties();
+        properties.getCapture().setMemoryThreshold(DataSize.ofBytes(MEMORY_THRESHOLD));
+        properties.getCapture().setMaxStoredBodySize(DataSize.ofBytes(MAX_STORED_SIZE));
+        properties.getCapture().setSpillDirectory(spillDirectory);
+        pool = new CaptureBufferPool(properties);
+    }
+
+    @Test
+    void bodyBelowThresholdIsKeptOnHeap() throws IOException {
+        byte[] body = body(CaptureBufferPool.CHUNK_SIZE + 100);
+        ResponseCapture capture = pool.newCapture();
+
+        writeInPieces(capture, body, 1000);
+
+        assertArrayEquals(body, capture.toByteArray());
+        assertEquals(body.length, capture.getSize());
+        assertFalse(capture.isOmitted());
+        assertNull(capture.getOmittedMarker());
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void bodyPastMemoryThresholdIsSpilledAndFileDeletedOnRelease() throws IOException {
+        byte[] body = body(MEMORY_THRESHOLD + 100);
+        ResponseCapture capture = pool.newCapture();
+
+        writeInPieces(capture, body, 1000);
+
+        assertEquals(1, spillFiles());
+        assertArrayEquals(body, capture.toByteArray());
+
+        capture.release();
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void bodyPastMaxStoredSizeIsOmittedWithDigestOfFullBody() throws Exception {
+        byte[] body = body(MAX_STORED_SIZE + 100);
+        ResponseCapture capture = pool.newCapture();
+
+        writeInPieces(capture, body, 1000);
+
+        assertTrue(capture.isOmitted());
+        assertNull(capture.toByteArray());
+        assertEquals(body.length, capture.getSize());
+        assertEquals(marker(body), capture.getOmittedMarker());
+        // the spilled part is dropped as soon as the body is omitted
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void bodyOmittedBeforeSpillingHasDigestOfFullBody() throws Exception {
+        byte[] body = body(300);
+        ResponseCapture capture = pool.newCapture(200);
+
+        writeInPieces(capture, body, 64);
+
+        assertTrue(capture.isOmitted());
+        assertEquals(marker(body), capture.getOmittedMarker());
+    }
+
+    @Test
+    void resetAfterSpillStartsOverOnHeap() throws IOException {
+        ResponseCapture capture = pool.newCapture();
+        writeInPieces(capture, body(MEMORY_THRESHOLD + 100), 1000);
+        assertEquals(1, spillFiles());
+
+        capture.reset();
+        byte[] body = "{\"error\":\"reset\"}".getBytes(StandardCharsets.UTF_8);
+        capture.write(body, 0, body.length);
+
+        assertEquals(0, spillFiles());
+        assertEquals(body.length, capture.getSize());
+        assertArrayEquals(body, capture.toByteArray());
+    }
+
+    @Test
+    void directBufferIsCapturedAndLeftUnchanged() throws IOException {
+        byte[] body = body(CaptureBufferPool.CHUNK_SIZE * 3 / 2);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(body.length).put(body).flip();
+        ResponseCapture capture = pool.newCapture();
+
+        capture.write(buffer);
+
+        assertArrayEquals(body, capture.toByteArray());
+        assertEquals(0, buffer.position());
+        assertEquals(body.length, buffer.remaining());
+    }
+
+    private static void writeInPieces(ResponseCapture capture, byte[] body, int pieceSize) throws IOException {
+        for (int off = 0; off < body.length; off += pieceSize) {
+            capture.write(body, off, Math.min(pieceSize, body.length - off));
+        }
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        new Random(size).nextBytes(body);
+        return body;
+    }
+
+    private static String marker(byte[] body) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+        return "sha-256=" + Base64.getEncoder().encodeToString(digest) + "; length=" + body.length;
+    }
+
+    private long spillFiles() throws IOException {
+        try (var files = Files.list(spillDirectory)) {
+            return files.count();
+        }
+    }
+}
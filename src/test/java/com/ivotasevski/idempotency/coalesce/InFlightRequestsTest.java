@@ -0,0 +1,127 @@
+package com.ivotasevski.idempotency.coalesce;
+
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InFlightRequestsTest {
+
+    private static final CachedResponse RESPONSE = new CachedResponse(IdempotentRequestStatus.SUCCESS, 201, new byte[0],
+            "{}".getBytes(), null, Instant.MAX);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void localDuplicateIsWokenWithTheResponse() throws Exception {
+        InFlightRequests inFlightRequests = inFlightRequests(Duration.ofSeconds(10));
+        inFlightRequests.register("key");
+
+        Future<Optional<CachedResponse>> duplicate = awaitInBackground(inFlightRequests, "key");
+        inFlightRequests.complete("key", RESPONSE);
+
+        assertSame(RESPONSE, duplicate.get(5, TimeUnit.SECONDS).orElseThrow());
+    }
+
+    @Test
+    void localDuplicateIsWokenWithoutResponseOnRelease() throws Exception {
+        InFlightRequests inFlightRequests = inFlightRequests(Duration.ofSeconds(10));
+        inFlightRequests.register("key");
+
+        Future<Optional<CachedResponse>> duplicate = awaitInBackground(inFlightRequests, "key");
+        inFlightRequests.release("key");
+
+        assertTrue(duplicate.get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    void remoteDuplicateReadsStoredResponseWhenNotified() throws Exception {
+        InFlightRequests inFlightRequests = inFlightRequests(Duration.ofSeconds(10));
+        AtomicReference<CachedResponse> stored = new AtomicReference<>();
+        CountDownLatch waiting = new CountDownLatch(1);
+
+        Future<Optional<CachedResponse>> duplicate = executor.submit(() -> inFlightRequests.await("key", () -> {
+            waiting.countDown();
+            return Optional.ofNullable(stored.get());
+        }));
+        assertTrue(waiting.await(5, TimeUnit.SECONDS));
+        stored.set(RESPONSE);
+        inFlightRequests.finalized("key");
+
+        assertSame(RESPONSE, duplicate.get(5, TimeUnit.SECONDS).orElseThrow());
+    }
+
+    @Test
+    void remoteDuplicateOfAlreadyFinishedRequestDoesNotWait() {
+        InFlightRequests inFlightRequests = inFlightRequests(Duration.ofSeconds(10));
+        AtomicInteger reads = new AtomicInteger();
+
+        Optional<CachedResponse> response = inFlightRequests.await("key", () -> {
+            reads.incrementAndGet();
+            return Optional.of(RESPONSE);
+        });
+
+        assertSame(RESPONSE, response.orElseThrow());
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    void duplicateGivesUpAfterWaitTimeout() {
+        InFlightRequests inFlightRequests = inFlightRequests(Duration.ofMillis(50));
+        inFlightRequests.register("local");
+
+        assertTrue(inFlightRequests.await("local", Optional::empty).isEmpty());
+        assertTrue(inFlightRequests.await("remote", Optional::empty).isEmpty());
+    }
+
+    @Test
+    void disabledCoalescingDoesNotWait() {
+        IdempotencyProperties properties = new IdempotencyProperties();
+        InFlightRequests inFlightRequests = new InFlightRequests(properties);
+        inFlightRequests.register("key");
+
+        assertTrue(inFlightRequests.await("key", () -> Optional.of(RESPONSE)).isEmpty());
+    }
+
+    /*
+        Start waiting on another thread, and return once it is parked on the original's completion future.
+     */
+    private static Future<Optional<CachedResponse>> awaitInBackground(InFlightRequests inFlightRequests, String key)
+            throws InterruptedException {
+        CompletableFuture<Optional<CachedResponse>> result = new CompletableFuture<>();
+        Thread duplicate = new Thread(() -> result.complete(inFlightRequests.await(key, Optional::empty)));
+        duplicate.setDaemon(true);
+        duplicate.start();
+        while (duplicate.getState() != Thread.State.TIMED_WAITING && !result.isDone()) {
+            Thread.sleep(1);
+        }
+        return result;
+    }
+
+    private static InFlightRequests inFlightRequests(Duration waitTimeout) {
+        IdempotencyProperties properties = new IdempotencyProperties();
+        properties.getCoalesce().setEnabled(true);
+        properties.getCoalesce().setWaitTimeout(waitTimeout);
+        return new InFlightRequests(properties);
+    }
+}
@@ -0,0 +1,62 @@
+package com.ivotasevski.idempotency.export;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportWriterTest {
+
+    private static final Instant CREATED = Instant.parse("2025-01-01T10:00:00Z");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void writesOneJsonObjectPerLine() throws IOException {
+        String ndjson = export(ExportFormat.NDJSON, true, record("a", "{}".getBytes(StandardCharsets.UTF_8)), record("b", null));
+
+        String[] lines = ndjson.split("\n");
+        assertEquals(2, lines.length);
+        JsonNode first = objectMapper.readTree(lines[0]);
+        assertEquals("a", first.get("x_request_id").asText());
+        assertEquals("SUCCESS", first.get("status").asText());
+        assertEquals(201, first.get("response_code").asInt());
+        assertEquals("{}", new String(Base64.getDecoder().decode(first.get("response_body").asText()), StandardCharsets.UTF_8));
+        assertTrue(objectMapper.readTree(lines[1]).get("response_body").isNull());
+    }
+
+    @Test
+    void omitsBodyColumnUnlessRequested() throws IOException {
+        String csv = export(ExportFormat.CSV, false, record("a,\"b\"", "{}".getBytes(StandardCharsets.UTF_8)));
+
+        String[] lines = csv.split("\r\n");
+        assertEquals("x_request_id,trx_id,status,idempotent_action,created_at,updated_at,expired_at,request_hash,response_code",
+                lines[0]);
+        assertEquals("\"a,\"\"b\"\"\",trx,SUCCESS,PAYMENT," + CREATED + "," + CREATED + "," + CREATED.plusSeconds(60) + ",,201",
+                lines[1]);
+    }
+
+    private String export(ExportFormat format, boolean includeBody, ExportedRecord... records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ExportWriter writer = ExportWriter.of(format, out, objectMapper, includeBody)) {
+            for (ExportedRecord record : records) {
+                writer.write(record);
+            }
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static ExportedRecord record(String xRequestId, byte[] body) {
+        return new ExportedRecord(xRequestId, "trx", IdempotentRequestStatus.SUCCESS, Action.PAYMENT,
+                CREATED, CREATED, CREATED.plusSeconds(60), null, 201, body);
+    }
+}
@@ -0,0 +1,44 @@
+package com.ivotasevski.idempotency.export;
+
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@AutoConfigureMockMvc
+@SpringBootTest(properties = {
+        "idempotency.store.type=memory",
+        "idempotency.export.enabled=true",
+        "idempotency.export.token=s3cret"})
+class IdempotencyExportControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Test
+    void requestsWithoutValidTokenAreRejected() throws Exception {
+        mockMvc.perform(get("/admin/idempotency/export").param("includeBody", "true"))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/admin/idempotency/counts").header(HttpHeaders.AUTHORIZATION, "Bearer wrong"))
+                .andExpect(status().isUnauthorized());
+        mockMvc.perform(get("/admin/idempotency/counts").header(HttpHeaders.AUTHORIZATION, "s3cret"))
+                .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void exportCannotBeEnabledWithoutToken() {
+        IdempotencyProperties properties = new IdempotencyProperties();
+        properties.getExport().setEnabled(true);
+
+        assertThrows(IllegalStateException.class, () -> new IdempotencyExportController(null, properties));
+        properties.getExport().setToken(" ");
+        assertThrows(IllegalStateException.class, () -> new IdempotencyExportController(null, properties));
+    }
+}
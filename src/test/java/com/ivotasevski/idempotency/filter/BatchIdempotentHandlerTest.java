@@ -0,0 +1,113 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/*
+    Batch endpoints claim and replay each item under its own key.
+ */
+@AutoConfigureMockMvc
+@SpringBootTest(properties = "idempotency.store.type=memory")
+class BatchIdempotentHandlerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private IdempotencyStore store;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void newItemsAreExecutedAndStoredPerItem() throws Exception {
+        String first = UUID.randomUUID().toString();
+        String second = UUID.randomUUID().toString();
+
+        JsonNode results = batch(item(first, 1), item(second, 2));
+
+        assertEquals(2, results.size());
+        assertEquals(first, results.get(0).get("idempotencyKey").asText());
+        assertEquals(second, results.get(1).get("idempotencyKey").asText());
+        assertEquals(IdempotentRequestStatus.SUCCESS, store.find(first).orElseThrow().status());
+        assertEquals(IdempotentRequestStatus.SUCCESS, store.find(second).orElseThrow().status());
+    }
+
+    @Test
+    void finishedItemsAreReplayedAndOnlyNewItemsExecuted() throws Exception {
+        String finished = UUID.randomUUID().toString();
+        String added = UUID.randomUUID().toString();
+        String original = batch(item(finished, 1)).get(0).get("idempotentAction").asText();
+
+        JsonNode results = batch(item(added, 2), item(finished, 1));
+
+        // results in the order the client sent the items
+        assertEquals(added, results.get(0).get("idempotencyKey").asText());
+        assertNotEquals(original, results.get(0).get("idempotentAction").asText());
+        assertEquals(finished, results.get(1).get("idempotencyKey").asText());
+        assertEquals(original, results.get(1).get("idempotentAction").asText());
+    }
+
+    @Test
+    void itemInProgressGetsStatusMarker() throws Exception {
+        String running = UUID.randomUUID().toString();
+        String added = UUID.randomUUID().toString();
+        store.claim(running, Action.PAYMENT, null, Duration.ofDays(1), Duration.ofMinutes(1), Duration.ofMinutes(1));
+
+        JsonNode results = batch(item(running, 1), item(added, 2));
+
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS.name(), results.get(0).get("idempotencyStatus").asText());
+        assertFalse(results.get(0).has("idempotentAction"));
+        assertTrue(results.get(1).has("idempotentAction"));
+    }
+
+    @Test
+    void itemReusedForDifferentPayloadGetsMismatchMarker() throws Exception {
+        String key = UUID.randomUUID().toString();
+        batch(item(key, 1));
+
+        JsonNode results = batch(item(key, 2));
+
+        assertEquals("MISMATCH", results.get(0).get("idempotencyStatus").asText());
+    }
+
+    @Test
+    void duplicateKeysInOneBatchAreRejected() throws Exception {
+        String key = UUID.randomUUID().toString();
+
+        mockMvc.perform(post("/example/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[" + item(key, 1) + "," + item(key, 2) + "]"))
+                .andExpect(status().isBadRequest());
+        assertTrue(store.find(key).isEmpty());
+    }
+
+    private JsonNode batch(String... items) throws Exception {
+        String content = mockMvc.perform(post("/example/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[" + String.join(",", items) + "]"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        return objectMapper.readTree(content);
+    }
+
+    private static String item(String key, int amount) {
+        return "{\"idempotencyKey\":\"" + key + "\",\"amount\":" + amount + "}";
+    }
+}
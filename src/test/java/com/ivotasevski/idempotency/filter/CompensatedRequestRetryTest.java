@@ -0,0 +1,98 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.cache.CachedResponse;
+import com.ivotasevski.idempotency.cache.ReplayCache;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.job.CompensationEngine;
+import com.ivotasevski.idempotency.job.CompensationPhase;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/*
+    Retries of requests whose original got stuck IN_PROGRESS and was compensated before it stored a response.
+ */
+@AutoConfigureMockMvc
+@SpringBootTest(properties = "idempotency.store.type=memory")
+class CompensatedRequestRetryTest {
+
+    // lease lapsed long enough ago for the STUCK_IN_PROGRESS phase
+    private static final Duration LAPSED = Duration.ofMinutes(-10);
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private IdempotencyStore store;
+
+    @Autowired
+    private CompensationEngine compensationEngine;
+
+    @Autowired
+    private ReplayCache replayCache;
+
+    @Test
+    void retryOfCompensatedRequestIsConflict() throws Exception {
+        String key = stuckAndCompensated();
+
+        mockMvc.perform(post("/example/2xx").header("X-Request-Id", key))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    void retryOfCompensatedBatchItemGetsStatusMarker() throws Exception {
+        String key = stuckAndCompensated();
+
+        mockMvc.perform(post("/example/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"idempotencyKey\":\"" + key + "\"}]"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].idempotencyKey").value(key))
+                .andExpect(jsonPath("$[0].idempotencyStatus").value(IdempotentRequestStatus.FAILURE.name()))
+                .andExpect(jsonPath("$[0].responseCode").doesNotExist());
+    }
+
+    @Test
+    void compensatedRecordIsNotReplayedFromCache() throws Exception {
+        String key = stuckAndCompensated(k -> replayCache.put(k, new CachedResponse(IdempotentRequestStatus.PENDING_COMPENSATION,
+                201, new byte[0], "{}".getBytes(), null, Instant.now().plus(Duration.ofDays(1)))));
+
+        assertTrue(replayCache.get(key).isEmpty());
+        mockMvc.perform(post("/example/2xx").header("X-Request-Id", key))
+                .andExpect(status().isConflict());
+    }
+
+    private String stuckAndCompensated() {
+        return stuckAndCompensated(key -> {
+        });
+    }
+
+    private String stuckAndCompensated(Consumer<String> beforeCompensation) {
+        String key = UUID.randomUUID().toString();
+        store.claim(key, Action.PAYMENT, null, Duration.ofDays(1), LAPSED, LAPSED);
+        beforeCompensation.accept(key);
+
+        compensationEngine.compensate(CompensationPhase.STUCK_IN_PROGRESS);
+
+        assertEquals(IdempotentRequestStatus.FAILURE, store.find(key).orElseThrow().status());
+        assertNull(store.find(key).orElseThrow().responseCode());
+        return key;
+    }
+}
@@ -0,0 +1,79 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.ivotasevski.idempotency.action.Action;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IdempotentEndpointIndexTest {
+
+    @Test
+    void resolvesLiteralPathsByMethod() {
+        var index = IdempotentEndpointIndex.<Action>builder()
+                .add("/example/2xx", Set.of(RequestMethod.POST), Action.PAYMENT)
+                .build();
+
+        assertEquals(Optional.of(Action.PAYMENT), index.resolve("POST", "/example/2xx"));
+        assertEquals(Optional.empty(), index.resolve("GET", "/example/2xx"));
+        assertEquals(Optional.empty(), index.resolve("POST", "/example/2xx/long"));
+    }
+
+    @Test
+    void resolvesPatternsAndAnyMethodMappings() {
+        var index = IdempotentEndpointIndex.<Action>builder()
+                .add("/payments/{id}/refund", Set.of(), Action.PAYMENT)
+                .build();
+
+        assertEquals(Optional.of(Action.PAYMENT), index.resolve("PUT", "/payments/42/refund"));
+        assertEquals(Optional.empty(), index.resolve("PUT", "/payments/42"));
+        assertEquals(Optional.empty(), index.resolve("FOO", "/payments/42/refund"));
+    }
+
+    @Test
+    void prefersLiteralOverPatternAndPatternOnlyForUnmappedMethods() {
+        var index = IdempotentEndpointIndex.<Action>builder()
+                .add("/payments/**", Set.of(), Action.PAYMENT)
+                .add("/payments/batch", Set.of(RequestMethod.POST), Action.PAYMENT)
+                .build();
+
+        assertEquals(Optional.of(Action.PAYMENT), index.resolve("POST", "/payments/batch"));
+        assertEquals(Optional.of(Action.PAYMENT), index.resolve("DELETE", "/payments/batch"));
+        assertEquals(Optional.empty(), index.resolve("POST", "/orders/batch"));
+    }
+
+    @Test
+    void resolvesMostSpecificPatternAcrossTrieNodes() {
+        IdempotentEndpoint catchAll = endpoint(Duration.ofDays(1));
+        IdempotentEndpoint variable = endpoint(Duration.ofDays(2));
+        var index = IdempotentEndpointIndex.<IdempotentEndpoint>builder()
+                .add("/a/**", Set.of(RequestMethod.POST), catchAll)
+                .add("/{x}/b", Set.of(RequestMethod.POST), variable)
+                .build();
+
+        assertEquals(Duration.ofDays(2), index.resolve("POST", "/a/b").orElseThrow().retention());
+        assertEquals(Duration.ofDays(1), index.resolve("POST", "/a/c").orElseThrow().retention());
+        assertEquals(Duration.ofDays(2), index.resolve("POST", "/z/b").orElseThrow().retention());
+    }
+
+    @Test
+    void keepsResolvingAfterCacheIsFull() {
+        var index = IdempotentEndpointIndex.<Action>builder()
+                .resolvedPathCacheSize(2)
+                .add("/payments/{id}", Set.of(RequestMethod.POST), Action.PAYMENT)
+                .build();
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Optional.of(Action.PAYMENT), index.resolve("POST", "/payments/" + i));
+        }
+    }
+
+    private static IdempotentEndpoint endpoint(Duration retention) {
+        return new IdempotentEndpoint(Action.PAYMENT, retention, Duration.ofSeconds(15), 0, null, Map.of());
+    }
+}
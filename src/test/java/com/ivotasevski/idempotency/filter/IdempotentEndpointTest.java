@@ -0,0 +1,98 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.action.IdempotentAction;
+import com.ivotasevski.idempotency.action.IdempotentAction.StatusMapping;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IdempotentEndpointTest {
+
+    private final IdempotencyProperties properties = new IdempotencyProperties();
+
+    @Test
+    void defaultsToGlobalPolicy() throws NoSuchMethodException {
+        IdempotentEndpoint endpoint = endpoint("defaults");
+
+        assertEquals(properties.getPolicy().getRetention(), endpoint.retention());
+        assertEquals(properties.getLease().getDuration(), endpoint.lockLease());
+        assertEquals(properties.getCapture().getMaxStoredBodySize().toBytes(), endpoint.maxStoredBodySize());
+        assertTrue(endpoint.storesHeader("X-Anything"));
+        assertEquals(IdempotentRequestStatus.PENDING_COMPENSATION, endpoint.status(409));
+    }
+
+    @Test
+    void resolvesEndpointPolicy() throws NoSuchMethodException {
+        IdempotentEndpoint endpoint = endpoint("statusOnly");
+
+        assertEquals(Duration.ofDays(1), endpoint.retention());
+        assertEquals(Duration.ofSeconds(30), endpoint.lockLease());
+        assertEquals(0, endpoint.maxStoredBodySize());
+        assertTrue(endpoint.storesHeader("content-type"));
+        assertFalse(endpoint.storesHeader("X-Trace"));
+        assertEquals(IdempotentRequestStatus.SUCCESS, endpoint.status(409));
+        assertEquals(IdempotentRequestStatus.UNDEFINED, endpoint.status(503));
+    }
+
+    @Test
+    void rejectsRetentionBeyondPartitionLookahead() {
+        properties.getPartitions().setLookaheadDays(7);
+
+        assertThrows(IllegalStateException.class, () -> endpoint("longRetention"));
+    }
+
+    @Test
+    void rejectsLeaseNotLongerThanRenewInterval() {
+        assertThrows(IllegalStateException.class, () -> endpoint("zeroLease"));
+        assertThrows(IllegalStateException.class, () -> endpoint("shortLease"));
+    }
+
+    @Test
+    void rejectsMappingToClaimStatuses() {
+        assertThrows(IllegalStateException.class, () -> endpoint("mappedInProgress"));
+        assertThrows(IllegalStateException.class, () -> endpoint("mappedInCompensation"));
+    }
+
+    private IdempotentEndpoint endpoint(String method) throws NoSuchMethodException {
+        IdempotentAction annotation = Endpoints.class.getDeclaredMethod(method).getAnnotation(IdempotentAction.class);
+        return IdempotentEndpoint.of(annotation, properties);
+    }
+
+    static class Endpoints {
+
+        @IdempotentAction(action = Action.PAYMENT)
+        void defaults() {
+        }
+
+        @IdempotentAction(action = Action.PAYMENT, retention = "1d", lockLease = "30s", storeBody = false,
+                storedHeaders = "Content-Type", statusMapping = @StatusMapping(codes = 409, status = IdempotentRequestStatus.SUCCESS))
+        void statusOnly() {
+        }
+
+        @IdempotentAction(action = Action.PAYMENT, retention = "10d")
+        void longRetention() {
+        }
+
+        @IdempotentAction(action = Action.PAYMENT, lockLease = "0s")
+        void zeroLease() {
+        }
+
+        @IdempotentAction(action = Action.PAYMENT, lockLease = "2s")
+        void shortLease() {
+        }
+
+        @IdempotentAction(action = Action.PAYMENT, statusMapping = @StatusMapping(codes = 202, status = IdempotentRequestStatus.IN_PROGRESS))
+        void mappedInProgress() {
+        }
+
+        @IdempotentAction(action = Action.PAYMENT,
+                statusMapping = @StatusMapping(codes = 202, status = IdempotentRequestStatus.IN_COMPENSATION))
+        void mappedInCompensation() {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ivotasevski.idempotency.filter;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/*
+    Keys reused for a different payload are rejected with 422, whether the original is replayed or still claimed.
+ */
+@AutoConfigureMockMvc
+@SpringBootTest(properties = "idempotency.store.type=memory")
+class PayloadMismatchTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private IdempotencyStore store;
+
+    @Test
+    void retryWithSamePayloadIsReplayedAndDifferentBodyIsRejected() throws Exception {
+        String key = UUID.randomUUID().toString();
+
+        mockMvc.perform(json(key, "{\"amount\":10}")).andExpect(status().isOk());
+        mockMvc.perform(json(key, "{\"amount\":10}")).andExpect(status().isOk());
+        mockMvc.perform(json(key, "{\"amount\":11}")).andExpect(status().isUnprocessableEntity());
+    }
+
+    @Test
+    void formPostWithDifferentParametersIsRejected() throws Exception {
+        String key = UUID.randomUUID().toString();
+
+        mockMvc.perform(form(key).param("amount", "10").param("currency", "EUR")).andExpect(status().isOk());
+        mockMvc.perform(form(key).param("currency", "EUR").param("amount", "10")).andExpect(status().isOk());
+        mockMvc.perform(form(key).param("amount", "11").param("currency", "EUR")).andExpect(status().isUnprocessableEntity());
+    }
+
+    @Test
+    void mismatchDoesNotTakeOverLapsedLease() throws Exception {
+        String key = UUID.randomUUID().toString();
+        Duration lapsed = Duration.ofSeconds(-1);
+        store.claim(key, Action.PAYMENT, "sha256:00", Duration.ofDays(1), lapsed, lapsed);
+
+        mockMvc.perform(json(key, "{\"amount\":10}")).andExpect(status().isUnprocessableEntity());
+
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, store.find(key).orElseThrow().status());
+        assertEquals("sha256:00", store.find(key).orElseThrow().requestHash());
+    }
+
+    private static MockHttpServletRequestBuilder json(String key, String body) {
+        return post("/example/2xx").header("X-Request-Id", key)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body);
+    }
+
+    private static MockHttpServletRequestBuilder form(String key) {
+        return post("/example/2xx").header("X-Request-Id", key)
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED);
+    }
+}
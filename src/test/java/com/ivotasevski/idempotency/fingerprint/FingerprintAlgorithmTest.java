@@ -0,0 +1,48 @@
+package com.ivotasevski.idempotency.fingerprint;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FingerprintAlgorithmTest {
+
+    @Test
+    void samePayloadHashesTheSame() {
+        for (FingerprintAlgorithm algorithm : FingerprintAlgorithm.values()) {
+            assertEquals(hash(algorithm, "{\"amount\":10}"), hash(algorithm, "{\"amount\":10}"));
+            assertNotEquals(hash(algorithm, "{\"amount\":10}"), hash(algorithm, "{\"amount\":11}"));
+        }
+    }
+
+    @Test
+    void differentPayloadWithSameAlgorithmIsMismatch() {
+        assertTrue(FingerprintAlgorithm.isMismatch(hash(FingerprintAlgorithm.SHA_256, "a"), hash(FingerprintAlgorithm.SHA_256, "b")));
+        assertTrue(FingerprintAlgorithm.isMismatch(hash(FingerprintAlgorithm.CRC32C, "a"), hash(FingerprintAlgorithm.CRC32C, "b")));
+        assertFalse(FingerprintAlgorithm.isMismatch(hash(FingerprintAlgorithm.SHA_256, "a"), hash(FingerprintAlgorithm.SHA_256, "a")));
+    }
+
+    @Test
+    void differentAlgorithmIsNotMismatch() {
+        assertFalse(FingerprintAlgorithm.isMismatch(hash(FingerprintAlgorithm.SHA_256, "a"), hash(FingerprintAlgorithm.CRC32C, "b")));
+        assertFalse(FingerprintAlgorithm.isMismatch(hash(FingerprintAlgorithm.CRC32C, "a"), hash(FingerprintAlgorithm.SHA_256, "b")));
+    }
+
+    @Test
+    void missingOrLegacyFingerprintIsNotMismatch() {
+        String computed = hash(FingerprintAlgorithm.SHA_256, "a");
+        assertFalse(FingerprintAlgorithm.isMismatch(null, computed));
+        assertFalse(FingerprintAlgorithm.isMismatch(computed, null));
+        // legacy hashes were stored without the algorithm prefix
+        assertFalse(FingerprintAlgorithm.isMismatch("0123456789abcdef", computed));
+        assertFalse(FingerprintAlgorithm.isMismatch(":0123", ":4567"));
+    }
+
+    private static String hash(FingerprintAlgorithm algorithm, String payload) {
+        FingerprintAlgorithm.Hasher hasher = algorithm.newHasher();
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        hasher.update(bytes, 0, bytes.length);
+        return hasher.finish();
+    }
+}
@@ -0,0 +1,78 @@
+package com.ivotasevski.idempotency.fingerprint;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FingerprintingRequestWrapperTest {
+
+    private static final FingerprintAlgorithm ALGORITHM = FingerprintAlgorithm.SHA_256;
+
+    @Test
+    void samePayloadHasSameFingerprint() throws IOException {
+        assertEquals(fingerprint(json("/payments", "{\"amount\":10}")), fingerprint(json("/payments", "{\"amount\":10}")));
+    }
+
+    @Test
+    void differentBodyIsMismatch() throws IOException {
+        String stored = fingerprint(json("/payments", "{\"amount\":10}"));
+        String computed = fingerprint(json("/payments", "{\"amount\":11}"));
+
+        assertNotEquals(stored, computed);
+        assertTrue(FingerprintAlgorithm.isMismatch(stored, computed));
+    }
+
+    @Test
+    void differentUriIsMismatch() throws IOException {
+        assertTrue(FingerprintAlgorithm.isMismatch(
+                fingerprint(json("/payments", "{}")), fingerprint(json("/refunds", "{}"))));
+    }
+
+    @Test
+    void bodyIsStillReadableAfterFingerprinting() throws IOException {
+        FingerprintingRequestWrapper wrapper = new FingerprintingRequestWrapper(json("/payments", "{\"amount\":10}"), ALGORITHM);
+
+        assertEquals("{\"amount\":10}", new String(wrapper.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+        assertEquals("{\"amount\":10}", wrapper.getReader().readLine());
+    }
+
+    @Test
+    void formPostIsFingerprintedOverItsParameters() throws IOException {
+        MockHttpServletRequest first = form();
+        first.addParameter("amount", "10");
+        first.addParameter("currency", "EUR");
+        MockHttpServletRequest reordered = form();
+        reordered.addParameter("currency", "EUR");
+        reordered.addParameter("amount", "10");
+        MockHttpServletRequest different = form();
+        different.addParameter("amount", "11");
+        different.addParameter("currency", "EUR");
+
+        assertEquals(fingerprint(first), fingerprint(reordered));
+        assertTrue(FingerprintAlgorithm.isMismatch(fingerprint(first), fingerprint(different)));
+        // the parameters are still there for the container to serve
+        assertEquals("10", new FingerprintingRequestWrapper(first, ALGORITHM).getParameter("amount"));
+    }
+
+    private static String fingerprint(MockHttpServletRequest request) throws IOException {
+        return new FingerprintingRequestWrapper(request, ALGORITHM).getFingerprint();
+    }
+
+    private static MockHttpServletRequest json(String uri, String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", uri);
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        request.setContent(body.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private static MockHttpServletRequest form() {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/payments");
+        request.setContentType(MediaType.APPLICATION_FORM_URLENCODED_VALUE);
+        return request;
+    }
+}
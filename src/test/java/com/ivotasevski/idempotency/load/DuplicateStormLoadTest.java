@@ -0,0 +1,286 @@
+package com.ivotasevski.idempotency.load;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+    Duplicate-storm load and correctness harness, run with ./gradlew loadTest (excluded from ./gradlew test).
+
+    Starts the application against an embedded Postgres binary and fires load.requests requests, at most
+    load.concurrency in flight, at the example endpoints. Each run draws its X-Request-Ids from a pool sized by the
+    duplicate ratio: 0.0 sends every key once, 0.9 sends each key ten times on average, in random order so duplicates
+    of a key race each other.
+
+    Reports throughput, p50/p99 latency, connection pool saturation and double executions to the log and to
+    build/reports/load. A double execution is an idempotent controller method invoked more than once for the same
+    key (counted server-side) or two different 2xx bodies replayed for the same key (seen client-side).
+ */
+@Slf4j
+@Tag("load")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+class DuplicateStormLoadTest {
+
+    private static final int REQUESTS = Integer.getInteger("load.requests", 5000);
+    private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 200);
+    private static final Path REPORT_DIR = Path.of(System.getProperty("load.reportDir", "build/reports/load"));
+
+    private static final EmbeddedPostgres POSTGRES = startPostgres();
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ExecutionCounter executionCounter;
+
+    @LocalServerPort
+    private int port;
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> POSTGRES.getJdbcUrl("postgres", "postgres"));
+        registry.add("spring.datasource.username", () -> "postgres");
+        registry.add("spring.datasource.password", () -> "postgres");
+    }
+
+    @AfterAll
+    static void stopPostgres() throws IOException {
+        POSTGRES.close();
+    }
+
+    @BeforeEach
+    void resetCounters() {
+        executionCounter.reset();
+    }
+
+    @ParameterizedTest(name = "{0} with duplicate ratio {1}")
+    @CsvSource({
+            "/example/2xx, 0.0",
+            "/example/2xx, 0.5",
+            "/example/2xx, 0.9",
+            "/example/2xx, 0.99",
+            "/example/4xx, 0.9",
+            "/example/5xx, 0.9",
+    })
+    void duplicateStorm(String endpoint, double duplicateRatio) throws Exception {
+        List<String> keys = keys(REQUESTS, duplicateRatio);
+        HikariPoolMXBean pool = dataSource.unwrap(HikariDataSource.class).getHikariPoolMXBean();
+
+        Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        Map<String, Set<String>> successBodies = new ConcurrentHashMap<>();
+        ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        AtomicInteger transportErrors = new AtomicInteger();
+        LongAccumulator maxActiveConnections = new LongAccumulator(Math::max, 0);
+        LongAccumulator maxPendingThreads = new LongAccumulator(Math::max, 0);
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            maxActiveConnections.accumulate(pool.getActiveConnections());
+            maxPendingThreads.accumulate(pool.getThreadsAwaitingConnection());
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        Semaphore inFlight = new Semaphore(CONCURRENCY);
+        long start = System.nanoTime();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient client = HttpClient.newBuilder().executor(executor).connectTimeout(Duration.ofSeconds(10)).build()) {
+            for (String key : keys) {
+                inFlight.acquire();
+                executor.submit(() -> {
+                    long sent = System.nanoTime();
+                    try {
+                        HttpResponse<String> response = client.send(request(endpoint, key), HttpResponse.BodyHandlers.ofString());
+                        latencies.add(System.nanoTime() - sent);
+                        statuses.computeIfAbsent(response.statusCode(), s -> new LongAdder()).increment();
+                        if (response.statusCode() == 200) {
+                            successBodies.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(response.body());
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        transportErrors.incrementAndGet();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            inFlight.acquire(CONCURRENCY);
+        } finally {
+            sampler.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long replayedDifferently = successBodies.values().stream().filter(bodies -> bodies.size() > 1).count();
+        long executedTwice = executionCounter.executedMoreThanOnce();
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+
+        Map<String, Object> report = new TreeMap<>();
+        report.put("endpoint", endpoint);
+        report.put("duplicateRatio", duplicateRatio);
+        report.put("requests", keys.size());
+        report.put("distinctKeys", Set.copyOf(keys).size());
+        report.put("concurrency", CONCURRENCY);
+        report.put("throughputPerSecond", Math.round(keys.size() / (elapsed / 1e9)));
+        report.put("p50Millis", percentileMillis(sorted, 0.50));
+        report.put("p99Millis", percentileMillis(sorted, 0.99));
+        report.put("maxMillis", percentileMillis(sorted, 1.0));
+        report.put("statuses", new TreeMap<>(statuses));
+        report.put("transportErrors", transportErrors.get());
+        report.put("poolSize", pool.getTotalConnections());
+        report.put("maxActiveConnections", maxActiveConnections.get());
+        report.put("maxThreadsAwaitingConnection", maxPendingThreads.get());
+        report.put("controllerExecutions", executionCounter.total());
+        report.put("doubleExecutions", executedTwice);
+        report.put("divergentReplays", replayedDifferently);
+        writeReport(endpoint, duplicateRatio, report);
+
+        assertThat(transportErrors).hasValue(0);
+        assertThat(replayedDifferently).as("keys replayed with different 2xx bodies").isZero();
+        if (!endpoint.endsWith("5xx")) {
+            // 5xx leaves the record UNDEFINED, a retry of the same key may legitimately take it over and execute again
+            assertThat(executedTwice).as("keys executed more than once").isZero();
+        }
+    }
+
+    private HttpRequest request(String endpoint, String key) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + port + endpoint))
+                .header("X-Request-Id", key)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"amount\":100}"))
+                .build();
+    }
+
+    // the first distinct-key requests get their own key, the rest duplicate a random one of them, shuffled
+    private static List<String> keys(int requests, double duplicateRatio) {
+        int distinct = Math.max(1, (int) Math.round(requests * (1 - duplicateRatio)));
+        Random random = new Random(requests * 31L + distinct);
+        List<String> pool = new ArrayList<>(distinct);
+        for (int i = 0; i < distinct; i++) {
+            pool.add(UUID.randomUUID().toString());
+        }
+        List<String> keys = new ArrayList<>(pool);
+        while (keys.size() < requests) {
+            keys.add(pool.get(random.nextInt(distinct)));
+        }
+        Collections.shuffle(keys, random);
+        return keys;
+    }
+
+    private static double percentileMillis(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    private static void writeReport(String endpoint, double duplicateRatio, Map<String, Object> report) throws IOException {
+        log.info("Duplicate storm report: {}", report);
+        Files.createDirectories(REPORT_DIR);
+        String name = endpoint.replaceAll("[^A-Za-z0-9]+", "_").replaceAll("^_", "") + "_" + duplicateRatio + ".txt";
+        StringBuilder lines = new StringBuilder();
+        report.forEach((key, value) -> lines.append(key).append('=').append(value).append('\n'));
+        Files.writeString(REPORT_DIR.resolve(name), lines);
+    }
+
+    private static EmbeddedPostgres startPostgres() {
+        try {
+            return EmbeddedPostgres.builder().start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot start embedded Postgres", e);
+        }
+    }
+
+    /*
+        Counts controller invocations per X-Request-Id, the idempotency filter runs before the interceptor,
+        so replays and rejected duplicates are not counted.
+     */
+    static class ExecutionCounter implements HandlerInterceptor {
+
+        private final Map<String, AtomicInteger> executions = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+            String key = request.getHeader("X-Request-Id");
+            if (key != null) {
+                executions.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            }
+            return true;
+        }
+
+        long executedMoreThanOnce() {
+            return executions.values().stream().filter(count -> count.get() > 1).count();
+        }
+
+        long total() {
+            return executions.values().stream().mapToLong(AtomicInteger::get).sum();
+        }
+
+        void reset() {
+            executions.clear();
+        }
+    }
+
+    @TestConfiguration
+    static class LoadTestConfig implements WebMvcConfigurer {
+
+        private final ExecutionCounter executionCounter = new ExecutionCounter();
+
+        @Bean
+        ExecutionCounter executionCounter() {
+            return executionCounter;
+        }
+
+        @Override
+        public void addInterceptors(InterceptorRegistry registry) {
+            registry.addInterceptor(executionCounter).addPathPatterns("/example/**");
+        }
+    }
+}
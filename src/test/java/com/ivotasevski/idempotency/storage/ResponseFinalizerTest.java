@@ -0,0 +1,175 @@
+package com.ivotasevski.idempotency.storage;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.config.IdempotencyProperties;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.lease.LeaseRenewer;
+import com.ivotasevski.idempotency.store.ClaimResult;
+import com.ivotasevski.idempotency.store.FinishedRequest;
+import com.ivotasevski.idempotency.store.IdempotencyStore;
+import com.ivotasevski.idempotency.store.InMemoryIdempotencyStore;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    ASYNC finalization: failed batch writes are requeued, and responses that keep failing are stored one by one.
+ */
+@SpringBootTest(properties = {
+        "idempotency.store.type=memory",
+        "idempotency.finalization.mode=async",
+        "idempotency.finalization.flush-retry-backoff=10ms"})
+class ResponseFinalizerTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Autowired
+    private ResponseFinalizer responseFinalizer;
+
+    @Autowired
+    private FailingStore store;
+
+    @Autowired
+    private LeaseRenewer leaseRenewer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void failedBatchIsRequeuedAndWrittenAgain() {
+        store.failingBatches.set(1);
+        int batchesBefore = store.batches.get();
+        FinalizedResponse first = submit();
+        FinalizedResponse second = submit();
+
+        awaitUntil(() -> isStored(first) && isStored(second));
+
+        // one failed batch write and at least one retried batch write, no per-record fallback
+        assertTrue(store.batches.get() - batchesBefore >= 2);
+        assertFalse(store.finished.contains(first.xRequestId()));
+        assertFalse(store.finished.contains(second.xRequestId()));
+        awaitUntil(() -> activeLeases() == 0);
+    }
+
+    @Test
+    void recordThatKeepsFailingIsStoredOnItsOwnWithoutBlockingTheRest() {
+        FinalizedResponse poisoned = submit(UUID.randomUUID().toString(), true);
+        FinalizedResponse healthy = submit();
+
+        awaitUntil(() -> isStored(healthy) && store.finished.contains(poisoned.xRequestId())
+                && responseFinalizer.findPending(poisoned.xRequestId()).isEmpty());
+
+        // given up on after the per-record store failed: no longer answered locally, lease released
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, store.find(poisoned.xRequestId()).orElseThrow().status());
+        awaitUntil(() -> activeLeases() == 0);
+    }
+
+    private FinalizedResponse submit() {
+        return submit(UUID.randomUUID().toString(), false);
+    }
+
+    private FinalizedResponse submit(String key, boolean poisoned) {
+        ClaimResult claim = store.claim(key, Action.PAYMENT, null, Duration.ofDays(1), Duration.ofMinutes(1), Duration.ofMinutes(1));
+        leaseRenewer.acquire(key, claim.leaseId());
+        if (poisoned) {
+            store.poisoned.add(key);
+        }
+        FinalizedResponse response = new FinalizedResponse(key, 201, "{}".getBytes(), Map.of(), null,
+                IdempotentRequestStatus.SUCCESS, Action.PAYMENT, claim.leaseId());
+        responseFinalizer.submit(response);
+        return response;
+    }
+
+    private boolean isStored(FinalizedResponse response) {
+        return store.find(response.xRequestId())
+                .map(r -> r.status() == IdempotentRequestStatus.SUCCESS)
+                .orElse(false);
+    }
+
+    private double activeLeases() {
+        return meterRegistry.get("idempotency.lease.active").gauge().value();
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) {
+        Instant deadline = Instant.now().plus(TIMEOUT);
+        while (!condition.getAsBoolean()) {
+            assertTrue(Instant.now().isBefore(deadline), "condition not met within " + TIMEOUT);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(e);
+            }
+        }
+    }
+
+    @TestConfiguration
+    static class FailingStoreConfig {
+
+        @Bean
+        @Primary
+        FailingStore failingStore(IdempotencyProperties properties) {
+            return new FailingStore(properties);
+        }
+    }
+
+    /*
+        Fails the next failingBatches batch writes, and every write (batch or single) of a poisoned record.
+     */
+    static class FailingStore extends InMemoryIdempotencyStore {
+
+        private final AtomicInteger failingBatches = new AtomicInteger();
+        private final AtomicInteger batches = new AtomicInteger();
+        private final Set<String> poisoned = ConcurrentHashMap.newKeySet();
+        // keys written one by one (the in-memory finishAll writes through finish too)
+        private final Set<String> finished = ConcurrentHashMap.newKeySet();
+        private final ThreadLocal<Boolean> inBatch = ThreadLocal.withInitial(() -> false);
+
+        FailingStore(IdempotencyProperties properties) {
+            super(properties);
+        }
+
+        @Override
+        public Optional<Instant> finish(FinishedRequest request) {
+            if (!inBatch.get()) {
+                finished.add(request.xRequestId());
+            }
+            if (poisoned.contains(request.xRequestId())) {
+                throw new IllegalStateException("poisoned record " + request.xRequestId());
+            }
+            return super.finish(request);
+        }
+
+        @Override
+        public int finishAll(List<FinishedRequest> requests) {
+            batches.incrementAndGet();
+            if (failingBatches.getAndUpdate(n -> Math.max(n - 1, 0)) > 0
+                    || requests.stream().anyMatch(r -> poisoned.contains(r.xRequestId()))) {
+                throw new IllegalStateException("batch write failed");
+            }
+            inBatch.set(true);
+            try {
+                return super.finishAll(requests);
+            } finally {
+                inBatch.set(false);
+            }
+        }
+    }
+}
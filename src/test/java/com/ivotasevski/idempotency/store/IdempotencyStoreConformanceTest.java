@@ -0,0 +1,334 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import com.ivotasevski.idempotency.storage.EncodedResponse;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    Behaviour every IdempotencyStore backend must share, run against each backend by its subclass.
+    Subclasses share the record fixtures and the extra embedded Postgres databases (shards, replica) below.
+ */
+abstract class IdempotencyStoreConformanceTest {
+
+    protected static final Duration EXPIRATION = Duration.ofDays(1);
+    protected static final Duration LOCK = Duration.ofMinutes(5);
+    private static final Duration EXPIRED = Duration.ofSeconds(-1);
+    private static final String HASH = "sha256:aa";
+
+    protected abstract IdempotencyStore store();
+
+    @Test
+    void claimCreatesNewRecord() {
+        String key = newKey();
+
+        ClaimResult claim = claim(key, HASH, LOCK);
+
+        assertEquals(ClaimOutcome.CREATED, claim.outcome());
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, claim.status());
+        assertEquals(HASH, claim.requestHash());
+        StoredRequest stored = store().find(key).orElseThrow();
+        assertEquals(Action.PAYMENT, stored.action());
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, stored.status());
+        assertTrue(stored.expiredAt().isAfter(Instant.now()));
+    }
+
+    @Test
+    void claimOfLockedRecordReturnsExisting() {
+        String key = newKey();
+        claim(key, HASH, LOCK);
+
+        ClaimResult claim = claim(key, HASH, LOCK);
+
+        assertEquals(ClaimOutcome.EXISTING, claim.outcome());
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, claim.status());
+    }
+
+    @Test
+    void claimTakesOverRecordWithExpiredLock() {
+        String key = newKey();
+        claim(key, HASH, EXPIRED);
+
+        assertEquals(ClaimOutcome.TAKEN_OVER, claim(key, HASH, LOCK).outcome());
+        assertEquals(ClaimOutcome.EXISTING, claim(key, HASH, LOCK).outcome());
+    }
+
+    @Test
+    void claimTakesOverUndefinedRecordWithSameFingerprintOnly() {
+        String key = newKey();
+        ClaimResult claim = claim(key, HASH, LOCK);
+        store().finish(finished(key, claim, 500, IdempotentRequestStatus.UNDEFINED));
+
+        ClaimResult mismatch = claim(key, "sha256:bb", LOCK);
+        assertEquals(ClaimOutcome.EXISTING, mismatch.outcome());
+        assertEquals(IdempotentRequestStatus.UNDEFINED, mismatch.status());
+        assertEquals(HASH, mismatch.requestHash());
+
+        ClaimResult takeover = claim(key, HASH, LOCK);
+        assertEquals(ClaimOutcome.TAKEN_OVER, takeover.outcome());
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, takeover.status());
+    }
+
+    @Test
+    void mismatchDoesNotTakeOverLapsedLease() {
+        String key = newKey();
+        ClaimResult claim = claim(key, HASH, EXPIRED);
+
+        ClaimResult mismatch = claim(key, "sha256:bb", LOCK);
+        assertEquals(ClaimOutcome.EXISTING, mismatch.outcome());
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, mismatch.status());
+        assertEquals(HASH, mismatch.requestHash());
+        assertNull(mismatch.leaseId());
+
+        // the original lease is still the one the record is finished under
+        assertTrue(store().finish(finished(key, claim, 201, IdempotentRequestStatus.SUCCESS)).isPresent());
+    }
+
+    @Test
+    void renewedLeaseIsNotTakenOver() {
+        String key = newKey();
+        ClaimResult claim = claim(key, HASH, EXPIRED);
+
+        assertEquals(Set.of(key), store().renewLeases(Map.of(key, claim.leaseId()), LOCK));
+
+        assertEquals(ClaimOutcome.EXISTING, claim(key, HASH, LOCK).outcome());
+    }
+
+    @Test
+    void leaseTakenOverOrFinishedIsNotRenewed() {
+        String takenOver = newKey();
+        ClaimResult lapsed = claim(takenOver, HASH, EXPIRED);
+        ClaimResult takeover = claim(takenOver, HASH, LOCK);
+        String finished = newKey();
+        ClaimResult done = claim(finished, HASH, LOCK);
+        store().finish(finished(finished, done, 200, IdempotentRequestStatus.SUCCESS));
+
+        assertNotEquals(lapsed.leaseId(), takeover.leaseId());
+        assertNull(claim(takenOver, HASH, LOCK).leaseId());
+        assertEquals(Set.of(), store().renewLeases(Map.of(takenOver, lapsed.leaseId(), finished, done.leaseId()), LOCK));
+    }
+
+    @Test
+    void finishedResponseIsStoredAndNotTakenOver() {
+        String key = newKey();
+        ClaimResult claimed = claim(key, HASH, LOCK);
+
+        assertTrue(store().finish(finished(key, claimed, 201, IdempotentRequestStatus.SUCCESS)).isPresent());
+
+        StoredRequest stored = store().find(key).orElseThrow();
+        assertEquals(IdempotentRequestStatus.SUCCESS, stored.status());
+        assertEquals(201, stored.responseCode());
+        assertArrayEquals(body(key), stored.response().responseBody());
+        assertEquals(Map.of("Content-Type", List.of("application/json")), stored.response().responseHeaders());
+        assertEquals(HASH, stored.requestHash());
+
+        ClaimResult claim = claim(key, HASH, LOCK);
+        assertEquals(ClaimOutcome.EXISTING, claim.outcome());
+        assertEquals(IdempotentRequestStatus.SUCCESS, claim.status());
+    }
+
+    @Test
+    void finishAllStoresEveryResponse() {
+        String first = newKey();
+        String second = newKey();
+        ClaimResult firstClaim = claim(first, HASH, LOCK);
+        ClaimResult secondClaim = claim(second, HASH, LOCK);
+
+        assertEquals(2, store().finishAll(List.of(
+                finished(first, firstClaim, 200, IdempotentRequestStatus.SUCCESS),
+                finished(second, secondClaim, 409, IdempotentRequestStatus.PENDING_COMPENSATION))));
+
+        assertEquals(IdempotentRequestStatus.SUCCESS, store().find(first).orElseThrow().status());
+        assertEquals(IdempotentRequestStatus.PENDING_COMPENSATION, store().find(second).orElseThrow().status());
+    }
+
+    @Test
+    void finishOfTakenOverClaimIsRejected() {
+        String key = newKey();
+        String batchKey = newKey();
+        ClaimResult lapsed = claim(key, HASH, EXPIRED);
+        ClaimResult lapsedBatch = claim(batchKey, HASH, EXPIRED);
+        ClaimResult takeover = claim(key, HASH, LOCK);
+        claim(batchKey, HASH, LOCK);
+
+        // late responses of the lapsed claims
+        assertTrue(store().finish(finished(key, lapsed, 500, IdempotentRequestStatus.UNDEFINED)).isEmpty());
+        assertEquals(0, store().finishAll(List.of(finished(batchKey, lapsedBatch, 500, IdempotentRequestStatus.UNDEFINED))));
+
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, store().find(key).orElseThrow().status());
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, store().find(batchKey).orElseThrow().status());
+        assertTrue(store().finish(finished(key, takeover, 201, IdempotentRequestStatus.SUCCESS)).isPresent());
+        assertEquals(201, store().find(key).orElseThrow().responseCode());
+    }
+
+    @Test
+    void expiredRecordIsAbsent() {
+        String key = newKey();
+        ClaimResult expired = store().claim(key, Action.PAYMENT, HASH, EXPIRED, LOCK, LOCK);
+
+        assertTrue(store().find(key).isEmpty());
+        assertTrue(store().finish(finished(key, expired, 200, IdempotentRequestStatus.SUCCESS)).isEmpty());
+        assertEquals(ClaimOutcome.CREATED, claim(key, HASH, LOCK).outcome());
+    }
+
+    @Test
+    void compensationClaimsFinishesAndSkipsLateResponses() {
+        String key = newKey();
+        ClaimResult original = claim(key, HASH, EXPIRED);
+
+        List<CompensationCandidate> claimed = store().claimForCompensation(IdempotentRequestStatus.IN_PROGRESS, Duration.ZERO, Integer.MAX_VALUE);
+
+        CompensationCandidate candidate = claimed.stream().filter(c -> c.xRequestId().equals(key)).findFirst().orElseThrow();
+        assertEquals(Action.PAYMENT.name(), candidate.action());
+        assertEquals(IdempotentRequestStatus.IN_COMPENSATION, store().find(key).orElseThrow().status());
+        assertEquals(ClaimOutcome.EXISTING, claim(key, HASH, LOCK).outcome());
+        // late response of the original request
+        assertTrue(store().finish(finished(key, original, 200, IdempotentRequestStatus.SUCCESS)).isEmpty());
+
+        store().finishCompensation(Map.of(key, IdempotentRequestStatus.FAILURE));
+
+        assertEquals(IdempotentRequestStatus.FAILURE, store().find(key).orElseThrow().status());
+        assertTrue(store().claimForCompensation(IdempotentRequestStatus.IN_PROGRESS, Duration.ZERO, Integer.MAX_VALUE).stream()
+                .noneMatch(c -> c.xRequestId().equals(key)));
+    }
+
+    @Test
+    void lateResponseAfterCompensationIsRejected() {
+        String key = newKey();
+        ClaimResult original = claim(key, HASH, EXPIRED);
+        store().claimForCompensation(IdempotentRequestStatus.IN_PROGRESS, Duration.ZERO, Integer.MAX_VALUE);
+        // handler failed, retried later under the same trx_id
+        store().finishCompensation(Map.of(key, IdempotentRequestStatus.PENDING_COMPENSATION));
+
+        assertTrue(store().finish(finished(key, original, 200, IdempotentRequestStatus.SUCCESS)).isEmpty());
+        assertEquals(0, store().finishAll(List.of(finished(key, original, 200, IdempotentRequestStatus.SUCCESS))));
+
+        StoredRequest stored = store().find(key).orElseThrow();
+        assertEquals(IdempotentRequestStatus.PENDING_COMPENSATION, stored.status());
+        assertNull(stored.responseCode());
+    }
+
+    @Test
+    void stuckCompensationIsReset() {
+        String key = newKey();
+        ClaimResult claim = claim(key, HASH, LOCK);
+        store().finish(finished(key, claim, 500, IdempotentRequestStatus.UNDEFINED));
+        store().claimForCompensation(IdempotentRequestStatus.UNDEFINED, EXPIRED, Integer.MAX_VALUE);
+        assertEquals(IdempotentRequestStatus.IN_COMPENSATION, store().find(key).orElseThrow().status());
+
+        assertTrue(store().resetStuckInCompensation(EXPIRED, Integer.MAX_VALUE) > 0);
+
+        assertEquals(IdempotentRequestStatus.PENDING_COMPENSATION, store().find(key).orElseThrow().status());
+    }
+
+    @Test
+    void claimAllClaimsEachKeyAndFindAllReadsThem() {
+        String finished = newKey();
+        String running = newKey();
+        String created = newKey();
+        ClaimResult claim = claim(finished, HASH, LOCK);
+        store().finish(finished(finished, claim, 200, IdempotentRequestStatus.SUCCESS));
+        claim(running, HASH, LOCK);
+        Map<String, String> hashes = new LinkedHashMap<>();
+        hashes.put(finished, HASH);
+        hashes.put(running, HASH);
+        hashes.put(created, HASH);
+
+        Map<String, ClaimResult> claims = store().claimAll(hashes, Action.PAYMENT, EXPIRATION, LOCK, LOCK);
+
+        assertEquals(ClaimOutcome.EXISTING, claims.get(finished).outcome());
+        assertEquals(IdempotentRequestStatus.SUCCESS, claims.get(finished).status());
+        assertEquals(ClaimOutcome.EXISTING, claims.get(running).outcome());
+        assertEquals(IdempotentRequestStatus.IN_PROGRESS, claims.get(running).status());
+        assertEquals(ClaimOutcome.CREATED, claims.get(created).outcome());
+        assertNotNull(claims.get(created).leaseId());
+        assertEquals(Set.of(finished, running, created), store().findAll(List.of(finished, running, created, newKey())).stream()
+                .map(StoredRequest::xRequestId)
+                .collect(Collectors.toSet()));
+    }
+
+    @Test
+    void concurrentClaimsCreateOnce() throws Exception {
+        String key = newKey();
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<ClaimResult>> claims = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                claims.add(executor.submit(() -> {
+                    start.await();
+                    return claim(key, HASH, LOCK);
+                }));
+            }
+            start.countDown();
+
+            int created = 0;
+            for (Future<ClaimResult> claim : claims) {
+                ClaimResult result = claim.get();
+                if (result.outcome() == ClaimOutcome.CREATED) {
+                    created++;
+                } else {
+                    assertEquals(ClaimOutcome.EXISTING, result.outcome());
+                }
+            }
+            assertEquals(1, created);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ClaimResult claim(String key, String hash, Duration lock) {
+        return store().claim(key, Action.PAYMENT, hash, EXPIRATION, lock, lock);
+    }
+
+    protected static FinishedRequest finished(String key, ClaimResult claim, int code, IdempotentRequestStatus status) {
+        EncodedResponse response = new EncodedResponse(null, body(key), Map.of("Content-Type", List.of("application/json")), null, null);
+        return new FinishedRequest(key, code, response, null, status, Action.PAYMENT, claim.leaseId());
+    }
+
+    private static byte[] body(String key) {
+        return ("{\"key\":\"" + key + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String newKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    protected static EmbeddedPostgres startPostgres() {
+        try {
+            return EmbeddedPostgres.builder().start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot start embedded Postgres", e);
+        }
+    }
+
+    // for databases no store migrates, e.g. a stand-in replica
+    protected static EmbeddedPostgres startMigratedPostgres() {
+        EmbeddedPostgres postgres = startPostgres();
+        Flyway.configure().dataSource(postgres.getPostgresDatabase()).locations("classpath:db/migration").load().migrate();
+        return postgres;
+    }
+}
@@ -0,0 +1,29 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.action.Action;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryIdempotencyStoreTest extends IdempotencyStoreConformanceTest {
+
+    private final InMemoryIdempotencyStore store = new InMemoryIdempotencyStore(16, Clock.systemUTC());
+
+    @Override
+    protected IdempotencyStore store() {
+        return store;
+    }
+
+    @Test
+    void expiredRecordsAreEvictedWithoutBeingVisited() {
+        store.claim("expired", Action.PAYMENT, null, Duration.ofSeconds(-1), LOCK, LOCK);
+        store.claim("live", Action.PAYMENT, null, EXPIRATION, LOCK, LOCK);
+
+        assertEquals(1, store.evictExpired());
+        assertEquals(0, store.evictExpired());
+        assertTrue(store.find("live").isPresent());
+    }
+}
@@ -0,0 +1,16 @@
+package com.ivotasevski.idempotency.store;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(properties = "idempotency.store.type=jdbc")
+class JdbcIdempotencyStoreTest extends IdempotencyStoreConformanceTest {
+
+    @Autowired
+    private IdempotencyStore store;
+
+    @Override
+    protected IdempotencyStore store() {
+        return store;
+    }
+}
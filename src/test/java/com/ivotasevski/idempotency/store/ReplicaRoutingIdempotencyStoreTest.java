@@ -0,0 +1,94 @@
+package com.ivotasevski.idempotency.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    JDBC store with a replica: a second local (embedded) Postgres that does not replicate the primary, so every key
+    written through the store is a key the replica lags behind on. Records written to the replica directly stand
+    for replicated ones.
+ */
+@SpringBootTest(properties = "idempotency.store.type=jdbc")
+class ReplicaRoutingIdempotencyStoreTest extends IdempotencyStoreConformanceTest {
+
+    private static final EmbeddedPostgres REPLICA = startMigratedPostgres();
+
+    @Autowired
+    private IdempotencyStore store;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @DynamicPropertySource
+    static void replica(DynamicPropertyRegistry registry) {
+        registry.add("idempotency.store.replica.url", () -> REPLICA.getJdbcUrl("postgres", "postgres"));
+        registry.add("idempotency.store.replica.username", () -> "postgres");
+        registry.add("idempotency.store.replica.password", () -> "postgres");
+    }
+
+    @Override
+    protected IdempotencyStore store() {
+        return store;
+    }
+
+    @Test
+    void finishedRecordIsReadFromReplica() {
+        String key = UUID.randomUUID().toString();
+        IdempotencyStore replica = replicaStore();
+        ClaimResult claim = replica.claim(key, Action.PAYMENT, null, EXPIRATION, LOCK, LOCK);
+        replica.finish(finished(key, claim, 201, IdempotentRequestStatus.SUCCESS));
+
+        assertInstanceOf(ReplicaRoutingIdempotencyStore.class, store);
+        assertEquals(201, store.find(key).orElseThrow().responseCode());
+        assertEquals(List.of(key), store.findAll(List.of(key)).stream().map(StoredRequest::xRequestId).toList());
+    }
+
+    @Test
+    void unfinishedOnReplicaFallsBackToPrimary() {
+        String key = UUID.randomUUID().toString();
+        replicaStore().claim(key, Action.PAYMENT, null, EXPIRATION, LOCK, LOCK);
+        ClaimResult claim = store.claim(key, Action.PAYMENT, null, EXPIRATION, LOCK, LOCK);
+        store.finish(finished(key, claim, 200, IdempotentRequestStatus.SUCCESS));
+
+        assertEquals(IdempotentRequestStatus.SUCCESS, store.find(key).orElseThrow().status());
+        assertEquals(IdempotentRequestStatus.SUCCESS, store.findAll(List.of(key)).getFirst().status());
+    }
+
+    @Test
+    void replicaIsSkippedAfterError() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        IdempotencyStore unreachable = new JdbcIdempotencyStore(
+                new JdbcTemplate(new DriverManagerDataSource("jdbc:postgresql://localhost:1/postgres")), objectMapper);
+        IdempotencyStore routing = new ReplicaRoutingIdempotencyStore(new InMemoryIdempotencyStore(16, Clock.systemUTC()),
+                unreachable, null, Duration.ofMinutes(1), meterRegistry);
+        String key = UUID.randomUUID().toString();
+        ClaimResult claim = routing.claim(key, Action.PAYMENT, null, EXPIRATION, LOCK, LOCK);
+        routing.finish(finished(key, claim, 200, IdempotentRequestStatus.SUCCESS));
+
+        assertEquals(200, routing.find(key).orElseThrow().responseCode());
+        assertEquals(200, routing.find(key).orElseThrow().responseCode());
+        assertEquals(1, meterRegistry.counter("idempotency.replica.reads", "result", "error").count());
+        assertEquals(2, meterRegistry.counter("idempotency.replica.reads", "result", "fallback").count());
+    }
+
+    private IdempotencyStore replicaStore() {
+        return new JdbcIdempotencyStore(new JdbcTemplate(REPLICA.getPostgresDatabase()), objectMapper);
+    }
+}
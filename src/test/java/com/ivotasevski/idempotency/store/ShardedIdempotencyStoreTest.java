@@ -0,0 +1,103 @@
+package com.ivotasevski.idempotency.store;
+
+import com.ivotasevski.idempotency.action.Action;
+import com.ivotasevski.idempotency.domain.ClaimOutcome;
+import com.ivotasevski.idempotency.domain.IdempotentRequestStatus;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    Sharded store over two local (embedded) Postgres databases, the primary datasource stays the default one.
+ */
+@SpringBootTest(properties = "idempotency.store.type=sharded")
+class ShardedIdempotencyStoreTest extends IdempotencyStoreConformanceTest {
+
+    private static final EmbeddedPostgres SHARD_A = startPostgres();
+    private static final EmbeddedPostgres SHARD_B = startPostgres();
+
+    @Autowired
+    private ShardedIdempotencyStore store;
+
+    @DynamicPropertySource
+    static void shards(DynamicPropertyRegistry registry) {
+        Map.of("a", SHARD_A, "b", SHARD_B).forEach((name, postgres) -> {
+            registry.add("idempotency.store.sharding.shards." + name + ".url", () -> postgres.getJdbcUrl("postgres", "postgres"));
+            registry.add("idempotency.store.sharding.shards." + name + ".username", () -> "postgres");
+            registry.add("idempotency.store.sharding.shards." + name + ".password", () -> "postgres");
+        });
+    }
+
+    @Override
+    protected IdempotencyStore store() {
+        return store;
+    }
+
+    @Test
+    void keysAreSpreadOverShards() {
+        IdempotencyShard a = shard("a");
+        IdempotencyShard b = shard("b");
+        for (int i = 0; i < 20; i++) {
+            claim(store, UUID.randomUUID().toString());
+        }
+
+        assertTrue(count(a) > 0);
+        assertTrue(count(b) > 0);
+    }
+
+    @Test
+    void movedKeyIsServedFromPreviousShardWhileResharding() {
+        ShardedIdempotencyStore before = new ShardedIdempotencyStore(shards(), ShardRing.of(List.of("a"), 128), null);
+        ShardedIdempotencyStore resharding = new ShardedIdempotencyStore(shards(), ShardRing.of(List.of("a", "b"), 128),
+                ShardRing.of(List.of("a"), 128));
+        String moved = movedKey();
+        ClaimResult claim = claim(before, moved);
+
+        assertEquals(ClaimOutcome.EXISTING, claim(resharding, moved).outcome());
+        assertTrue(resharding.finish(finished(moved, claim, 200, IdempotentRequestStatus.SUCCESS)).isPresent());
+        assertEquals(IdempotentRequestStatus.SUCCESS, resharding.find(moved).orElseThrow().status());
+        assertTrue(shard("b").store().find(moved).isEmpty());
+
+        String created = movedKey();
+        assertEquals(ClaimOutcome.CREATED, claim(resharding, created).outcome());
+        assertTrue(shard("b").store().find(created).isPresent());
+        assertTrue(shard("a").store().find(created).isEmpty());
+    }
+
+    // key owned by shard b once b joins the ring
+    private static String movedKey() {
+        ShardRing ring = ShardRing.of(List.of("a", "b"), 128);
+        String key;
+        do {
+            key = UUID.randomUUID().toString();
+        } while (!ring.owner(key).equals("b"));
+        return key;
+    }
+
+    private ClaimResult claim(IdempotencyStore store, String key) {
+        return store.claim(key, Action.PAYMENT, null, EXPIRATION, LOCK, LOCK);
+    }
+
+    private Map<String, IdempotencyShard> shards() {
+        return store.shards().stream().collect(Collectors.toMap(IdempotencyShard::name, Function.identity()));
+    }
+
+    private IdempotencyShard shard(String name) {
+        return shards().get(name);
+    }
+
+    private static long count(IdempotencyShard shard) {
+        return shard.jdbcTemplate().queryForObject("SELECT count(*) FROM gtw_idemp WHERE expired_at > now()", Long.class);
+    }
+}